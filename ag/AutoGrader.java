@@ -186,7 +186,7 @@ public class AutoGrader {
      */
     public void runningThread(KThread thread) {
 	privilege.tcb.associateThread(thread);
-	currentThread = thread;
+	currentThreads[Machine.processorNumber()] = thread;
     }
 
     /**
@@ -195,7 +195,7 @@ public class AutoGrader {
      * the thread to sleep and scheduling its TCB to be destroyed.
      */
     public void finishingCurrentThread() {
-	privilege.tcb.authorizeDestroy(currentThread);
+	privilege.tcb.authorizeDestroy(currentThreads[Machine.processorNumber()]);
     }
 
     /**
@@ -275,5 +275,6 @@ public class AutoGrader {
 	return true;
     }
     
-    private KThread currentThread;
+    /** The thread running on each processor. */
+    private KThread[] currentThreads = new KThread[Machine.numProcessors()];
 }
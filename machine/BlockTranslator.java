@@ -0,0 +1,923 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Translates basic blocks of MIPS code into JVM bytecode, for the
+ * <tt>tiered</tt> processor engine. Each translated block is defined as a
+ * hidden class nested in <tt>Processor</tt>, so it can read and write the
+ * processor's registers directly and call its private memory access methods,
+ * and so the JIT can compile it like any other method.
+ *
+ * <p>
+ * Translated code leaves the processor in exactly the state the interpreter
+ * would: the PC registers are written before every instruction that can
+ * cause an exception, delayed loads go through the processor's own load
+ * pipeline, and the arithmetic matches <tt>Processor.Instruction</tt> bit for
+ * bit. Blocks that use an instruction this class does not translate are left
+ * to the threaded-code engine.
+ *
+ * <p>
+ * Hidden classes appeared in Java 15. On older virtual machines
+ * <tt>isAvailable()</tt> returns <tt>false</tt> and nothing is translated.
+ */
+final class BlockTranslator {
+    /**
+     * Allocate a new block translator.
+     *
+     * @param	lookup	a lookup object with full access to
+     *			<tt>Processor</tt>.
+     */
+    BlockTranslator(MethodHandles.Lookup lookup) {
+	Lib.assertTrue(lookup.lookupClass() == Processor.class);
+
+	this.lookup = lookup;
+
+	try {
+	    Class<?> optionClass =
+		Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+	    options = Array.newInstance(optionClass, 1);
+	    Array.set(options, 0, enumConstant(optionClass, "NESTMATE"));
+
+	    defineHiddenClass = MethodHandles.publicLookup().findVirtual(
+		MethodHandles.Lookup.class, "defineHiddenClass",
+		MethodType.methodType(MethodHandles.Lookup.class, byte[].class,
+				      boolean.class, options.getClass()))
+		.asFixedArity();
+	}
+	catch (Throwable e) {
+	    Lib.debug(dbgTranslate, "hidden classes unavailable: " + e);
+	    defineHiddenClass = null;
+	}
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object enumConstant(Class<?> cls, String name) {
+	return Enum.valueOf((Class) cls, name);
+    }
+
+    /**
+     * Test whether this virtual machine can load translated blocks.
+     *
+     * @return	<tt>true</tt> if blocks can be translated.
+     */
+    boolean isAvailable() {
+	return defineHiddenClass != null;
+    }
+
+    /**
+     * Translate the specified basic block. Translated code does not depend on
+     * where the block is loaded, so a block whose instructions were already
+     * translated, for example by an earlier process running the same
+     * program, reuses the earlier translation.
+     *
+     * @param	instructions	the instructions of the block, in order.
+     * @return	the translated block, or <tt>null</tt> if the block uses an
+     *		instruction that cannot be translated.
+     */
+    Processor.TranslatedBlock translate(
+	Processor.DecodedInstruction[] instructions) {
+	if (!isAvailable() || !canTranslate(instructions))
+	    return null;
+
+	BlockKey key = new BlockKey(instructions);
+	Processor.TranslatedBlock block = cache.get(key);
+	if (block == null) {
+	    block = define(instructions);
+	    if (block != null)
+		cache.put(key, block);
+	}
+
+	return block;
+    }
+
+    private Processor.TranslatedBlock define(
+	Processor.DecodedInstruction[] instructions) {
+	byte[] classFile;
+	try {
+	    classFile = new ClassBuilder(instructions).build();
+	}
+	catch (IOException e) {
+	    return null;
+	}
+
+	try {
+	    MethodHandles.Lookup hidden = (MethodHandles.Lookup)
+		defineHiddenClass.invokeWithArguments(lookup, classFile, true,
+						      options);
+	    MethodHandle constructor =
+		hidden.findConstructor(hidden.lookupClass(),
+				       MethodType.methodType(void.class));
+
+	    numTranslated++;
+	    Lib.debug(dbgTranslate, "translated " + instructions.length +
+		      " instructions");
+
+	    return (Processor.TranslatedBlock) constructor.invokeWithArguments();
+	}
+	catch (Throwable e) {
+	    Lib.debug(dbgTranslate, "translation failed: " + e);
+	    return null;
+	}
+    }
+
+    /**
+     * Return the number of blocks translated so far.
+     *
+     * @return	the number of translated blocks.
+     */
+    int getNumTranslated() {
+	return numTranslated;
+    }
+
+    /**
+     * Identifies a block by its instruction words.
+     */
+    private static class BlockKey {
+	BlockKey(Processor.DecodedInstruction[] instructions) {
+	    words = new int[instructions.length];
+	    for (int i=0; i<words.length; i++)
+		words[i] = instructions[i].value;
+
+	    hash = Arrays.hashCode(words);
+	}
+
+	public int hashCode() {
+	    return hash;
+	}
+
+	public boolean equals(Object o) {
+	    return (o instanceof BlockKey) &&
+		Arrays.equals(words, ((BlockKey) o).words);
+	}
+
+	private int[] words;
+	private int hash;
+    }
+
+    private static boolean canTranslate(
+	Processor.DecodedInstruction[] instructions) {
+	for (int i=0; i<instructions.length; i++) {
+	    Processor.DecodedInstruction d = instructions[i];
+	    boolean last = (i == instructions.length-1);
+
+	    switch (d.operation) {
+	    case Processor.Mips.ADD:
+	    case Processor.Mips.SUB:
+		if (Lib.test(Processor.Mips.OVERFLOW, d.flags))
+		    return false;
+		break;
+	    case Processor.Mips.AND:
+	    case Processor.Mips.OR:
+	    case Processor.Mips.XOR:
+	    case Processor.Mips.NOR:
+	    case Processor.Mips.SLT:
+	    case Processor.Mips.LUI:
+	    case Processor.Mips.SLL:
+	    case Processor.Mips.SRA:
+	    case Processor.Mips.SRL:
+	    case Processor.Mips.MFLO:
+	    case Processor.Mips.MFHI:
+	    case Processor.Mips.MTLO:
+	    case Processor.Mips.MTHI:
+	    case Processor.Mips.MULT:
+	    case Processor.Mips.LOAD:
+	    case Processor.Mips.STORE:
+		break;
+	    case Processor.Mips.JUMP:
+	    case Processor.Mips.BEQ:
+	    case Processor.Mips.BNE:
+	    case Processor.Mips.BLEZ:
+	    case Processor.Mips.BGTZ:
+	    case Processor.Mips.BLTZ:
+	    case Processor.Mips.BGEZ:
+		// only as the second to last instruction, before its delay slot
+		if (i != instructions.length-2)
+		    return false;
+		break;
+	    case Processor.Mips.SYSCALL:
+		if (!last)
+		    return false;
+		break;
+	    default:
+		return false;
+	    }
+	}
+
+	return true;
+    }
+
+    /**
+     * Builds the class file for one translated block. The class extends
+     * <tt>Processor.TranslatedBlock</tt> and implements its <tt>run()</tt>
+     * method. Class file version 49 is used so that no stack map frames are
+     * required.
+     */
+    private static class ClassBuilder {
+	ClassBuilder(Processor.DecodedInstruction[] instructions) {
+	    this.instructions = instructions;
+	}
+
+	byte[] build() throws IOException {
+	    int thisClass = classConstant(processorClass + "$Translated");
+	    int superClass = classConstant(translatedBlockClass);
+
+	    int superInit = methodConstant(translatedBlockClass, "<init>", "()V");
+	    byte[] initCode = { (byte) aload_0, (byte) invokespecial,
+				(byte) (superInit>>8), (byte) superInit,
+				(byte) return_ };
+
+	    byte[] runCode = translateBlock();
+
+	    int initName = utf8Constant("<init>");
+	    int initType = utf8Constant("()V");
+	    int runName = utf8Constant("run");
+	    int runType = utf8Constant("(L" + processorClass + ";I)I");
+	    int codeName = utf8Constant("Code");
+
+	    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	    DataOutputStream out = new DataOutputStream(bytes);
+
+	    out.writeInt(0xCAFEBABE);
+	    out.writeShort(0);
+	    out.writeShort(49);
+
+	    out.writeShort(numConstants);
+	    out.write(constants.toByteArray());
+
+	    out.writeShort(accSuper | accFinal);
+	    out.writeShort(thisClass);
+	    out.writeShort(superClass);
+	    out.writeShort(0);		// interfaces
+	    out.writeShort(0);		// fields
+
+	    out.writeShort(2);		// methods
+	    writeMethod(out, initName, initType, codeName, 1, 1, initCode);
+	    writeMethod(out, runName, runType, codeName, maxStack, maxLocals,
+			runCode);
+
+	    out.writeShort(0);		// attributes
+
+	    return bytes.toByteArray();
+	}
+
+	private void writeMethod(DataOutputStream out, int name, int type,
+				 int codeName, int stack, int locals,
+				 byte[] code) throws IOException {
+	    out.writeShort(0);
+	    out.writeShort(name);
+	    out.writeShort(type);
+	    out.writeShort(1);
+
+	    out.writeShort(codeName);
+	    out.writeInt(12 + code.length);
+	    out.writeShort(stack);
+	    out.writeShort(locals);
+	    out.writeInt(code.length);
+	    out.write(code);
+	    out.writeShort(0);		// exception table
+	    out.writeShort(0);		// attributes
+	}
+
+	/**
+	 * Emit the body of <tt>run(Processor, int)</tt>. Local 1 holds the
+	 * processor, local 2 the physical page number, local 3 the register
+	 * array, local 4 the PC of the first instruction, local 5 a result
+	 * being written back, and local 6 the PC following a branch delay
+	 * slot.
+	 */
+	private byte[] translateBlock() throws IOException {
+	    aload(1);
+	    getfield(processorClass, "registers", "[I");
+	    astore(registersLocal);
+	    aload(registersLocal);
+	    iconst(Processor.regPC);
+	    emit(iaload);
+	    istore(pcLocal);
+
+	    int length = instructions.length;
+	    boolean pendingLoad = true;	// unknown on entry
+	    boolean branched = false;
+
+	    for (int i=0; i<length; i++) {
+		Processor.DecodedInstruction d = instructions[i];
+
+		if (Lib.test(Processor.Mips.BRANCH, d.flags)) {
+		    translateBranch(d, i, pendingLoad);
+		    pendingLoad = false;
+		    branched = true;
+		    continue;
+		}
+
+		boolean delaySlot = (i == length-1 && branched);
+
+		// instructions that can trap need the exact PC state
+		if (d.operation == Processor.Mips.LOAD ||
+		    d.operation == Processor.Mips.STORE ||
+		    d.operation == Processor.Mips.SYSCALL) {
+		    if (delaySlot)
+			setPCs(i, true);
+		    else if (i > 0)
+			setPCs(i, false);
+		}
+
+		translateInstruction(d, pendingLoad);
+		pendingLoad = (d.operation == Processor.Mips.LOAD);
+
+		// a store into this page discards the block
+		if (d.operation == Processor.Mips.STORE && i < length-1) {
+		    aload(1);
+		    getfield(processorClass, "codePages",
+			     "[L" + processorClass + "$CodePage;");
+		    iload(2);
+		    emit(aaload);
+		    int skip = branch(ifnonnull);
+		    setPCs(i+1, false);
+		    iconst(i+1);
+		    emit(ireturn);
+		    patch(skip);
+		}
+	    }
+
+	    // leave the PCs where the interpreter would
+	    if (branched) {
+		aload(registersLocal);
+		iconst(Processor.regPC);
+		iload(branchLocal);
+		emit(iastore);
+		aload(registersLocal);
+		iconst(Processor.regNextPC);
+		iload(branchLocal);
+		iconst(4);
+		emit(iadd);
+		emit(iastore);
+	    }
+	    else {
+		setPCs(length, false);
+	    }
+
+	    iconst(length);
+	    emit(ireturn);
+
+	    return code.toByteArray();
+	}
+
+	/**
+	 * Set the PC registers for the <i>i</i>th instruction of the block.
+	 * After a branch, the PC is the delay slot and the next PC was saved in
+	 * local 6.
+	 */
+	private void setPCs(int i, boolean afterBranch) throws IOException {
+	    aload(registersLocal);
+	    iconst(Processor.regPC);
+	    pcOffset(i*4);
+	    emit(iastore);
+	    aload(registersLocal);
+	    iconst(Processor.regNextPC);
+	    if (afterBranch)
+		iload(branchLocal);
+	    else
+		pcOffset(i*4 + 4);
+	    emit(iastore);
+	}
+
+	private void pcOffset(int offset) throws IOException {
+	    iload(pcLocal);
+	    if (offset != 0) {
+		iconst(offset);
+		emit(iadd);
+	    }
+	}
+
+	private void translateInstruction(Processor.DecodedInstruction d,
+					  boolean pendingLoad)
+	    throws IOException {
+	    boolean unsigned = Lib.test(Processor.Mips.UNSIGNED, d.flags);
+	    boolean immediate = Lib.test(Processor.Mips.SRC2IMM, d.flags);
+	    int dst = d.dstReg;
+
+	    switch (d.operation) {
+	    case Processor.Mips.LOAD:
+		aload(1);
+		iconst(d.dstReg);
+		aload(1);
+		register(d.rs);
+		iconst(d.imm);
+		emit(iadd);
+		iconst(d.size);
+		invokevirtual(processorClass, "readMem", "(II)I");
+		if (!unsigned && d.size == 1)
+		    emit(i2b);
+		else if (!unsigned && d.size == 2)
+		    emit(i2s);
+		iconst(0xFFFFFFFF);
+		invokevirtual(processorClass, "delayedLoad", "(III)V");
+		return;
+
+	    case Processor.Mips.STORE:
+		aload(1);
+		register(d.rs);
+		iconst(d.imm);
+		emit(iadd);
+		iconst(d.size);
+		register(d.rt);
+		invokevirtual(processorClass, "writeMem", "(III)V");
+		finishLoad(pendingLoad);
+		return;
+
+	    case Processor.Mips.SYSCALL:
+		aload(1);
+		invokevirtual(processorClass, "syscallException", "()V");
+		return;
+
+	    case Processor.Mips.MTLO:
+	    case Processor.Mips.MTHI:
+		aload(registersLocal);
+		iconst(d.operation == Processor.Mips.MTLO ?
+		       Processor.regLo : Processor.regHi);
+		register(d.rs);
+		emit(iastore);
+		finishLoad(pendingLoad);
+		return;
+
+	    case Processor.Mips.MULT:
+		register(d.rs);
+		toLong(unsigned);
+		register(d.rt);
+		toLong(unsigned);
+		emit(lmul);
+		emit(dup2);
+		emit(l2i);
+		istore(resultLocal);
+		aload(registersLocal);
+		iconst(Processor.regLo);
+		iload(resultLocal);
+		emit(iastore);
+		iconst(32);
+		emit(lshr);
+		emit(l2i);
+		istore(resultLocal);
+		aload(registersLocal);
+		iconst(Processor.regHi);
+		iload(resultLocal);
+		emit(iastore);
+		finishLoad(pendingLoad);
+		return;
+	    }
+
+	    // the rest are ALU operations, which cannot trap
+	    if (dst == 0) {
+		finishLoad(pendingLoad);
+		return;
+	    }
+
+	    switch (d.operation) {
+	    case Processor.Mips.ADD:
+	    case Processor.Mips.SUB:
+	    case Processor.Mips.AND:
+	    case Processor.Mips.OR:
+	    case Processor.Mips.XOR:
+	    case Processor.Mips.NOR:
+		register(d.rs);
+		if (immediate)
+		    iconst(d.imm);
+		else
+		    register(d.rt);
+
+		switch (d.operation) {
+		case Processor.Mips.ADD:
+		    emit(iadd);
+		    break;
+		case Processor.Mips.SUB:
+		    emit(isub);
+		    break;
+		case Processor.Mips.AND:
+		    emit(iand);
+		    break;
+		case Processor.Mips.OR:
+		    emit(ior);
+		    break;
+		case Processor.Mips.XOR:
+		    emit(ixor);
+		    break;
+		case Processor.Mips.NOR:
+		    emit(ior);
+		    iconst(-1);
+		    emit(ixor);
+		    break;
+		}
+		break;
+
+	    case Processor.Mips.SLT:
+		// the sign of the 64-bit difference is the result
+		register(d.rs);
+		toLong(unsigned);
+		if (immediate)
+		    iconst(d.imm);
+		else
+		    register(d.rt);
+		toLong(unsigned);
+		emit(lsub);
+		iconst(63);
+		emit(lushr);
+		emit(l2i);
+		break;
+
+	    case Processor.Mips.LUI:
+		iconst(d.imm << 16);
+		break;
+
+	    case Processor.Mips.SLL:
+	    case Processor.Mips.SRA:
+	    case Processor.Mips.SRL:
+		// same long arithmetic as the interpreter
+		register(d.rt);
+		emit(i2l);
+		if (Lib.test(Processor.Mips.SRC1SH, d.flags)) {
+		    iconst(d.sh & 0x1F);
+		}
+		else {
+		    register(d.rs);
+		    iconst(0x1F);
+		    emit(iand);
+		}
+		if (d.operation == Processor.Mips.SLL)
+		    emit(lshl);
+		else if (d.operation == Processor.Mips.SRA)
+		    emit(lshr);
+		else
+		    emit(lushr);
+		emit(l2i);
+		break;
+
+	    case Processor.Mips.MFLO:
+		register(Processor.regLo);
+		break;
+
+	    case Processor.Mips.MFHI:
+		register(Processor.regHi);
+		break;
+
+	    default:
+		Lib.assertNotReached();
+	    }
+
+	    istore(resultLocal);
+	    finishLoad(pendingLoad);
+	    aload(registersLocal);
+	    iconst(dst);
+	    iload(resultLocal);
+	    emit(iastore);
+	}
+
+	/**
+	 * Translate the branch or jump at index <i>i</i>, leaving the PC that
+	 * follows its delay slot in local 6.
+	 */
+	private void translateBranch(Processor.DecodedInstruction d, int i,
+				     boolean pendingLoad) throws IOException {
+	    int nextPC = i*4 + 4;
+
+	    if (d.operation == Processor.Mips.JUMP) {
+		if (d.format == Processor.Mips.RFMT) {
+		    register(d.rs);
+		}
+		else {
+		    pcOffset(nextPC);
+		    iconst(0xF0000000);
+		    emit(iand);
+		    iconst(d.target << 2);
+		    emit(ior);
+		}
+		istore(branchLocal);
+	    }
+	    else {
+		pcOffset(nextPC + 4);
+		istore(branchLocal);
+
+		register(d.rs);
+		int skip;
+		switch (d.operation) {
+		case Processor.Mips.BEQ:
+		    register(d.rt);
+		    skip = branch(if_icmpne);
+		    break;
+		case Processor.Mips.BNE:
+		    register(d.rt);
+		    skip = branch(if_icmpeq);
+		    break;
+		case Processor.Mips.BLEZ:
+		    skip = branch(ifgt);
+		    break;
+		case Processor.Mips.BGTZ:
+		    skip = branch(ifle);
+		    break;
+		case Processor.Mips.BLTZ:
+		    skip = branch(ifge);
+		    break;
+		default:
+		    skip = branch(iflt);
+		    break;
+		}
+
+		pcOffset(nextPC + (d.imm << 2));
+		istore(branchLocal);
+		patch(skip);
+	    }
+
+	    finishLoad(pendingLoad);
+
+	    if (Lib.test(Processor.Mips.LINK, d.flags) && d.dstReg != 0) {
+		aload(registersLocal);
+		iconst(d.dstReg);
+		pcOffset(nextPC + 4);
+		emit(iastore);
+	    }
+	}
+
+	private void finishLoad(boolean pendingLoad) throws IOException {
+	    if (pendingLoad) {
+		aload(1);
+		invokevirtual(processorClass, "finishLoad", "()V");
+	    }
+	}
+
+	private void register(int number) throws IOException {
+	    if (number == 0) {
+		iconst(0);
+	    }
+	    else {
+		aload(registersLocal);
+		iconst(number);
+		emit(iaload);
+	    }
+	}
+
+	private void toLong(boolean unsigned) throws IOException {
+	    emit(i2l);
+	    if (unsigned) {
+		ldc2(0xFFFFFFFFL);
+		emit(land);
+	    }
+	}
+
+	// bytecode emission
+
+	private void emit(int opcode) {
+	    code.write(opcode);
+	}
+
+	private void emitShort(int value) {
+	    code.write(value >> 8);
+	    code.write(value);
+	}
+
+	private void iconst(int value) throws IOException {
+	    if (value >= -1 && value <= 5) {
+		emit(iconst_0 + value);
+	    }
+	    else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+		emit(bipush);
+		emit(value);
+	    }
+	    else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+		emit(sipush);
+		emitShort(value);
+	    }
+	    else {
+		emit(ldc_w);
+		emitShort(integerConstant(value));
+	    }
+	}
+
+	private void ldc2(long value) throws IOException {
+	    emit(ldc2_w);
+	    emitShort(longConstant(value));
+	}
+
+	private void aload(int local) {
+	    emit(aload);
+	    emit(local);
+	}
+
+	private void astore(int local) {
+	    emit(astore);
+	    emit(local);
+	}
+
+	private void iload(int local) {
+	    emit(iload);
+	    emit(local);
+	}
+
+	private void istore(int local) {
+	    emit(istore);
+	    emit(local);
+	}
+
+	private void getfield(String owner, String name, String type)
+	    throws IOException {
+	    emit(getfield);
+	    emitShort(fieldConstant(owner, name, type));
+	}
+
+	private void invokevirtual(String owner, String name, String type)
+	    throws IOException {
+	    emit(invokevirtual);
+	    emitShort(methodConstant(owner, name, type));
+	}
+
+	/** Emit a forward branch, returning its position for patch(). */
+	private int branch(int opcode) {
+	    int position = code.size();
+	    emit(opcode);
+	    emitShort(0);
+	    return position;
+	}
+
+	/** Point the branch at <i>position</i> at the current position. */
+	private void patch(int position) {
+	    byte[] bytes = code.toByteArray();
+	    int offset = bytes.length - position;
+	    bytes[position+1] = (byte) (offset >> 8);
+	    bytes[position+2] = (byte) offset;
+	    code.reset();
+	    code.write(bytes, 0, bytes.length);
+	}
+
+	// constant pool
+
+	private int utf8Constant(String value) throws IOException {
+	    String key = "U" + value;
+	    Integer index = constantIndices.get(key);
+	    if (index != null)
+		return index;
+
+	    pool.writeByte(1);
+	    pool.writeUTF(value);
+	    return addConstant(key, 1);
+	}
+
+	private int classConstant(String name) throws IOException {
+	    String key = "C" + name;
+	    Integer index = constantIndices.get(key);
+	    if (index != null)
+		return index;
+
+	    int nameIndex = utf8Constant(name);
+	    pool.writeByte(7);
+	    pool.writeShort(nameIndex);
+	    return addConstant(key, 1);
+	}
+
+	private int integerConstant(int value) throws IOException {
+	    String key = "I" + value;
+	    Integer index = constantIndices.get(key);
+	    if (index != null)
+		return index;
+
+	    pool.writeByte(3);
+	    pool.writeInt(value);
+	    return addConstant(key, 1);
+	}
+
+	private int longConstant(long value) throws IOException {
+	    String key = "J" + value;
+	    Integer index = constantIndices.get(key);
+	    if (index != null)
+		return index;
+
+	    pool.writeByte(5);
+	    pool.writeLong(value);
+	    return addConstant(key, 2);
+	}
+
+	private int fieldConstant(String owner, String name, String type)
+	    throws IOException {
+	    return memberConstant(9, owner, name, type);
+	}
+
+	private int methodConstant(String owner, String name, String type)
+	    throws IOException {
+	    return memberConstant(10, owner, name, type);
+	}
+
+	private int memberConstant(int tag, String owner, String name,
+				   String type) throws IOException {
+	    String key = "M" + tag + owner + "." + name + type;
+	    Integer index = constantIndices.get(key);
+	    if (index != null)
+		return index;
+
+	    int ownerIndex = classConstant(owner);
+	    int nameIndex = utf8Constant(name);
+	    int typeIndex = utf8Constant(type);
+
+	    pool.writeByte(12);
+	    pool.writeShort(nameIndex);
+	    pool.writeShort(typeIndex);
+	    int nameAndType = addConstant("N" + name + type, 1);
+
+	    pool.writeByte(tag);
+	    pool.writeShort(ownerIndex);
+	    pool.writeShort(nameAndType);
+	    return addConstant(key, 1);
+	}
+
+	private int addConstant(String key, int slots) {
+	    int index = numConstants;
+	    numConstants += slots;
+	    constantIndices.put(key, index);
+	    return index;
+	}
+
+	private Processor.DecodedInstruction[] instructions;
+
+	private ByteArrayOutputStream code = new ByteArrayOutputStream();
+
+	private ByteArrayOutputStream constants = new ByteArrayOutputStream();
+	private DataOutputStream pool = new DataOutputStream(constants);
+	private HashMap<String,Integer> constantIndices =
+	    new HashMap<String,Integer>();
+	private int numConstants = 1;
+
+	private static final int registersLocal = 3;
+	private static final int pcLocal = 4;
+	private static final int resultLocal = 5;
+	private static final int branchLocal = 6;
+
+	private static final int maxStack = 12;
+	private static final int maxLocals = 7;
+    }
+
+    private HashMap<BlockKey,Processor.TranslatedBlock> cache =
+	new HashMap<BlockKey,Processor.TranslatedBlock>();
+
+    private MethodHandles.Lookup lookup;
+    private MethodHandle defineHiddenClass;
+    private Object options;
+    private int numTranslated = 0;
+
+    private static final String processorClass = "nachos/machine/Processor";
+    private static final String translatedBlockClass =
+	processorClass + "$TranslatedBlock";
+
+    private static final int accFinal = 0x0010;
+    private static final int accSuper = 0x0020;
+
+    // JVM opcodes
+    private static final int
+	iconst_0	= 0x03,
+	bipush		= 0x10,
+	sipush		= 0x11,
+	ldc_w		= 0x13,
+	ldc2_w		= 0x14,
+	iload		= 0x15,
+	aload		= 0x19,
+	aload_0		= 0x2a,
+	iaload		= 0x2e,
+	aaload		= 0x32,
+	istore		= 0x36,
+	astore		= 0x3a,
+	iastore		= 0x4f,
+	dup2		= 0x5c,
+	iadd		= 0x60,
+	isub		= 0x64,
+	lsub		= 0x65,
+	lmul		= 0x69,
+	lshl		= 0x79,
+	lshr		= 0x7b,
+	lushr		= 0x7d,
+	iand		= 0x7e,
+	land		= 0x7f,
+	ior		= 0x80,
+	ixor		= 0x82,
+	i2l		= 0x85,
+	l2i		= 0x88,
+	i2b		= 0x91,
+	i2s		= 0x93,
+	iflt		= 0x9b,
+	ifge		= 0x9c,
+	ifgt		= 0x9d,
+	ifle		= 0x9e,
+	if_icmpeq	= 0x9f,
+	if_icmpne	= 0xa0,
+	ireturn		= 0xac,
+	return_		= 0xb1,
+	getfield	= 0xb4,
+	invokevirtual	= 0xb6,
+	invokespecial	= 0xb7,
+	ifnonnull	= 0xc7;
+
+    private static final char dbgTranslate = 'j';
+}
@@ -0,0 +1,381 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+/**
+ * Saves the state of the simulated machine to a checkpoint file, and restores
+ * it, so that many runs can start from the same warm state without
+ * simulating their way there again.
+ *
+ * <p>
+ * A checkpoint holds the current processor's user registers, a page table,
+ * physical memory, the runtime statistics, and the times of the pending
+ * interrupts. Kernel threads run on host threads whose stacks cannot be
+ * saved, so a checkpoint is taken on behalf of one user process, between
+ * instructions, and the kernel restores it as a new process with that page
+ * table.
+ *
+ * <p>
+ * Each chunk of physical memory that has been written is stored page-aligned
+ * in the file. Restoring maps these chunks read-only, so the host reads each
+ * one in only when the program touches it, and the processor copies a chunk
+ * into its own memory only when the program first writes to it. A large
+ * memory is therefore restored in about the time it takes to read the rest
+ * of the checkpoint, and many runs can share one checkpoint file.
+ */
+public final class Checkpoint {
+    /**
+     * Allocate a new checkpoint device.
+     *
+     * @param	privilege      	encapsulates privileged access to the Nachos
+     *				machine.
+     */
+    public Checkpoint(Privilege privilege) {
+	this.privilege = privilege;
+    }
+
+    /**
+     * Save the state of the machine to the specified file. The registers are
+     * those of the current processor, which must not be running user code.
+     *
+     * @param	name		the name of the checkpoint file.
+     * @param	pageTable	the page table of the process being saved.
+     * @return	<tt>true</tt> if the checkpoint was written.
+     */
+    public boolean save(String name, TranslationEntry[] pageTable) {
+	Processor processor = Machine.processor();
+	Stats stats = privilege.stats;
+
+	final ByteBuffer[] chunks = new ByteBuffer[processor.getNumMemoryChunks()];
+	final long[] offsets = new long[chunks.length];
+
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	DataOutputStream header = new DataOutputStream(bytes);
+
+	try {
+	    header.writeInt(magic);
+	    header.writeInt(processor.getNumPhysPages());
+
+	    header.writeLong(stats.totalTicks);
+	    header.writeLong(stats.kernelTicks);
+	    header.writeLong(stats.userTicks);
+	    header.writeLong(stats.idleTicks);
+	    header.writeInt(stats.numDiskReads);
+	    header.writeInt(stats.numDiskWrites);
+	    header.writeInt(stats.numConsoleReads);
+	    header.writeInt(stats.numConsoleWrites);
+	    header.writeInt(stats.numPageFaults);
+	    header.writeInt(stats.numTLBMisses);
+	    header.writeLong(stats.numTLBHits);
+	    header.writeInt(stats.numPacketsSent);
+	    header.writeInt(stats.numPacketsReceived);
+
+	    header.writeInt(Processor.numUserRegisters);
+	    for (int i=0; i<Processor.numUserRegisters; i++)
+		header.writeInt(processor.readRegister(i));
+
+	    header.writeInt(pageTable.length);
+	    for (int i=0; i<pageTable.length; i++) {
+		TranslationEntry entry = pageTable[i];
+		header.writeInt(entry.vpn);
+		header.writeInt(entry.ppn);
+		header.writeBoolean(entry.valid);
+		header.writeBoolean(entry.readOnly);
+		header.writeBoolean(entry.used);
+		header.writeBoolean(entry.dirty);
+	    }
+
+	    String[] types = Machine.interrupt().pendingTypes();
+	    long[] times = Machine.interrupt().pendingTimes();
+	    header.writeInt(types.length);
+	    for (int i=0; i<types.length; i++) {
+		header.writeUTF(types[i] == null ? "" : types[i]);
+		header.writeLong(times[i]);
+	    }
+
+	    // the chunk table ends the header, and the chunks follow it
+	    long offset = bytes.size() + 4 + 8*chunks.length;
+	    for (int i=0; i<chunks.length; i++) {
+		chunks[i] = processor.getMemoryChunk(i);
+		if (chunks[i] != null) {
+		    offset = (offset + alignment - 1) / alignment * alignment;
+		    offsets[i] = offset;
+		    offset += processor.chunkLength(i);
+		}
+	    }
+
+	    header.writeInt(chunks.length);
+	    for (int i=0; i<chunks.length; i++)
+		header.writeLong(offsets[i]);
+
+	    header.flush();
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached();
+	}
+
+	final File file = new File(name);
+	final byte[] headerBytes = bytes.toByteArray();
+	final boolean[] written = new boolean[1];
+
+	privilege.doPrivileged(new Runnable() {
+	    public void run() {
+		written[0] = write(file, headerBytes, chunks, offsets);
+	    }
+	});
+
+	Lib.debug(dbgCheckpoint,
+		  (written[0] ? "Saved" : "Failed to save") + " checkpoint \"" +
+		  name + "\" at time = " + stats.totalTicks);
+
+	return written[0];
+    }
+
+    private boolean write(File file, byte[] header, ByteBuffer[] chunks,
+			  long[] offsets) {
+	RandomAccessFile raf = null;
+
+	try {
+	    raf = new RandomAccessFile(file, "rw");
+	    raf.setLength(0);
+	    raf.write(header);
+
+	    FileChannel channel = raf.getChannel();
+	    for (int i=0; i<chunks.length; i++) {
+		if (chunks[i] == null)
+		    continue;
+
+		ByteBuffer data = chunks[i].duplicate();
+		data.clear();
+
+		long position = offsets[i];
+		while (data.hasRemaining())
+		    position += channel.write(data, position);
+	    }
+
+	    return true;
+	}
+	catch (IOException e) {
+	    return false;
+	}
+	finally {
+	    close(raf);
+	}
+    }
+
+    /**
+     * Restore the state of the machine from the specified file. Physical
+     * memory, the runtime statistics, and simulated time are restored
+     * directly, so no user program may have been loaded yet. The registers
+     * are returned for the kernel to load into the thread that resumes the
+     * saved process.
+     *
+     * <p>
+     * Simulated time never moves backwards: if more time has already passed
+     * than when the checkpoint was taken, the saved times are moved forward
+     * to match. Nothing changes if the checkpoint cannot be read, or was
+     * taken on a machine with a different amount of physical memory.
+     *
+     * @param	name		the name of the checkpoint file.
+     * @param	registers	an array of <tt>Processor.numUserRegisters</tt>
+     *				elements, in which the saved registers are
+     *				stored.
+     * @return	the saved page table, or <tt>null</tt> if the checkpoint could
+     *		not be restored.
+     */
+    public TranslationEntry[] restore(String name, int[] registers) {
+	Lib.assertTrue(registers.length == Processor.numUserRegisters);
+
+	final File file = new File(name);
+	final Saved[] read = new Saved[1];
+
+	privilege.doPrivileged(new Runnable() {
+	    public void run() {
+		read[0] = read(file);
+	    }
+	});
+
+	Saved saved = read[0];
+	if (saved == null) {
+	    Lib.debug(dbgCheckpoint, "Failed to restore checkpoint \"" + name
+		      + "\"");
+	    return null;
+	}
+
+	Processor processor = Machine.processor();
+	for (int i=0; i<saved.chunks.length; i++)
+	    processor.setMemoryChunk(i, saved.chunks[i]);
+
+	Stats stats = privilege.stats;
+	long shift = Math.max(stats.totalTicks - saved.stats.totalTicks, 0);
+
+	for (int i=0; i<saved.times.length; i++)
+	    saved.times[i] += shift;
+	Machine.interrupt().restoreTime(saved.stats.totalTicks + shift,
+					saved.types, saved.times);
+
+	stats.totalTicks = saved.stats.totalTicks + shift;
+	stats.kernelTicks = saved.stats.kernelTicks + shift;
+	stats.userTicks = saved.stats.userTicks;
+	stats.idleTicks = saved.stats.idleTicks;
+	stats.numDiskReads = saved.stats.numDiskReads;
+	stats.numDiskWrites = saved.stats.numDiskWrites;
+	stats.numConsoleReads = saved.stats.numConsoleReads;
+	stats.numConsoleWrites = saved.stats.numConsoleWrites;
+	stats.numPageFaults = saved.stats.numPageFaults;
+	stats.numTLBMisses = saved.stats.numTLBMisses;
+	stats.numTLBHits = saved.stats.numTLBHits;
+	stats.numPacketsSent = saved.stats.numPacketsSent;
+	stats.numPacketsReceived = saved.stats.numPacketsReceived;
+
+	System.arraycopy(saved.registers, 0, registers, 0, registers.length);
+
+	Lib.debug(dbgCheckpoint, "Restored checkpoint \"" + name
+		  + "\" at time = " + stats.totalTicks);
+
+	return saved.pageTable;
+    }
+
+    /**
+     * Read and check a checkpoint file, mapping its memory chunks.
+     *
+     * @return	the saved state, or <tt>null</tt> if the file cannot be read or
+     *		does not fit this machine.
+     */
+    private Saved read(File file) {
+	Processor processor = Machine.processor();
+	RandomAccessFile raf = null;
+
+	try {
+	    raf = new RandomAccessFile(file, "r");
+	    FileChannel channel = raf.getChannel();
+
+	    DataInputStream header = new DataInputStream(
+		new BufferedInputStream(Channels.newInputStream(channel)));
+
+	    if (header.readInt() != magic ||
+		header.readInt() != processor.getNumPhysPages())
+		return null;
+
+	    Saved saved = new Saved();
+
+	    saved.stats.totalTicks = header.readLong();
+	    saved.stats.kernelTicks = header.readLong();
+	    saved.stats.userTicks = header.readLong();
+	    saved.stats.idleTicks = header.readLong();
+	    saved.stats.numDiskReads = header.readInt();
+	    saved.stats.numDiskWrites = header.readInt();
+	    saved.stats.numConsoleReads = header.readInt();
+	    saved.stats.numConsoleWrites = header.readInt();
+	    saved.stats.numPageFaults = header.readInt();
+	    saved.stats.numTLBMisses = header.readInt();
+	    saved.stats.numTLBHits = header.readLong();
+	    saved.stats.numPacketsSent = header.readInt();
+	    saved.stats.numPacketsReceived = header.readInt();
+
+	    if (header.readInt() != Processor.numUserRegisters)
+		return null;
+	    saved.registers = new int[Processor.numUserRegisters];
+	    for (int i=0; i<saved.registers.length; i++)
+		saved.registers[i] = header.readInt();
+
+	    int numEntries = header.readInt();
+	    if (numEntries < 0 || numEntries > Processor.maxPages)
+		return null;
+	    saved.pageTable = new TranslationEntry[numEntries];
+	    for (int i=0; i<numEntries; i++) {
+		int vpn = header.readInt();
+		int ppn = header.readInt();
+		boolean valid = header.readBoolean();
+		boolean readOnly = header.readBoolean();
+		boolean used = header.readBoolean();
+		boolean dirty = header.readBoolean();
+
+		if (ppn < 0 || ppn >= processor.getNumPhysPages())
+		    return null;
+
+		saved.pageTable[i] =
+		    new TranslationEntry(vpn, ppn, valid, readOnly, used, dirty);
+	    }
+
+	    int numPending = header.readInt();
+	    if (numPending < 0)
+		return null;
+	    saved.types = new String[numPending];
+	    saved.times = new long[numPending];
+	    for (int i=0; i<numPending; i++) {
+		saved.types[i] = header.readUTF();
+		saved.times[i] = header.readLong();
+	    }
+
+	    if (header.readInt() != processor.getNumMemoryChunks())
+		return null;
+	    saved.chunks = new ByteBuffer[processor.getNumMemoryChunks()];
+	    long[] offsets = new long[saved.chunks.length];
+	    for (int i=0; i<offsets.length; i++)
+		offsets[i] = header.readLong();
+
+	    for (int i=0; i<saved.chunks.length; i++) {
+		int length = processor.chunkLength(i);
+
+		if (offsets[i] == 0)
+		    continue;
+		if (offsets[i] < 0 || offsets[i] + length > channel.size())
+		    return null;
+
+		saved.chunks[i] =
+		    channel.map(FileChannel.MapMode.READ_ONLY, offsets[i], length);
+	    }
+
+	    return saved;
+	}
+	catch (IOException e) {
+	    return null;
+	}
+	finally {
+	    close(raf);
+	}
+    }
+
+    private static void close(RandomAccessFile raf) {
+	if (raf != null) {
+	    try {
+		raf.close();
+	    }
+	    catch (IOException e) {
+	    }
+	}
+    }
+
+    /** The state read from a checkpoint file. */
+    private static class Saved {
+	Stats stats = new Stats();
+	int[] registers;
+	TranslationEntry[] pageTable;
+	String[] types;
+	long[] times;
+	ByteBuffer[] chunks;
+    }
+
+    private Privilege privilege;
+
+    /** The first word of every checkpoint file. */
+    private static final int magic = 0x4E434B31;
+    /** Memory chunks start on multiples of this, so they map cheaply. */
+    private static final int alignment = 0x1000;
+
+    private static final char dbgCheckpoint = 'k';
+}
@@ -0,0 +1,429 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Records the timing of device events to a log file, or replays a log so that
+ * a run repeats exactly.
+ *
+ * <p>
+ * The simulation is deterministic apart from its input: the random seed,
+ * console characters, which arrive whenever the host delivers them, and
+ * network packets. A recorded log holds the seed and every timer delay,
+ * console character, and network packet, each with the simulated time at
+ * which the device saw it. Replaying the log seeds the random number
+ * generator the same way and hands each device its input at exactly the same
+ * tick, ignoring the host, so a rare behavior can be reproduced and profiled
+ * as often as needed. Timer delays are checked as they are replayed, and the
+ * first time they disagree with the log, a divergence is reported.
+ *
+ * <p>
+ * Events are encoded compactly, as a type byte, the ticks since the previous
+ * event, and the event's data, with variable-length integers. While
+ * recording, events are collected in a buffer that a separate host thread
+ * writes out, so that recording barely slows the simulation.
+ *
+ * <p>
+ * Replay is exact only on a machine with one processor, since with more the
+ * host decides which processor reaches the kernel first.
+ */
+public final class DeviceLog {
+    /**
+     * Allocate a new device log, recording to or replaying from the specified
+     * file.
+     *
+     * @param	privilege      	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	fileName	the name of the log file.
+     * @param	replay		<tt>true</tt> to replay the log, <tt>false</tt>
+     *				to record it.
+     */
+    public DeviceLog(Privilege privilege, String fileName, boolean replay) {
+	this.privilege = privilege;
+	this.replaying = replay;
+
+	try {
+	    if (replay)
+		load(fileName);
+	    else
+		startRecording(fileName);
+	}
+	catch (IOException e) {
+	    System.out.println("");
+	    System.out.println("Unable to " + (replay ? "read" : "write") +
+			       " device log " + fileName);
+	    Lib.assertNotReached();
+	}
+    }
+
+    /**
+     * Test whether this log is being replayed rather than recorded.
+     *
+     * @return	<tt>true</tt> if devices should take their input from this
+     *		log.
+     */
+    public boolean isReplaying() {
+	return replaying;
+    }
+
+    /**
+     * Return the random seed the replayed log was recorded with, which the
+     * machine uses in place of its own.
+     *
+     * @return	the recorded random seed.
+     */
+    public long getRandomSeed() {
+	Lib.assertTrue(replaying);
+
+	return randomSeed;
+    }
+
+    /**
+     * Record or replay the delay before the next timer interrupt.
+     *
+     * @param	delay	the delay the timer chose.
+     * @return	the delay to use.
+     */
+    public int timerDelay(int delay) {
+	if (!replaying) {
+	    record(typeTimer);
+	    writeVarLong(delay);
+	    return delay;
+	}
+
+	if (timer.next == timer.count) {
+	    diverged("the timer ran past the end of the log");
+	    return delay;
+	}
+
+	int index = timer.next++;
+	if (timer.times[index] != now() || timer.values[index] != delay)
+	    diverged("a timer interrupt was scheduled differently");
+
+	return timer.values[index];
+    }
+
+    /**
+     * Record or replay a poll of the console for input.
+     *
+     * @param	c	the byte read from the host, or -1 if none was
+     *			available. Ignored while replaying.
+     * @return	the byte the console should receive, or -1 if none.
+     */
+    public int consoleInput(int c) {
+	if (!replaying) {
+	    if (c != -1) {
+		record(typeConsole);
+		ensureRoom(1);
+		buffer[position++] = (byte) c;
+	    }
+	    return c;
+	}
+
+	if (!due(console))
+	    return -1;
+
+	return console.values[console.next++];
+    }
+
+    /**
+     * Record or replay a poll of the network link for an incoming packet.
+     *
+     * @param	packet	the bytes of the packet received from the host, or
+     *			<tt>null</tt> if none arrived. Ignored while
+     *			replaying.
+     * @return	the bytes of the packet the link should receive, or
+     *		<tt>null</tt> if none.
+     */
+    public byte[] networkInput(byte[] packet) {
+	if (!replaying) {
+	    if (packet != null) {
+		record(typeNetwork);
+		writeVarLong(packet.length);
+		for (int i=0; i<packet.length; i++) {
+		    ensureRoom(1);
+		    buffer[position++] = packet[i];
+		}
+	    }
+	    return packet;
+	}
+
+	if (!due(network))
+	    return null;
+
+	return network.data[network.next++];
+    }
+
+    /**
+     * Test whether the next event in a replayed stream is due now. An event
+     * whose time has already passed is also delivered, late, but means the
+     * replay has diverged.
+     */
+    private boolean due(Stream stream) {
+	if (stream.next == stream.count)
+	    return false;
+
+	long time = stream.times[stream.next];
+	if (time > now())
+	    return false;
+
+	if (time < now())
+	    diverged("an input event was delivered late");
+
+	return true;
+    }
+
+    private void diverged(String why) {
+	if (!diverged) {
+	    diverged = true;
+	    System.out.println("\nReplay diverged at time = " + now() + ": "
+			       + why);
+	}
+    }
+
+    private long now() {
+	return privilege.stats.totalTicks;
+    }
+
+    private void startRecording(String fileName) throws IOException {
+	out = new FileOutputStream(fileName);
+
+	buffer = new byte[bufferSize];
+	writeInt(magic);
+	writeLong(Machine.getRandomSeed());
+
+	writer = new Thread(new Runnable() {
+		public void run() { writeLoop(); }
+	    });
+	writer.setDaemon(true);
+	writer.start();
+
+	privilege.addExitNotificationHandler(new Runnable() {
+		public void run() { finishRecording(); }
+	    });
+    }
+
+    /**
+     * Start an event, writing its type and the ticks since the last event.
+     */
+    private void record(byte type) {
+	long time = now();
+
+	ensureRoom(1);
+	buffer[position++] = type;
+	writeVarLong(time - lastTime);
+	lastTime = time;
+    }
+
+    private void writeInt(int value) {
+	for (int shift=24; shift>=0; shift-=8) {
+	    ensureRoom(1);
+	    buffer[position++] = (byte) (value >>> shift);
+	}
+    }
+
+    private void writeLong(long value) {
+	writeInt((int) (value >>> 32));
+	writeInt((int) value);
+    }
+
+    private void writeVarLong(long value) {
+	Lib.assertTrue(value >= 0);
+
+	while (value >= 0x80) {
+	    ensureRoom(1);
+	    buffer[position++] = (byte) (value | 0x80);
+	    value >>>= 7;
+	}
+
+	ensureRoom(1);
+	buffer[position++] = (byte) value;
+    }
+
+    /**
+     * Make sure the buffer has room for the specified number of bytes, handing
+     * it to the writer thread if it is full.
+     */
+    private void ensureRoom(int bytes) {
+	if (position + bytes > buffer.length) {
+	    handOff(buffer, position);
+	    buffer = new byte[bufferSize];
+	    position = 0;
+	}
+    }
+
+    private void handOff(byte[] data, int length) {
+	if (length < data.length) {
+	    byte[] trimmed = new byte[length];
+	    System.arraycopy(data, 0, trimmed, 0, length);
+	    data = trimmed;
+	}
+
+	while (true) {
+	    try {
+		pendingBuffers.put(data);
+		return;
+	    }
+	    catch (InterruptedException e) {
+	    }
+	}
+    }
+
+    private void writeLoop() {
+	try {
+	    while (true) {
+		byte[] data = pendingBuffers.take();
+		if (data.length == 0)
+		    break;
+
+		out.write(data);
+	    }
+	    out.close();
+	}
+	catch (InterruptedException e) {
+	}
+	catch (IOException e) {
+	    System.out.println("\nError writing device log");
+	}
+    }
+
+    /**
+     * Write out the rest of the log, and wait until it is on disk. Called
+     * when Nachos exits.
+     */
+    private void finishRecording() {
+	if (position > 0)
+	    handOff(buffer, position);
+	buffer = new byte[bufferSize];
+	position = 0;
+
+	handOff(new byte[0], 0);
+
+	while (true) {
+	    try {
+		writer.join();
+		return;
+	    }
+	    catch (InterruptedException e) {
+	    }
+	}
+    }
+
+    private void load(String fileName) throws IOException {
+	DataInputStream in = new DataInputStream(
+	    new BufferedInputStream(new FileInputStream(fileName)));
+
+	try {
+	    if (in.readInt() != magic)
+		throw new IOException();
+
+	    randomSeed = in.readLong();
+
+	    long time = 0;
+
+	    while (true) {
+		int type = in.read();
+		if (type == -1)
+		    break;
+
+		time += readVarLong(in);
+
+		switch (type) {
+		case typeTimer:
+		    timer.add(time, (int) readVarLong(in), null);
+		    break;
+		case typeConsole:
+		    console.add(time, in.readUnsignedByte(), null);
+		    break;
+		case typeNetwork:
+		    byte[] packet = new byte[(int) readVarLong(in)];
+		    in.readFully(packet);
+		    network.add(time, 0, packet);
+		    break;
+		default:
+		    throw new IOException();
+		}
+	    }
+	}
+	finally {
+	    in.close();
+	}
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+	long value = 0;
+
+	for (int shift=0; ; shift+=7) {
+	    int b = in.readUnsignedByte();
+	    value |= (long) (b & 0x7F) << shift;
+	    if ((b & 0x80) == 0)
+		return value;
+	}
+    }
+
+    /** The replayed events of one device, in order. */
+    private static class Stream {
+	void add(long time, int value, byte[] bytes) {
+	    if (count == times.length) {
+		long[] newTimes = new long[count*2];
+		int[] newValues = new int[count*2];
+		byte[][] newData = new byte[count*2][];
+		System.arraycopy(times, 0, newTimes, 0, count);
+		System.arraycopy(values, 0, newValues, 0, count);
+		System.arraycopy(data, 0, newData, 0, count);
+		times = newTimes;
+		values = newValues;
+		data = newData;
+	    }
+
+	    times[count] = time;
+	    values[count] = value;
+	    data[count] = bytes;
+	    count++;
+	}
+
+	long[] times = new long[16];
+	int[] values = new int[16];
+	byte[][] data = new byte[16][];
+	int count = 0;
+	/** The next event to deliver. */
+	int next = 0;
+    }
+
+    private Privilege privilege;
+    private boolean replaying;
+    private long randomSeed;
+
+    private Stream timer = new Stream();
+    private Stream console = new Stream();
+    private Stream network = new Stream();
+    private boolean diverged = false;
+
+    private OutputStream out;
+    private Thread writer;
+    /** Full buffers waiting for the writer thread, ended by an empty one. */
+    private BlockingQueue<byte[]> pendingBuffers =
+	new ArrayBlockingQueue<byte[]>(4);
+    private byte[] buffer;
+    private int position = 0;
+    /** The time of the last event recorded. */
+    private long lastTime = 0;
+
+    private static final int magic = 0x4E444C31;
+    private static final int bufferSize = 0x10000;
+
+    private static final byte typeTimer = 1;
+    private static final byte typeConsole = 2;
+    private static final byte typeNetwork = 3;
+}
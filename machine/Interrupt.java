@@ -4,9 +4,7 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -38,6 +36,14 @@ import java.util.SortedSet;
  * simulation (even with randomized time slices), but it wouldn't work on real
  * hardware. But even though Nachos can't always detect when your program
  * would fail in real life, you should still write properly synchronized code.
+ *
+ * <p>
+ * On a machine with more than one processor, each processor runs user code
+ * without holding the kernel lock, counting its own ticks, and returns to the
+ * kernel to handle an exception or when an interrupt might be due. Simulated
+ * time is then the furthest any processor has reached, while
+ * <tt>Stats.userTicks</tt> counts the user ticks of every processor. An
+ * interrupt is handled by whichever processor first reaches its time.
  */
 public final class Interrupt {
     /**
@@ -53,7 +59,10 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
+	pending = new InterruptQueue();
+
+	sliceStarts = new long[Machine.numProcessors()];
+	sliceTCBs = new TCB[Machine.numProcessors()];
     }
 
     /**
@@ -120,29 +129,199 @@ public final class Interrupt {
 	return !enabled;
     }
 
-    private void schedule(long when, String type, Runnable handler) {
+    /**
+     * Skip simulated time forward while there is nothing to run. Called by
+     * the idle thread each time it is about to spin again with an empty ready
+     * queue. Each spin enables interrupts, which advances time by one kernel
+     * tick, so this advances time by as many whole kernel ticks as can pass
+     * before the next pending interrupt is due. The next spin then takes
+     * that interrupt at exactly the time it would have without skipping.
+     * The skipped time is charged as kernel time, as the spins would have
+     * been, and also counted in <tt>Stats.idleTicks</tt>.
+     *
+     * <p>
+     * On a machine with more than one processor, only the first processor
+     * skips time, and only while no processor is running user code. Otherwise
+     * the current processor releases the kernel lock and waits briefly for
+     * other processors to make threads ready.
+     *
+     * <p>
+     * Interrupts must be disabled. When interrupt debugging is on, nothing is
+     * skipped, so that every tick is still traced.
+     */
+    public void idle() {
+	Lib.assertTrue(disabled());
+
+	if (sliceStarts.length > 1 &&
+	    (TCB.currentProcessor() != 0 || usersRunning > 0)) {
+	    TCB tcb = TCB.releaseKernel();
+	    LockSupport.parkNanos(idleNanos);
+	    TCB.acquireKernel(tcb);
+
+	    // another processor may have left interrupts enabled
+	    enabled = false;
+	    return;
+	}
+
+	if (pending.isEmpty() || Lib.test(dbgInt))
+	    return;
+
+	Stats stats = privilege.stats;
+	long ticks = (pending.firstTime() - stats.totalTicks - 1)
+	    / Stats.KernelTick;
+	if (ticks <= 0)
+	    return;
+
+	long skipped = ticks * Stats.KernelTick;
+
+	stats.kernelTicks += skipped;
+	stats.totalTicks += skipped;
+	stats.idleTicks += skipped;
+    }
+
+    private long schedule(long when, String type, Runnable handler) {
 	Lib.assertTrue(when>0);
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
 	Lib.debug(dbgInt,
 		  "Scheduling the " + type +
 		  " interrupt handler at time = " + time);
 
-	pending.add(toOccur);
+	long handle = pending.add(time, type, handler);
+
+	if (time < nextDeadline)
+	    nextDeadline = time;
+
+	return handle;
+    }
+
+    private boolean cancel(long handle) {
+	if (!pending.cancel(handle))
+	    return false;
+
+	Lib.debug(dbgInt, "Cancelled a pending interrupt");
+
+	updateDeadline();
+	return true;
+    }
+
+    /**
+     * Return the types of the pending interrupts, in the order they will
+     * occur, so that <tt>Checkpoint</tt> can save them.
+     *
+     * @return	the types of the pending interrupts.
+     */
+    String[] pendingTypes() {
+	long[] handles = pending.handles();
+
+	String[] types = new String[handles.length];
+	for (int i=0; i<handles.length; i++)
+	    types[i] = pending.type(handles[i]);
+
+	return types;
+    }
+
+    /**
+     * Return the times of the pending interrupts, in the order they will
+     * occur, so that <tt>Checkpoint</tt> can save them.
+     *
+     * @return	the times of the pending interrupts.
+     */
+    long[] pendingTimes() {
+	long[] handles = pending.handles();
+
+	long[] times = new long[handles.length];
+	for (int i=0; i<handles.length; i++)
+	    times[i] = pending.time(handles[i]);
+
+	return times;
+    }
+
+    /**
+     * Move simulated time to the time of a restored checkpoint. The handlers
+     * of pending interrupts cannot be saved, so each one pending now takes
+     * the time of the first interrupt of the same type pending in the
+     * checkpoint, and any without a match keep their distance from the
+     * current time. The caller then sets <tt>Stats.totalTicks</tt> to the new
+     * time.
+     *
+     * @param	time	the new simulated time.
+     * @param	types	the types of the interrupts pending in the checkpoint.
+     * @param	times	their times.
+     */
+    void restoreTime(long time, String[] types, long[] times) {
+	long shift = time - privilege.stats.totalTicks;
+	boolean[] matched = new boolean[types.length];
+
+	long[] handles = pending.handles();
+	for (int i=0; i<handles.length; i++) {
+	    String type = pending.type(handles[i]);
+	    long newTime = pending.time(handles[i]) + shift;
+
+	    for (int j=0; j<types.length; j++) {
+		if (!matched[j] && types[j].equals(type)) {
+		    matched[j] = true;
+		    newTime = times[j];
+		    break;
+		}
+	    }
+
+	    pending.reschedule(handles[i], newTime);
+	}
+
+	updateDeadline();
+    }
+
+    private long leaveKernel(int processor) {
+	long now = privilege.stats.totalTicks;
+
+	sliceStarts[processor] = now;
+	usersRunning++;
+
+	// run until the earliest pending interrupt could be due
+	long limit = (nextDeadline - now + Stats.UserTick - 1) / Stats.UserTick;
+
+	sliceTCBs[processor] = TCB.releaseKernel();
+	return Math.max(limit, 1);
+    }
+
+    private void enterKernel(int processor, long instructions) {
+	TCB.acquireKernel(sliceTCBs[processor]);
+	sliceTCBs[processor] = null;
+	usersRunning--;
+
+	Stats stats = privilege.stats;
+	stats.userTicks += Stats.UserTick * instructions;
+
+	long now = sliceStarts[processor] + Stats.UserTick * instructions;
+	if (now > stats.totalTicks)
+	    stats.totalTicks = now;
+
+	// user code runs with interrupts enabled
+	enabled = true;
     }
 
     private void tick(boolean inKernelMode) {
+	tick(inKernelMode, 1);
+    }
+
+    private void tick(boolean inKernelMode, int count) {
 	Stats stats = privilege.stats;
 
 	if (inKernelMode) {
-	    stats.kernelTicks += Stats.KernelTick;
-	    stats.totalTicks += Stats.KernelTick;
+	    stats.kernelTicks += Stats.KernelTick * count;
+	    stats.totalTicks += Stats.KernelTick * count;
 	}
 	else {
-	    stats.userTicks += Stats.UserTick;
-	    stats.totalTicks += Stats.UserTick;
+	    stats.userTicks += Stats.UserTick * count;
+	    stats.totalTicks += Stats.UserTick * count;
+	}
+
+	// nothing can be due before the earliest pending interrupt
+	if (stats.totalTicks < nextDeadline) {
+	    enabled = true;
+	    return;
 	}
 
 	if (Lib.test(dbgInt))
@@ -151,6 +330,22 @@ public final class Interrupt {
 	enabled = false;
 	checkIfDue();
 	enabled = true;
+
+	updateDeadline();
+    }
+
+    /**
+     * Recompute <tt>nextDeadline</tt> from the pending interrupts. When
+     * interrupt debugging is on, every tick must print the pending list, so
+     * the deadline is kept at zero.
+     */
+    private void updateDeadline() {
+	if (Lib.test(dbgInt))
+	    nextDeadline = 0;
+	else if (pending.isEmpty())
+	    nextDeadline = Long.MAX_VALUE;
+	else
+	    nextDeadline = pending.firstTime();
     }
 
     private void checkIfDue() {
@@ -164,24 +359,22 @@ public final class Interrupt {
 	if (pending.isEmpty())
 	    return;
 
-	if (((PendingInterrupt) pending.first()).time > time)
+	if (pending.firstTime() > time)
 	    return;
 
 	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
-
-	    Lib.assertTrue(next.time <= time);
+	while (!pending.isEmpty() && pending.firstTime() <= time) {
+	    String type = pending.firstType();
+	    Runnable handler = pending.firstHandler();
+	    pending.removeFirst();
 
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
-	    Lib.debug(dbgInt, "  " + next.type);
+	    Lib.debug(dbgInt, "  " + type);
 			
-	    next.handler.run();
+	    handler.run();
 	}
 
 	Lib.debug(dbgInt, "  (end of list)");
@@ -192,62 +385,57 @@ public final class Interrupt {
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
-	    System.out.println("  " + toOccur.type +
-			       ", scheduled at " + toOccur.time);
-	}
+	pending.print();
 
 	System.out.println("  (end of list)");
     }
 
-    private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
-	    this.type = type;
-	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
-	}
-
-	public int compareTo(Object o) {
-	    PendingInterrupt toOccur = (PendingInterrupt) o;
-
-	    // can't return 0 for unequal objects, so check all fields
-	    if (time < toOccur.time)
-		return -1;
-	    else if (time > toOccur.time)
-		return 1;
-	    else if (id < toOccur.id)
-		return -1;
-	    else if (id > toOccur.id)
-		return 1;
-	    else
-		return 0;
-	}
-
-	long time;
-	String type;
-	Runnable handler;
-
-	private long id;
-    }
-    
-    private long numPendingInterruptsCreated = 0;
-
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+    private InterruptQueue pending;
+    /**
+     * The time of the earliest pending interrupt, or earlier. Ticks before
+     * this time skip the pending interrupt set entirely.
+     */
+    private long nextDeadline = 0;
+
+    /**
+     * For each processor running user code, the time at which it left the
+     * kernel, and the TCB to make current when it returns.
+     */
+    private long[] sliceStarts;
+    private TCB[] sliceTCBs;
+    /** The number of processors running user code. */
+    private int usersRunning = 0;
+    /** How long an idle processor waits before looking for work again. */
+    private static final long idleNanos = 50000;
 
     private static final char dbgInt = 'i';
 
     private class InterruptPrivilege implements Privilege.InterruptPrivilege {
-	public void schedule(long when, String type, Runnable handler) {
-	    Interrupt.this.schedule(when, type, handler);
+	public long schedule(long when, String type, Runnable handler) {
+	    return Interrupt.this.schedule(when, type, handler);
+	}
+
+	public boolean cancel(long handle) {
+	    return Interrupt.this.cancel(handle);
 	}
 
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public void tick(boolean inKernelMode, int count) {
+	    Interrupt.this.tick(inKernelMode, count);
+	}
+
+	public long leaveKernel(int processor) {
+	    return Interrupt.this.leaveKernel(processor);
+	}
+
+	public void enterKernel(int processor, long instructions) {
+	    Interrupt.this.enterKernel(processor, instructions);
+	}
     }
 }
@@ -0,0 +1,444 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+/**
+ * The queue of pending interrupts kept by <tt>Interrupt</tt>. This is a
+ * binary min-heap over a pool of reusable event slots, held entirely in
+ * primitive arrays, so scheduling and dispatching an interrupt allocate
+ * nothing once the pool has grown large enough. Interrupts due at the same
+ * time are dispatched in the order they were scheduled.
+ *
+ * <p>
+ * Each scheduled interrupt is identified by a handle, which combines its slot
+ * with a generation count for that slot, so a handle that outlives its
+ * interrupt can never cancel a later one that reuses the slot.
+ */
+final class InterruptQueue {
+    /**
+     * Allocate a new, empty interrupt queue.
+     */
+    InterruptQueue() {
+	this(16);
+    }
+
+    /**
+     * Allocate a new, empty interrupt queue with room for the specified
+     * number of pending interrupts before it must grow.
+     *
+     * @param	capacity	the initial capacity.
+     */
+    InterruptQueue(int capacity) {
+	Lib.assertTrue(capacity > 0);
+
+	allocate(capacity);
+    }
+
+    /**
+     * Test whether there are no pending interrupts.
+     *
+     * @return	<tt>true</tt> if the queue is empty.
+     */
+    boolean isEmpty() {
+	return size == 0;
+    }
+
+    /**
+     * Return the number of pending interrupts.
+     *
+     * @return	the number of pending interrupts.
+     */
+    int size() {
+	return size;
+    }
+
+    /**
+     * Add an interrupt to the queue.
+     *
+     * @param	time	the time at which the interrupt should occur.
+     * @param	type	a name for the type of interrupt.
+     * @param	handler	the interrupt handler to call.
+     * @return	a handle that can be passed to <tt>cancel()</tt>.
+     */
+    long add(long time, String type, Runnable handler) {
+	Lib.assertTrue(handler != null);
+
+	if (freeSlot == -1)
+	    allocate(times.length * 2);
+
+	int slot = freeSlot;
+	freeSlot = positions[slot];
+
+	times[slot] = time;
+	sequences[slot] = nextSequence++;
+	types[slot] = type;
+	handlers[slot] = handler;
+
+	heap[size] = slot;
+	positions[slot] = size;
+	size++;
+	siftUp(size-1);
+
+	return ((long) generations[slot] << 32) | slot;
+    }
+
+    /**
+     * Remove a pending interrupt from the queue.
+     *
+     * @param	handle	the handle returned when the interrupt was added.
+     * @return	<tt>true</tt> if the interrupt was still pending.
+     */
+    boolean cancel(long handle) {
+	int slot = (int) handle;
+
+	if (slot < 0 || slot >= times.length ||
+	    generations[slot] != (int) (handle >>> 32) ||
+	    handlers[slot] == null)
+	    return false;
+
+	remove(positions[slot]);
+	return true;
+    }
+
+    /**
+     * Return the time of the earliest pending interrupt. The queue must not be
+     * empty.
+     *
+     * @return	the time of the earliest pending interrupt.
+     */
+    long firstTime() {
+	Lib.assertTrue(size > 0);
+
+	return times[heap[0]];
+    }
+
+    /**
+     * Return the type of the earliest pending interrupt. The queue must not be
+     * empty.
+     *
+     * @return	the type of the earliest pending interrupt.
+     */
+    String firstType() {
+	Lib.assertTrue(size > 0);
+
+	return types[heap[0]];
+    }
+
+    /**
+     * Return the handler of the earliest pending interrupt. The queue must
+     * not be empty.
+     *
+     * @return	the handler of the earliest pending interrupt.
+     */
+    Runnable firstHandler() {
+	Lib.assertTrue(size > 0);
+
+	return handlers[heap[0]];
+    }
+
+    /**
+     * Remove the earliest pending interrupt. The queue must not be empty.
+     */
+    void removeFirst() {
+	Lib.assertTrue(size > 0);
+
+	remove(0);
+    }
+
+    /**
+     * Return the handles of the pending interrupts, in the order they will
+     * occur.
+     *
+     * @return	the handles of the pending interrupts.
+     */
+    long[] handles() {
+	int[] order = order();
+
+	long[] handles = new long[size];
+	for (int i=0; i<size; i++)
+	    handles[i] = ((long) generations[order[i]] << 32) | order[i];
+
+	return handles;
+    }
+
+    /**
+     * Return the time of a pending interrupt.
+     *
+     * @param	handle	the handle returned when the interrupt was added.
+     * @return	the time at which the interrupt will occur.
+     */
+    long time(long handle) {
+	return times[pendingSlot(handle)];
+    }
+
+    /**
+     * Return the type of a pending interrupt.
+     *
+     * @param	handle	the handle returned when the interrupt was added.
+     * @return	the type of the interrupt.
+     */
+    String type(long handle) {
+	return types[pendingSlot(handle)];
+    }
+
+    /**
+     * Move a pending interrupt to a different time. The interrupt keeps its
+     * handle, and its place among interrupts due at the same time.
+     *
+     * @param	handle	the handle returned when the interrupt was added.
+     * @param	time	the new time at which the interrupt should occur.
+     */
+    void reschedule(long handle, long time) {
+	int slot = pendingSlot(handle);
+
+	times[slot] = time;
+
+	int position = positions[slot];
+	siftUp(position);
+	if (heap[position] == slot)
+	    siftDown(position);
+    }
+
+    /**
+     * Print the pending interrupts in the order they will occur.
+     */
+    void print() {
+	int[] order = order();
+
+	for (int i=0; i<size; i++) {
+	    System.out.println("  " + types[order[i]] +
+			       ", scheduled at " + times[order[i]]);
+	}
+    }
+
+    /**
+     * Return the pending slots, in the order they will occur.
+     */
+    private int[] order() {
+	int[] order = new int[size];
+	System.arraycopy(heap, 0, order, 0, size);
+
+	for (int i=1; i<size; i++) {
+	    int slot = order[i];
+	    int j = i;
+	    for (; j>0 && before(slot, order[j-1]); j--)
+		order[j] = order[j-1];
+	    order[j] = slot;
+	}
+
+	return order;
+    }
+
+    /**
+     * Return the slot of a pending interrupt, which must still be pending.
+     */
+    private int pendingSlot(long handle) {
+	int slot = (int) handle;
+
+	Lib.assertTrue(slot >= 0 && slot < times.length &&
+		       generations[slot] == (int) (handle >>> 32) &&
+		       handlers[slot] != null);
+
+	return slot;
+    }
+
+    private void remove(int position) {
+	int slot = heap[position];
+
+	// fill the hole with the last slot, then restore the heap order
+	size--;
+	if (position != size) {
+	    int moved = heap[size];
+	    heap[position] = moved;
+	    positions[moved] = position;
+
+	    siftUp(position);
+	    if (heap[position] == moved)
+		siftDown(position);
+	}
+
+	// return the slot to the free list
+	types[slot] = null;
+	handlers[slot] = null;
+	generations[slot]++;
+	positions[slot] = freeSlot;
+	freeSlot = slot;
+    }
+
+    private boolean before(int a, int b) {
+	if (times[a] != times[b])
+	    return times[a] < times[b];
+	else
+	    return sequences[a] < sequences[b];
+    }
+
+    private void siftUp(int position) {
+	int slot = heap[position];
+
+	while (position > 0) {
+	    int parent = (position-1) / 2;
+	    if (!before(slot, heap[parent]))
+		break;
+
+	    heap[position] = heap[parent];
+	    positions[heap[position]] = position;
+	    position = parent;
+	}
+
+	heap[position] = slot;
+	positions[slot] = position;
+    }
+
+    private void siftDown(int position) {
+	int slot = heap[position];
+
+	while (true) {
+	    int child = position*2 + 1;
+	    if (child >= size)
+		break;
+
+	    if (child+1 < size && before(heap[child+1], heap[child]))
+		child++;
+
+	    if (!before(heap[child], slot))
+		break;
+
+	    heap[position] = heap[child];
+	    positions[heap[position]] = position;
+	    position = child;
+	}
+
+	heap[position] = slot;
+	positions[slot] = position;
+    }
+
+    /**
+     * Grow the slot pool and heap to the specified capacity, adding the new
+     * slots to the free list.
+     */
+    private void allocate(int capacity) {
+	int oldCapacity = (times == null) ? 0 : times.length;
+
+	times = copyOf(times, capacity);
+	sequences = copyOf(sequences, capacity);
+	generations = copyOf(generations, capacity);
+	positions = copyOf(positions, capacity);
+	heap = copyOf(heap, capacity);
+
+	String[] newTypes = new String[capacity];
+	Runnable[] newHandlers = new Runnable[capacity];
+	if (oldCapacity > 0) {
+	    System.arraycopy(types, 0, newTypes, 0, oldCapacity);
+	    System.arraycopy(handlers, 0, newHandlers, 0, oldCapacity);
+	}
+	types = newTypes;
+	handlers = newHandlers;
+
+	for (int slot=capacity-1; slot>=oldCapacity; slot--) {
+	    positions[slot] = freeSlot;
+	    freeSlot = slot;
+	}
+    }
+
+    private static long[] copyOf(long[] array, int capacity) {
+	long[] result = new long[capacity];
+	if (array != null)
+	    System.arraycopy(array, 0, result, 0, array.length);
+	return result;
+    }
+
+    private static int[] copyOf(int[] array, int capacity) {
+	int[] result = new int[capacity];
+	if (array != null)
+	    System.arraycopy(array, 0, result, 0, array.length);
+	return result;
+    }
+
+    /**
+     * Measure schedule and dispatch throughput with the specified number of
+     * interrupts kept pending, and print the results. This is the pattern the
+     * simulation produces: each dispatched interrupt is replaced by a new one
+     * a short random delay later.
+     *
+     * @param	pending		the number of interrupts to keep pending.
+     * @param	operations	the number of dispatches to time.
+     */
+    static void benchmark(int pending, int operations) {
+	InterruptQueue queue = new InterruptQueue();
+	java.util.Random random = new java.util.Random(0);
+	Runnable handler = new Runnable() {
+		public void run() {
+		}
+	    };
+
+	long time = 0;
+	for (int i=0; i<pending; i++)
+	    queue.add(time + 1 + random.nextInt(1000), "bench", handler);
+
+	// warm up, then time
+	for (int round=0; round<2; round++) {
+	    long start = System.nanoTime();
+
+	    for (int i=0; i<operations; i++) {
+		time = queue.firstTime();
+		queue.firstHandler().run();
+		queue.removeFirst();
+		queue.add(time + 1 + random.nextInt(1000), "bench", handler);
+	    }
+
+	    long elapsed = System.nanoTime() - start;
+	    if (round == 1) {
+		System.out.println("InterruptQueue: " + pending + " pending, "
+				   + (elapsed / operations) + " ns per "
+				   + "dispatch and reschedule");
+	    }
+	}
+
+	// cancellation: retract half the interrupts, then drain the rest
+	long[] handles = new long[pending];
+	InterruptQueue cancelQueue = new InterruptQueue();
+	for (int i=0; i<pending; i++)
+	    handles[i] = cancelQueue.add(random.nextInt(1000), "bench", handler);
+	for (int i=0; i<pending; i+=2)
+	    Lib.assertTrue(cancelQueue.cancel(handles[i]));
+	Lib.assertTrue(!cancelQueue.cancel(handles[0]));
+
+	long last = Long.MIN_VALUE;
+	while (!cancelQueue.isEmpty()) {
+	    Lib.assertTrue(cancelQueue.firstTime() >= last);
+	    last = cancelQueue.firstTime();
+	    cancelQueue.removeFirst();
+	}
+    }
+
+    /**
+     * Run the interrupt queue benchmark from the command line, outside of
+     * Nachos, for example with
+     * <tt>java nachos.machine.InterruptQueue 10000</tt>.
+     *
+     * @param	args	the numbers of pending interrupts to try.
+     */
+    public static void main(String[] args) {
+	if (args.length == 0)
+	    args = new String[] { "10", "1000", "10000" };
+
+	for (int i=0; i<args.length; i++)
+	    benchmark(Integer.parseInt(args[i]), 2000000);
+    }
+
+    private long[] times, sequences;
+    private int[] generations;
+    /**
+     * The heap position of each pending slot, or the next free slot for each
+     * free one.
+     */
+    private int[] positions;
+    private String[] types;
+    private Runnable[] handlers;
+
+    /** The pending slots, in heap order. */
+    private int[] heap;
+    private int size = 0;
+    private int freeSlot = -1;
+    private long nextSequence = 0;
+}
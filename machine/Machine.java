@@ -100,6 +100,24 @@ public final class Machine {
 	terminate();
     }
 
+    /**
+     * Count a real-time job that has finished in the statistics printed when
+     * Nachos halts.
+     *
+     * @param	missedDeadline	<tt>true</tt> if the job finished after its
+     *				deadline.
+     * @param	overranBudget	<tt>true</tt> if the job used up its budget
+     *				of processor time before it finished.
+     */
+    public static void recordRealTimeJob(boolean missedDeadline,
+					 boolean overranBudget) {
+	stats.numRealTimeJobs++;
+	if (missedDeadline)
+	    stats.numDeadlinesMissed++;
+	if (overranBudget)
+	    stats.numBudgetOverruns++;
+    }
+
     /**
      * Return an array containing all command line arguments.
      *
@@ -117,7 +135,11 @@ public final class Machine {
 	for (int i=0; i<args.length; ) {
 	    String arg = args[i++];
 	    if (arg.length() > 0 && arg.charAt(0) == '-') {
-		if (arg.equals("-d")) {
+		if (arg.equals("-c")) {
+		    Lib.assertTrue(i < args.length, "switch without argument");
+		    checkpointFileName = args[i++];
+		}
+		else if (arg.equals("-d")) {
 		    Lib.assertTrue(i < args.length, "switch without argument");
 		    Lib.enableDebugFlags(args[i++]);
 		}
@@ -125,6 +147,10 @@ public final class Machine {
 		    System.out.print(help);
 		    System.exit(1);
 		}
+		else if (arg.equals("-l")) {
+		    Lib.assertTrue(i < args.length, "switch without argument");
+		    recordFileName = args[i++];
+		}
 		else if (arg.equals("-m")) {
 		    Lib.assertTrue(i < args.length, "switch without argument");
 		    try {
@@ -134,6 +160,14 @@ public final class Machine {
 			Lib.assertNotReached("bad value for -m switch");
 		    }
 		}
+		else if (arg.equals("-p")) {
+		    Lib.assertTrue(i < args.length, "switch without argument");
+		    replayFileName = args[i++];
+		}
+		else if (arg.equals("-r")) {
+		    Lib.assertTrue(i < args.length, "switch without argument");
+		    restoreFileName = args[i++];
+		}
 		else if (arg.equals("-s")) {
 		    Lib.assertTrue(i < args.length, "switch without argument");
 		    try {
@@ -162,12 +196,29 @@ public final class Machine {
 		}
 	    }
 	}
-
-	Lib.seedRandom(randomSeed);
     }
 
     private static void createDevices() {
+	if (Config.getBoolean("Machine.processor")) {
+	    numProcessors = Config.getInteger("Machine.numProcessors", 1);
+	    Lib.assertTrue(numProcessors > 0,
+			   "Machine.numProcessors must be positive");
+	}
+
 	interrupt = new Interrupt(privilege);
+
+	Lib.assertTrue(recordFileName == null || replayFileName == null,
+		       "cannot record and replay a device log at once");
+	if (recordFileName != null)
+	    deviceLog = new DeviceLog(privilege, recordFileName, false);
+	else if (replayFileName != null)
+	    deviceLog = new DeviceLog(privilege, replayFileName, true);
+
+	// a replayed run must make the same random choices as the recording
+	if (deviceLog != null && deviceLog.isReplaying())
+	    randomSeed = deviceLog.getRandomSeed();
+	Lib.seedRandom(randomSeed);
+
 	timer = new Timer(privilege);
 
 	if (Config.getBoolean("Machine.bank"))
@@ -177,6 +228,13 @@ public final class Machine {
 	    if (numPhysPages == -1)
 		numPhysPages = Config.getInteger("Processor.numPhysPages");
 	    processor = new Processor(privilege, numPhysPages);
+
+	    processors = new Processor[numProcessors];
+	    processors[0] = processor;
+	    for (int i=1; i<numProcessors; i++)
+		processors[i] = new Processor(privilege, processor, i);
+
+	    checkpoint = new Checkpoint(privilege);
 	}				      
 
 	if (Config.getBoolean("Machine.console"))
@@ -301,6 +359,15 @@ public final class Machine {
      */
     public static Interrupt interrupt() { return interrupt; }
     
+    /**
+     * Return the device log, which records device input and timing, or
+     * replays it.
+     *
+     * @return	the device log, or <tt>null</tt> if devices are neither being
+     *		recorded nor replayed.
+     */
+    public static DeviceLog deviceLog() { return deviceLog; }
+
     /**
      * Return the hardware timer.
      *
@@ -317,12 +384,57 @@ public final class Machine {
     public static ElevatorBank bank() { return bank; }
     
     /**
-     * Return the MIPS processor.
+     * Return the MIPS processor that the current thread is running on.
      *
      * @return	the MIPS processor, or <tt>null</tt> if it is not present.
      */     
-    public static Processor processor() { return processor; }
+    public static Processor processor() {
+	if (numProcessors == 1)
+	    return processor;
+
+	return processors[TCB.currentProcessor()];
+    }
+
+    /**
+     * Return the specified MIPS processor.
+     *
+     * @param	number	the processor number, from 0 to
+     *			<tt>numProcessors()-1</tt>.
+     * @return	the MIPS processor, or <tt>null</tt> if it is not present.
+     */
+    public static Processor processor(int number) {
+	Lib.assertTrue(number >= 0 && number < numProcessors);
+
+	return (processors == null) ? null : processors[number];
+    }
+
+    /**
+     * Return the number of MIPS processors, set by
+     * <tt>Machine.numProcessors</tt>. This is 1 unless the processor is
+     * present and more are configured.
+     *
+     * @return	the number of processors.
+     */
+    public static int numProcessors() { return numProcessors; }
+
+    /**
+     * Return the number of the processor that the current thread is running
+     * on.
+     *
+     * @return	the current processor number, from 0 to
+     *		<tt>numProcessors()-1</tt>.
+     */
+    public static int processorNumber() { return TCB.currentProcessor(); }
     
+    /**
+     * Return the checkpoint device, which saves and restores the state of the
+     * machine.
+     *
+     * @return	the checkpoint device, or <tt>null</tt> if the processor is not
+     *		present.
+     */
+    public static Checkpoint checkpoint() { return checkpoint; }
+
     /**
      * Return the hardware console.
      *
@@ -352,9 +464,13 @@ public final class Machine {
     public static AutoGrader autoGrader() { return autoGrader; }
 
     private static Interrupt interrupt = null;
+    private static DeviceLog deviceLog = null;
     private static Timer timer = null;
     private static ElevatorBank bank = null;
     private static Processor processor = null;
+    private static Processor[] processors = null;
+    private static int numProcessors = 1;
+    private static Checkpoint checkpoint = null;
     private static SerialConsole console = null;
     private static FileSystem stubFileSystem = null;
     private static NetworkLink networkLink = null;
@@ -379,6 +495,37 @@ public final class Machine {
 
     private static String shellProgramName = null;
 
+    /**
+     * Return the name of the file a user-programming kernel should write a
+     * checkpoint to, given by the <tt>-c</tt> switch.
+     *
+     * @return	the name of the checkpoint file to write, or <tt>null</tt> if
+     *		no checkpoint should be taken.
+     *
+     * @see	nachos.machine.Checkpoint#save
+     */
+    public static String getCheckpointFileName() {
+	return checkpointFileName;
+    }
+
+    /**
+     * Return the name of the checkpoint file a user-programming kernel should
+     * restore, given by the <tt>-r</tt> switch. A kernel restoring a
+     * checkpoint resumes the saved process instead of running the shell
+     * program.
+     *
+     * @return	the name of the checkpoint file to restore, or <tt>null</tt> if
+     *		the kernel should start normally.
+     *
+     * @see	nachos.machine.Checkpoint#restore
+     */
+    public static String getRestoreFileName() {
+	return restoreFileName;
+    }
+
+    private static String checkpointFileName = null;
+    private static String restoreFileName = null;
+
     /**
      * Return the name of the process class that the kernel should use. In
      * the multi-programming project, returns
@@ -410,8 +557,20 @@ public final class Machine {
 
     private static Stats stats = new Stats();
 
+    /**
+     * Return the seed given to the random number generator, so that a device
+     * log can record it.
+     *
+     * @return	the random seed.
+     */
+    static long getRandomSeed() {
+	return randomSeed;
+    }
+
     private static int numPhysPages = -1;
     private static long randomSeed = 0;
+    private static String recordFileName = null;
+    private static String replayFileName = null;
 
     private static File baseDirectory, nachosDirectory, testDirectory;
     private static String configFileName = "nachos.conf";
@@ -420,15 +579,30 @@ public final class Machine {
 	"\n" +
 	"Options:\n" +
 	"\n" +
+	"\t-c <checkpoint file>\n" +
+	"\t\tWrite a checkpoint of the running user program, once\n" +
+	"\t\tKernel.checkpointTicks have passed\n" +
+	"\n" +
 	"\t-d <debug flags>\n" +
 	"\t\tEnable some debug flags, e.g. -d ti\n" +
 	"\n" +
 	"\t-h\n" +
 	"\t\tPrint this help message.\n" +
 	"\n" +
+	"\t-l <log file>\n" +
+	"\t\tRecord device input and timing to a log file\n" +
+	"\n" +
 	"\t-m <pages>\n" +
 	"\t\tSpecify how many physical pages of memory to simulate.\n" +
 	"\n" +
+	"\t-p <log file>\n" +
+	"\t\tReplay device input and timing from a log file recorded\n" +
+	"\t\twith -l, ignoring the -s switch\n" +
+	"\n" +
+	"\t-r <checkpoint file>\n" +
+	"\t\tResume the user program saved in a checkpoint, instead of\n" +
+	"\t\trunning the shell program\n" +
+	"\n" +
 	"\t-s <seed>\n" +
 	"\t\tSpecify the seed for the random number generator (seed is a\n" +
 	"\t\tlong).\n" +
@@ -163,10 +163,22 @@ public class NetworkLink {
     private synchronized void receiveInterrupt() {
 	Lib.assertTrue(incomingPacket == null);
 
+	byte[] packetBytes = incomingBytes;
+
+	// a replayed packet arrives when the log says, whatever the host does
+	DeviceLog log = Machine.deviceLog();
+	if (log != null)
+	    packetBytes = log.networkInput(packetBytes);
+
 	if (incomingBytes != null) {
+	    incomingBytes = null;
+	    notify();
+	}
+
+	if (packetBytes != null) {
 	    if (Machine.autoGrader().canReceivePacket(privilege)) {
 		try {
-		    incomingPacket = new Packet(incomingBytes);
+		    incomingPacket = new Packet(packetBytes);
 
 		    privilege.stats.numPacketsReceived++;
 		}
@@ -174,9 +186,6 @@ public class NetworkLink {
 		}
 	    }
 
-	    incomingBytes = null;
-	    notify();
-
 	    if (incomingPacket == null)
 		scheduleReceiveInterrupt();
 	    else if (receiveInterruptHandler != null)
@@ -4,6 +4,11 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -29,10 +34,32 @@ public final class Processor {
      *				attach.
      */
     public Processor(Privilege privilege, int numPhysPages) {
-	System.out.print(" processor");
+	this(privilege, numPhysPages, null, 0);
+    }
+
+    /**
+     * Allocate another MIPS processor for a machine with more than one,
+     * sharing the physical memory of the first. Each processor has its own
+     * registers, TLB, and caches of translations and predecoded code.
+     *
+     * @param	privilege      	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	first		the first processor.
+     * @param	number		the number of this processor.
+     */
+    Processor(Privilege privilege, Processor first, int number) {
+	this(privilege, first.numPhysPages, first, number);
+    }
+
+    private Processor(Privilege privilege, int numPhysPages, Processor first,
+		      int number) {
+	if (first == null) {
+	    System.out.print(" processor");
+	    privilege.processor = new ProcessorPrivilege();
+	}
 
 	this.privilege = privilege;
-	privilege.processor = new ProcessorPrivilege();
+	this.number = number;
 
 	Class<?> clsKernel = Lib.loadClass(Config.getString("Kernel.kernel"));
 	Class<?> clsVMKernel = Lib.tryLoadClass("nachos.vm.VMKernel");
@@ -45,16 +72,69 @@ public final class Processor {
 	for (int i=0; i<numUserRegisters; i++)
 	    registers[i] = 0;
 
-	mainMemory = new byte[pageSize * numPhysPages];
+	Lib.assertTrue(numPhysPages > 0 &&
+		       numPhysPages <= Integer.MAX_VALUE / pageSize);
+	memorySize = pageSize * numPhysPages;
+
+	if (first == null) {
+	    memoryChunks =
+		new ByteBuffer[(memorySize + chunkSize - 1) / chunkSize];
+	}
+	else {
+	    // allocate it all now, so processors never race to allocate chunks
+	    mainMemory = first.getMemory();
+	    memoryChunks = first.memoryChunks;
+	}
+	codePages = new CodePage[numPhysPages];
 
 	if (usingTLB) {
+	    if (Config.getBoolean("Processor.variableTLB", false)) {
+		tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+		tlbAssociativity =
+		    Config.getInteger("Processor.tlbAssociativity", tlbSize);
+	    }
+	    else {
+		tlbAssociativity = tlbSize;
+	    }
+
+	    Lib.assertTrue(tlbSize > 0 && (tlbSize & (tlbSize-1)) == 0,
+			   "Processor.tlbSize must be a power of two");
+	    Lib.assertTrue(tlbAssociativity > 0 &&
+			   tlbAssociativity <= tlbSize &&
+			   (tlbAssociativity & (tlbAssociativity-1)) == 0,
+			   "Processor.tlbAssociativity must be a power of two "
+			   + "no larger than Processor.tlbSize");
+	    
 	    translations = new TranslationEntry[tlbSize];
 	    for (int i=0; i<tlbSize; i++)
 		translations[i] = new TranslationEntry();
+
+	    tlbBuckets = new int[tlbSize];
+	    tlbNext = new int[tlbSize];
+	    for (int i=0; i<tlbSize; i++)
+		tlbBuckets[i] = -1;
 	}
 	else {
 	    translations = null;
 	}
+
+	flushTranslationCache();
+
+	String engineName = Config.getString("Processor.engine", "interpreter");
+	if (engineName.equals("interpreter"))
+	    engine = engineInterpreter;
+	else if (engineName.equals("threaded"))
+	    engine = engineThreaded;
+	else if (engineName.equals("tiered"))
+	    engine = engineTiered;
+	else
+	    Lib.assertNotReached("unknown Processor.engine: " + engineName);
+
+	if (engine == engineTiered) {
+	    translationThreshold =
+		Config.getInteger("Processor.translationThreshold", 50);
+	    translator = new BlockTranslator(MethodHandles.lookup());
+	}
     }
 
     /**
@@ -91,6 +171,18 @@ public final class Processor {
 
 	Machine.autoGrader().runProcessor(privilege);
 
+	if (Machine.numProcessors() > 1)
+	    runParallel();
+
+	// only the instrumented loop below can trace or disassemble
+	if (!Lib.test(dbgProcessor) && !Lib.test(dbgDisassemble) &&
+	    !Lib.test(dbgFullDisassemble)) {
+	    if (engine == engineInterpreter)
+		runFast();
+	    else
+		runThreaded();
+	}
+
 	Instruction inst = new Instruction();
 	
 	while (true) {
@@ -105,6 +197,144 @@ public final class Processor {
 	}
     }
 
+    /**
+     * Execute instructions one at a time, like the instrumented loop in
+     * <tt>run()</tt>, but using predecoded operations and with no tracing or
+     * disassembly. Simulated time advances and interrupts are checked after
+     * every instruction, so the results are identical to those of the
+     * instrumented loop. Never returns.
+     */
+    private void runFast() {
+	while (true) {
+	    try {
+		int paddr = translate(registers[regPC], 4, false);
+		codePage(paddr / pageSize).op(paddr % pageSize).execute();
+	    }
+	    catch (MipsException e) {
+		e.handle();
+	    }
+
+	    privilege.interrupt.tick(false);
+	}
+    }
+
+    /**
+     * Execute instructions on a machine with more than one processor. Each
+     * processor runs user code without holding the kernel lock, so user
+     * programs on different processors run in parallel, and takes the lock
+     * only to handle an exception or when an interrupt might be due. The
+     * threaded and tiered engines are not used. Never returns.
+     */
+    private void runParallel() {
+	Processor processor = this;
+
+	while (true) {
+	    processor.runSlice();
+
+	    // the thread may have been switched out and resumed elsewhere
+	    processor = Machine.processor();
+	}
+    }
+
+    /**
+     * Run user instructions on this processor until one causes an exception
+     * or an interrupt might be due, then return to the kernel to handle it.
+     * Simulated time advances and interrupts are checked as if the kernel had
+     * ticked after every instruction.
+     */
+    private void runSlice() {
+	Instruction inst = null;
+	if (Lib.test(dbgProcessor) || Lib.test(dbgDisassemble) ||
+	    Lib.test(dbgFullDisassemble))
+	    inst = new Instruction();
+
+	long limit = privilege.interrupt.leaveKernel(number);
+	long executed = 0;
+	boolean trapped = false;
+
+	try {
+	    while (executed < limit) {
+		if (inst != null) {
+		    inst.run();
+		}
+		else {
+		    int paddr = translate(registers[regPC], 4, false);
+		    codePage(paddr / pageSize).op(paddr % pageSize).execute();
+		}
+		executed++;
+	    }
+	}
+	catch (MipsException e) {
+	    trapped = true;
+	}
+
+	privilege.interrupt.enterKernel(number, executed);
+
+	if (trapped) {
+	    trap.handle();
+	    privilege.interrupt.tick(false);
+	}
+	else {
+	    privilege.interrupt.tick(false, 0);
+	}
+    }
+
+    /**
+     * Execute instructions a basic block at a time using the threaded-code
+     * engine, or with the tiered engine, using translated bytecode for blocks
+     * that have run often enough. Simulated time advances and interrupts are
+     * checked only once per block, rather than after every instruction. Never
+     * returns.
+     */
+    private void runThreaded() {
+	while (true) {
+	    int pc = registers[regPC];
+	    int executed = 0;
+	    boolean translated = false;
+
+	    try {
+		Block block = fetchBlock(pc);
+		Op[] ops = block.ops;
+
+		// after a taken branch, only the delay slot is sequential
+		int limit = ops.length;
+		if (registers[regNextPC] != pc+4)
+		    limit = 1;
+		else if (engine == engineTiered)
+		    translated = block.translate();
+
+		if (translated)
+		    executed = block.translated.run(this, block.ppn);
+
+		while (executed < limit && !translated) {
+		    Op op = ops[executed++];
+		    op.execute();
+
+		    // a store into the block's own page ends the block
+		    if (op.writesMemory && codePages[block.ppn] != block.page)
+			break;
+		}
+	    }
+	    catch (MipsException e) {
+		// translated code leaves the PC at the faulting instruction
+		if (translated)
+		    executed = ((registers[regPC] - pc) >> 2) + 1;
+
+		// charge for the instructions completed before the exception, so
+		// the kernel sees the same user time as with the interpreter
+		if (executed > 1)
+		    privilege.interrupt.tick(false, executed-1);
+
+		e.handle();
+
+		// the faulting instruction takes a tick even if fetch failed
+		executed = 1;
+	    }
+
+	    privilege.interrupt.tick(false, executed);
+	}
+    }
+
     /**
      * Read and return the contents of the specified CPU register.
      *
@@ -175,6 +405,7 @@ public final class Processor {
 	Lib.assertTrue(!usingTLB);
 
 	this.translations = pageTable;
+	flushTranslationCache();
     }
 
     /**
@@ -188,6 +419,59 @@ public final class Processor {
 	return tlbSize;
     }
 
+    /**
+     * Return the number of ways in each set of this processor's TLB. The TLB
+     * is divided into <tt>getTLBSize() / getTLBAssociativity()</tt> sets of
+     * consecutive entries, and a translation for virtual page <i>vpn</i> may
+     * only be placed in set <tt>vpn % (getTLBSize() /
+     * getTLBAssociativity())</tt>. A TLB whose associativity equals its size
+     * is fully associative; one with associativity 1 is direct-mapped.
+     *
+     * @return	the associativity of this processor's TLB.
+     */
+    public int getTLBAssociativity() {
+	Lib.assertTrue(usingTLB);
+
+	return tlbAssociativity;
+    }
+
+    /**
+     * Return the index of the first TLB entry that may hold a translation for
+     * the specified virtual page. The entries that may hold it are this index
+     * and the following <tt>getTLBAssociativity()-1</tt> entries.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the first TLB entry of the set for <i>vpn</i>.
+     */
+    public int getTLBSet(int vpn) {
+	Lib.assertTrue(usingTLB);
+
+	return (vpn & (tlbSize/tlbAssociativity - 1)) * tlbAssociativity;
+    }
+
+    /**
+     * Return the number of TLB hits since Nachos started. A kernel can sample
+     * this around a context switch to count hits for each process.
+     *
+     * @return	the total number of TLB hits.
+     */
+    public long getTLBHits() {
+	Lib.assertTrue(usingTLB);
+
+	return privilege.stats.numTLBHits;
+    }
+
+    /**
+     * Return the number of TLB misses since Nachos started.
+     *
+     * @return	the total number of TLB misses.
+     */
+    public int getTLBMisses() {
+	Lib.assertTrue(usingTLB);
+
+	return privilege.stats.numTLBMisses;
+    }
+
     /**
      * Returns the specified TLB entry.
      *
@@ -205,8 +489,9 @@ public final class Processor {
      * Fill the specified TLB entry.
      *
      * <p>
-     * The TLB is fully associative, so the location of an entry within the TLB
-     * does not affect anything.
+     * Unless the TLB is set-associative, the location of an entry within the
+     * TLB does not affect anything. Otherwise a valid entry must be written
+     * into the set for its virtual page; see <tt>getTLBSet()</tt>.
      *
      * @param	number	the index into the TLB.
      * @param	entry	the new contents of the TLB entry.
@@ -214,8 +499,115 @@ public final class Processor {
     public void writeTLBEntry(int number, TranslationEntry entry) {
 	Lib.assertTrue(usingTLB);
 	Lib.assertTrue(number >= 0 && number < tlbSize);
+	Lib.assertTrue(!entry.valid ||
+		       number - number%tlbAssociativity == getTLBSet(entry.vpn),
+		       "TLB entry written outside the set for its vpn");
+
+	// the old entry, and any entry shadowed by the new one, go stale
+	invalidateTranslation(translations[number].vpn);
+	invalidateTranslation(entry.vpn);
+
+	if (translations[number].valid)
+	    unhashTLBEntry(number);
 
 	translations[number] = new TranslationEntry(entry);
+
+	if (entry.valid)
+	    hashTLBEntry(number);
+    }
+
+    /**
+     * Return the hash bucket of the TLB index for the specified virtual page.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the bucket number.
+     */
+    private int tlbBucket(int vpn) {
+	return (vpn * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(tlbSize))
+	    & (tlbSize-1);
+    }
+
+    /**
+     * Add a valid TLB entry to the hash index.
+     *
+     * @param	number	the index into the TLB.
+     */
+    private void hashTLBEntry(int number) {
+	int bucket = tlbBucket(translations[number].vpn);
+
+	tlbNext[number] = tlbBuckets[bucket];
+	tlbBuckets[bucket] = number;
+    }
+
+    /**
+     * Remove a valid TLB entry from the hash index.
+     *
+     * @param	number	the index into the TLB.
+     */
+    private void unhashTLBEntry(int number) {
+	int bucket = tlbBucket(translations[number].vpn);
+
+	if (tlbBuckets[bucket] == number) {
+	    tlbBuckets[bucket] = tlbNext[number];
+	    return;
+	}
+
+	for (int i=tlbBuckets[bucket]; i!=-1; i=tlbNext[i]) {
+	    if (tlbNext[i] == number) {
+		tlbNext[i] = tlbNext[number];
+		return;
+	    }
+	}
+
+	Lib.assertNotReached();
+    }
+
+    /**
+     * Find the valid TLB entry for the specified virtual page. If several
+     * entries match, the one with the lowest index is used.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the matching TLB entry, or <tt>null</tt> on a TLB miss.
+     */
+    private TranslationEntry lookupTLB(int vpn) {
+	int match = -1;
+
+	for (int i=tlbBuckets[tlbBucket(vpn)]; i!=-1; i=tlbNext[i]) {
+	    if (translations[i].vpn == vpn && (match == -1 || i < match))
+		match = i;
+	}
+
+	return (match == -1) ? null : translations[match];
+    }
+
+    /**
+     * Discard every cached translation.
+     */
+    private void flushTranslationCache() {
+	for (int i=0; i<translationCacheSize; i++) {
+	    readTags[i] = -1;
+	    readEntries[i] = null;
+	    writeTags[i] = -1;
+	    writeEntries[i] = null;
+	}
+    }
+
+    /**
+     * Discard any cached translation for the specified virtual page.
+     *
+     * @param	vpn	the virtual page number.
+     */
+    private void invalidateTranslation(int vpn) {
+	int slot = vpn & (translationCacheSize-1);
+
+	if (readTags[slot] == vpn) {
+	    readTags[slot] = -1;
+	    readEntries[slot] = null;
+	}
+	if (writeTags[slot] == vpn) {
+	    writeTags[slot] = -1;
+	    writeEntries[slot] = null;
+	}
     }
 
     /**
@@ -232,12 +624,274 @@ public final class Processor {
      * Return a reference to the physical memory array. The size of this array
      * is <tt>pageSize * getNumPhysPages()</tt>.
      *
+     * <p>
+     * Physical memory is normally allocated a chunk at a time, as it is first
+     * written. The first call to this method allocates all of it at once, so
+     * prefer <tt>readPhysicalMemory()</tt> and <tt>writePhysicalMemory()</tt>
+     * when physical memory is large.
+     *
      * @return	the main memory array.
      */
     public byte[] getMemory() {
+	if (mainMemory == null) {
+	    mainMemory = new byte[memorySize];
+
+	    // copy in what has been written, and keep using the array after
+	    for (int i=0; i<memoryChunks.length; i++) {
+		int start = i * chunkSize;
+		int length = chunkLength(i);
+		ByteBuffer chunk = memoryChunks[i];
+
+		if (chunk != null)
+		    copyFromChunk(chunk, 0, mainMemory, start, length);
+
+		memoryChunks[i] = ByteBuffer.wrap(mainMemory, start, length)
+		    .slice().order(ByteOrder.LITTLE_ENDIAN);
+	    }
+	}
+	
 	return mainMemory;
     }
 
+    /**
+     * Copy bytes out of physical memory. Memory that has never been written
+     * reads as zero.
+     *
+     * @param	paddr	the first physical address to read.
+     * @param	data	the array where the data will be stored.
+     * @param	offset	the first byte to write in the array.
+     * @param	length	the number of bytes to copy.
+     */
+    public void readPhysicalMemory(int paddr, byte[] data, int offset,
+				   int length) {
+	Lib.assertTrue(paddr >= 0 && length >= 0 &&
+		       length <= memorySize - paddr);
+	
+	while (length > 0) {
+	    int index = paddr / chunkSize;
+	    int chunkOffset = paddr % chunkSize;
+	    int amount = Math.min(length, chunkLength(index) - chunkOffset);
+	    ByteBuffer chunk = memoryChunks[index];
+
+	    if (chunk == null)
+		Arrays.fill(data, offset, offset+amount, (byte) 0);
+	    else
+		copyFromChunk(chunk, chunkOffset, data, offset, amount);
+
+	    paddr += amount;
+	    offset += amount;
+	    length -= amount;
+	}
+    }
+
+    /**
+     * Copy bytes into physical memory, discarding any predecoded instructions
+     * for the pages written.
+     *
+     * @param	paddr	the first physical address to write.
+     * @param	data	the array containing the data to copy.
+     * @param	offset	the first byte to copy from the array.
+     * @param	length	the number of bytes to copy.
+     */
+    public void writePhysicalMemory(int paddr, byte[] data, int offset,
+				    int length) {
+	Lib.assertTrue(paddr >= 0 && length >= 0 &&
+		       length <= memorySize - paddr);
+
+	if (length > 0) {
+	    for (int ppn = paddr / pageSize; ppn <= (paddr+length-1) / pageSize;
+		 ppn++)
+		invalidatePage(ppn);
+	}
+	
+	while (length > 0) {
+	    int index = paddr / chunkSize;
+	    int chunkOffset = paddr % chunkSize;
+	    int amount = Math.min(length, chunkLength(index) - chunkOffset);
+	    ByteBuffer chunk = touchChunk(index);
+
+	    System.arraycopy(data, offset,
+			     chunk.array(), chunk.arrayOffset()+chunkOffset,
+			     amount);
+
+	    paddr += amount;
+	    offset += amount;
+	    length -= amount;
+	}
+    }
+
+    /**
+     * Copy bytes out of a chunk of physical memory, which may be a view of an
+     * array or a mapped checkpoint file.
+     */
+    private static void copyFromChunk(ByteBuffer chunk, int chunkOffset,
+				      byte[] data, int offset, int length) {
+	if (chunk.hasArray()) {
+	    System.arraycopy(chunk.array(), chunk.arrayOffset()+chunkOffset,
+			     data, offset, length);
+	}
+	else {
+	    ByteBuffer view = chunk.duplicate();
+	    view.position(chunkOffset);
+	    view.get(data, offset, length);
+	}
+    }
+
+    /**
+     * Return the number of chunks physical memory is divided into. Used by
+     * <tt>Checkpoint</tt>.
+     *
+     * @return	the number of chunks of physical memory.
+     */
+    int getNumMemoryChunks() {
+	return memoryChunks.length;
+    }
+
+    /**
+     * Return the number of bytes in the specified chunk of physical memory.
+     * Every chunk is <tt>chunkSize</tt> bytes, except possibly the last.
+     *
+     * @param	index	the chunk number.
+     * @return	the length of the chunk.
+     */
+    int chunkLength(int index) {
+	return Math.min(chunkSize, memorySize - index*chunkSize);
+    }
+
+    /**
+     * Return the specified chunk of physical memory, for <tt>Checkpoint</tt>
+     * to save. The caller must not change the buffer's position or limit.
+     *
+     * @param	index	the chunk number.
+     * @return	the chunk, or <tt>null</tt> if it has never been written.
+     */
+    ByteBuffer getMemoryChunk(int index) {
+	return memoryChunks[index];
+    }
+
+    /**
+     * Replace the specified chunk of physical memory with one restored by
+     * <tt>Checkpoint</tt>, typically a read-only mapping of the checkpoint
+     * file that the host loads as it is touched. Once <tt>getMemory()</tt>
+     * has been called, the contents are copied into the array instead.
+     *
+     * @param	index	the chunk number.
+     * @param	chunk	the restored contents, exactly <tt>chunkLength(index)</tt>
+     *			bytes long, or <tt>null</tt> if the chunk should read
+     *			as zero.
+     */
+    void setMemoryChunk(int index, ByteBuffer chunk) {
+	Lib.assertTrue(chunk == null || chunk.remaining() == chunkLength(index));
+
+	int start = index * chunkSize;
+	int length = chunkLength(index);
+
+	if (mainMemory != null) {
+	    if (chunk == null)
+		Arrays.fill(mainMemory, start, start+length, (byte) 0);
+	    else
+		copyFromChunk(chunk, 0, mainMemory, start, length);
+	}
+	else {
+	    memoryChunks[index] = (chunk == null) ? null :
+		chunk.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	for (int ppn = start / pageSize; ppn < (start+length) / pageSize; ppn++)
+	    invalidatePage(ppn);
+    }
+
+    /**
+     * Return the specified chunk of physical memory, allocating it if it has
+     * never been written, or copying it out of a checkpoint file if this is
+     * the first write since it was restored.
+     */
+    private ByteBuffer touchChunk(int index) {
+	ByteBuffer chunk = memoryChunks[index];
+	if (chunk == null || chunk.isReadOnly()) {
+	    byte[] data = new byte[chunkLength(index)];
+	    if (chunk != null)
+		copyFromChunk(chunk, 0, data, 0, data.length);
+
+	    chunk = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+	    memoryChunks[index] = chunk;
+	}
+
+	return chunk;
+    }
+
+    /**
+     * Discard any predecoded instructions cached for the specified physical
+     * page, on every processor. Must be called after modifying a page of the
+     * array returned by <tt>getMemory()</tt> that might later be executed,
+     * unless the page is filled by <tt>CoffSection.loadPage()</tt>, which
+     * does so itself.
+     *
+     * @param	ppn	the physical page that was modified.
+     */
+    public void invalidatePage(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+	codePages[ppn] = null;
+
+	for (int i=0; i<Machine.numProcessors(); i++) {
+	    Processor processor = Machine.processor(i);
+	    if (processor != null)
+		processor.codePages[ppn] = null;
+	}
+    }
+
+    /**
+     * Return the cached code for the specified physical page, creating an
+     * empty entry if there is none.
+     *
+     * @param	ppn	the physical page number.
+     * @return	the code cached for the page.
+     */
+    private CodePage codePage(int ppn) {
+	CodePage page = codePages[ppn];
+	if (page == null) {
+	    page = new CodePage(ppn);
+	    codePages[ppn] = page;
+	}
+
+	return page;
+    }
+
+    /**
+     * Return the predecoded form of the instruction stored at the specified
+     * physical address, decoding it and caching the result if necessary.
+     *
+     * @param	paddr	the word-aligned physical address of the instruction.
+     * @return	the predecoded instruction.
+     */
+    private DecodedInstruction predecoded(int paddr) {
+	return codePage(paddr / pageSize).decode(paddr % pageSize);
+    }
+
+    /**
+     * Return the basic block starting at the specified virtual address,
+     * translating and caching it if necessary.
+     *
+     * @param	vaddr	the virtual address of the first instruction.
+     * @return	the basic block.
+     * @exception	MipsException	if the first instruction could not be
+     *					fetched.
+     */
+    private Block fetchBlock(int vaddr) throws MipsException {
+	int paddr = translate(vaddr, 4, false);
+	CodePage page = codePage(paddr / pageSize);
+	int index = (paddr % pageSize) >> 2;
+
+	Block block = page.blocks[index];
+	if (block == null) {
+	    block = new Block(page, paddr % pageSize);
+	    page.blocks[index] = block;
+	}
+
+	return block;
+    }
+
     /**
      * Concatenate a page number and an offset into an address.
      *
@@ -279,6 +933,15 @@ public final class Processor {
 	delayedLoad(0, 0, 0);
     }
 
+    /**
+     * Raise a syscall exception. Called by translated blocks.
+     *
+     * @exception	MipsException	always.
+     */
+    private void syscallException() throws MipsException {
+	throw raise(exceptionSyscall);
+    }
+
     /**
      * Translate a virtual address into a physical address, using either a
      * page table or a TLB. Check for alignment, make sure the virtual page is
@@ -294,20 +957,39 @@ public final class Processor {
      */
     private int translate(int vaddr, int size, boolean writing)
 	throws MipsException {
-	if (Lib.test(dbgProcessor))
-	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
-			       + (writing ? ", write" : ", read..."));
-
 	// check alignment
 	if ((vaddr & (size-1)) != 0) {
 	    Lib.debug(dbgProcessor, "\t\talignment error");
-	    throw new MipsException(exceptionAddressError, vaddr);
+	    throw raise(exceptionAddressError, vaddr);
 	}
 
 	// calculate virtual page number and offset from the virtual address
 	int vpn = pageFromAddress(vaddr);
 	int offset = offsetFromAddress(vaddr);
 
+	// try the translation cache first
+	int slot = vpn & (translationCacheSize-1);
+	int[] tags = writing ? writeTags : readTags;
+	if (tags[slot] == vpn) {
+	    TranslationEntry entry = writing ? writeEntries[slot] :
+		readEntries[slot];
+	    int base = writing ? writeBases[slot] : readBases[slot];
+
+	    // the kernel owns page table entries, so check they haven't changed
+	    if (usingTLB ||
+		(translations[vpn] == entry && entry.valid &&
+		 entry.ppn*pageSize == base && !(writing && entry.readOnly))) {
+		if (usingTLB)
+		    privilege.stats.numTLBHits++;
+		if (!entry.used)
+		    entry.used = true;
+		if (writing && !entry.dirty)
+		    entry.dirty = true;
+
+		return base + offset;
+	    }
+	}
+
 	TranslationEntry entry = null;
 
 	// if not using a TLB, then the vpn is an index into the table
@@ -317,37 +999,33 @@ public final class Processor {
 		!translations[vpn].valid) {
 		privilege.stats.numPageFaults++;
 		Lib.debug(dbgProcessor, "\t\tpage fault");
-		throw new MipsException(exceptionPageFault, vaddr);
+		throw raise(exceptionPageFault, vaddr);
 	    }
 
 	    entry = translations[vpn];
 	}
-	// else, look through all TLB entries for matching vpn
+	// else, look up the vpn in the TLB's hash index
 	else {
-	    for (int i=0; i<tlbSize; i++) {
-		if (translations[i].valid && translations[i].vpn == vpn) {
-		    entry = translations[i];
-		    break;
-		}
-	    }
+	    entry = lookupTLB(vpn);
 	    if (entry == null) {
 		privilege.stats.numTLBMisses++;
 		Lib.debug(dbgProcessor, "\t\tTLB miss");
-		throw new MipsException(exceptionTLBMiss, vaddr);
+		throw raise(exceptionTLBMiss, vaddr);
 	    }
+	    privilege.stats.numTLBHits++;
 	}
 
 	// check if trying to write a read-only page
 	if (entry.readOnly && writing) {
 	    Lib.debug(dbgProcessor, "\t\tread-only exception");
-	    throw new MipsException(exceptionReadOnly, vaddr);
+	    throw raise(exceptionReadOnly, vaddr);
 	}
 
 	// check if physical page number is out of range
 	int ppn = entry.ppn;
 	if (ppn < 0 || ppn >= numPhysPages) {
 	    Lib.debug(dbgProcessor, "\t\tbad ppn");
-	    throw new MipsException(exceptionBusError, vaddr);
+	    throw raise(exceptionBusError, vaddr);
 	}
 
 	// set used and dirty bits as appropriate
@@ -355,7 +1033,38 @@ public final class Processor {
 	if (writing)
 	    entry.dirty = true;
 
-	int paddr = (ppn*pageSize) + offset;
+	// remember the translation for next time
+	if (writing) {
+	    writeTags[slot] = vpn;
+	    writeEntries[slot] = entry;
+	    writeBases[slot] = ppn*pageSize;
+	}
+	else {
+	    readTags[slot] = vpn;
+	    readEntries[slot] = entry;
+	    readBases[slot] = ppn*pageSize;
+	}
+
+	return (ppn*pageSize) + offset;
+    }
+
+    /**
+     * Translate a virtual address into a physical address, tracing the
+     * translation if the processor debug flag is set.
+     *
+     * @param	vaddr	the virtual address to translate.
+     * @param	size	the size of the memory reference (must be 1, 2, or 4).
+     * @param	writing	<tt>true</tt> if the memory reference is a write.
+     * @return		the physical address.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private int translateTraced(int vaddr, int size, boolean writing)
+	throws MipsException {
+	if (Lib.test(dbgProcessor))
+	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
+			       + (writing ? ", write" : ", read..."));
+
+	int paddr = translate(vaddr, size, writing);
 
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
@@ -372,14 +1081,28 @@ public final class Processor {
      * @exception	MipsException	if a translation error occurred.
      */
     private int readMem(int vaddr, int size) throws MipsException {
+	Lib.assertTrue(size==1 || size==2 || size==4);
+	
+	return loadMem(translate(vaddr, size, false), size);
+    }
+
+    /**
+     * Read <i>size</i> bytes of virtual memory at <i>vaddr</i>, tracing the
+     * access if the processor debug flag is set.
+     *
+     * @param	vaddr	the virtual address to read from.
+     * @param	size	the number of bytes to read (1, 2, or 4).
+     * @return		the value read.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private int readMemTraced(int vaddr, int size) throws MipsException {
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size);
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				   size);
+	int value = loadMem(translateTraced(vaddr, size, false), size);
 
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\t\tvalue read=0x" +
@@ -398,6 +1121,22 @@ public final class Processor {
      * @exception	MipsException	if a translation error occurred.
      */
     private void writeMem(int vaddr, int size, int value)
+	throws MipsException {
+	Lib.assertTrue(size==1 || size==2 || size==4);
+
+	storeMem(translate(vaddr, size, true), size, value);
+    }
+
+    /**
+     * Write <i>value</i> to <i>size</i> bytes of virtual memory starting at
+     * <i>vaddr</i>, tracing the access if the processor debug flag is set.
+     *
+     * @param	vaddr	the virtual address to write to.
+     * @param	size	the number of bytes to write (1, 2, or 4).
+     * @param	value	the value to store.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private void writeMemTraced(int vaddr, int size, int value)
 	throws MipsException {
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
@@ -405,9 +1144,65 @@ public final class Processor {
 			       + Lib.toHexString(value, size*2));
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
-	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+
+	storeMem(translateTraced(vaddr, size, true), size, value);
+    }
+
+    /**
+     * Load <i>size</i> bytes of physical memory starting at <i>paddr</i>, a
+     * whole word or halfword at a time. Like <tt>Lib.bytesToInt()</tt>,
+     * bytes and halfwords are sign-extended.
+     *
+     * @param	paddr	the physical address to read from.
+     * @param	size	the number of bytes to read (1, 2, or 4).
+     * @return		the value read.
+     */
+    private int loadMem(int paddr, int size) {
+	ByteBuffer chunk = memoryChunks[paddr / chunkSize];
+	if (chunk == null)
+	    return 0;
+
+	int offset = paddr % chunkSize;
+	switch (size) {
+	case 4:
+	    return chunk.getInt(offset);
+	case 2:
+	    return chunk.getShort(offset);
+	default:
+	    return chunk.get(offset);
+	}
+    }
+
+    /**
+     * Store <i>value</i> to <i>size</i> bytes of physical memory starting at
+     * <i>paddr</i>.
+     *
+     * @param	paddr	the physical address to write to.
+     * @param	size	the number of bytes to write (1, 2, or 4).
+     * @param	value	the value to store.
+     */
+    private void storeMem(int paddr, int size, int value) {
+	ByteBuffer chunk = touchChunk(paddr / chunkSize);
+	int offset = paddr % chunkSize;
+
+	switch (size) {
+	case 4:
+	    chunk.putInt(offset, value);
+	    break;
+	case 2:
+	    chunk.putShort(offset, (short) value);
+	    break;
+	default:
+	    chunk.put(offset, (byte) value);
+	    break;
+	}
+
+	// stores into a page holding predecoded instructions invalidate them,
+	// including those another processor decoded
+	if (Machine.numProcessors() > 1)
+	    invalidatePage(paddr / pageSize);
+	else if (codePages[paddr / pageSize] != null)
+	    codePages[paddr / pageSize] = null;
     }
 
     /**
@@ -541,20 +1336,92 @@ public final class Processor {
     private boolean usingTLB;
     /** Number of TLB entries. */
     private int tlbSize = 4;
+    /** Number of TLB entries in each set. */
+    private int tlbAssociativity;
+    /**
+     * A hash index over the valid TLB entries, so that a lookup costs the
+     * same however large the TLB is. <tt>tlbBuckets</tt> holds the first TLB
+     * index in each bucket, and <tt>tlbNext</tt> the next index in the same
+     * bucket, with -1 ending each chain.
+     */
+    private int[] tlbBuckets, tlbNext;
     /**
      * Either an associative or direct-mapped set of translation entries,
      * depending on whether there is a TLB.
      */
     private TranslationEntry[] translations;
 
+    /**
+     * The number of entries in each half of the translation cache. Must be a
+     * power of two.
+     */
+    private static final int translationCacheSize = 64;
+    /**
+     * A direct-mapped cache of recent successful translations, indexed by the
+     * low bits of the virtual page number, kept separately for reads and
+     * writes. A tag of -1 marks an empty slot. A hit skips the page table or
+     * TLB lookup and the permission checks already made when the slot was
+     * filled.
+     */
+    private int[] readTags = new int[translationCacheSize];
+    private TranslationEntry[] readEntries =
+	new TranslationEntry[translationCacheSize];
+    private int[] readBases = new int[translationCacheSize];
+    private int[] writeTags = new int[translationCacheSize];
+    private TranslationEntry[] writeEntries =
+	new TranslationEntry[translationCacheSize];
+    private int[] writeBases = new int[translationCacheSize];
+
     /** Size of a page, in bytes. */
     public static final int pageSize = 0x400;
     /** Number of pages in a 32-bit address space. */
     public static final int maxPages = (int) (0x100000000L / pageSize);
+    /** The number of this processor, from 0. */
+    private int number;
     /** Number of physical pages in memory. */
     private int numPhysPages;
-    /** Main memory for user programs. */
-    private byte[] mainMemory;
+    /** The size of main memory, in bytes. */
+    private int memorySize;
+    /**
+     * Main memory for user programs, as little-endian views of
+     * <tt>chunkSize</tt>-byte chunks, used to load and store whole words and
+     * halfwords rather than assembling them byte by byte. A chunk is
+     * <tt>null</tt> until it is first written, and reads as zero until then.
+     * A chunk restored from a checkpoint may be a read-only mapping of the
+     * checkpoint file, which is copied into an array when first written.
+     */
+    private ByteBuffer[] memoryChunks;
+    /** The number of bytes in each chunk of main memory. */
+    private static final int chunkSize = 64*pageSize;
+    /**
+     * All of main memory in one array, or <tt>null</tt> until
+     * <tt>getMemory()</tt> is first called. After that, the chunks are views
+     * of this array.
+     */
+    private byte[] mainMemory = null;
+    /**
+     * Predecoded instructions and basic blocks, indexed by physical page
+     * number. A page's entry is <tt>null</tt> until an instruction is fetched
+     * from it, and is reset to <tt>null</tt> whenever the page is written.
+     */
+    private CodePage[] codePages;
+
+    /** The execution engine selected by <tt>Processor.engine</tt>. */
+    private int engine;
+    private static final int engineInterpreter = 0;
+    private static final int engineThreaded = 1;
+    private static final int engineTiered = 2;
+
+    /** Translates hot blocks to bytecode for the tiered engine. */
+    private BlockTranslator translator = null;
+    /** The number of executions after which a block is translated. */
+    private int translationThreshold;
+
+    /** The most instructions that will be grouped into one basic block. */
+    private static final int maxBlockLength = 64;
+
+    /** The exception thrown for every trap. */
+    private final MipsException trap = new MipsException();
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
@@ -565,32 +1432,53 @@ public final class Processor {
 
     private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 	public void flushPipe() {
-	    finishLoad();
+	    Machine.processor().finishLoad();
 	}
     }
 
-    private class MipsException extends Exception {
-	public MipsException(int cause) {
-	    Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
+    /**
+     * Raise an exception with the specified cause.
+     *
+     * @param	cause	the cause of the exception.
+     * @return	the preallocated exception, to be thrown by the caller.
+     */
+    private MipsException raise(int cause) {
+	Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
 
-	    this.cause = cause;
-	}
+	registers[regCause] = cause;
+	return trap;
+    }
 
-	public MipsException(int cause, int badVAddr) {
-	    this(cause);
+    /**
+     * Raise an exception with the specified cause and bad virtual address.
+     *
+     * @param	cause	the cause of the exception.
+     * @param	badVAddr	the virtual address that caused the exception.
+     * @return	the preallocated exception, to be thrown by the caller.
+     */
+    private MipsException raise(int cause, int badVAddr) {
+	registers[regBadVAddr] = badVAddr;
+	return raise(cause);
+    }
 
-	    hasBadVAddr = true;
-	    this.badVAddr = badVAddr;
+    /**
+     * Thrown to unwind out of the instruction that caused an exception. The
+     * cause and bad virtual address are written to the CPU registers when
+     * the exception is raised, so a single instance with no stack trace is
+     * shared by every exception, and trapping allocates nothing. This is
+     * safe even if another thread raises an exception before this one is
+     * handled, because those registers are saved and restored with the rest
+     * of the user state.
+     */
+    private class MipsException extends Exception {
+	public MipsException() {
+	    super(null, null, false, false);
 	}
 
 	public void handle() {
-	    writeRegister(regCause, cause);
-
-	    if (hasBadVAddr)
-		writeRegister(regBadVAddr, badVAddr);
-
 	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
-		System.out.println("exception: " + exceptionNames[cause]);
+		System.out.println("exception: " +
+				   exceptionNames[registers[regCause]]);
 
 	    finishLoad();
 
@@ -602,9 +1490,6 @@ public final class Processor {
 	    
 	    exceptionHandler.run();
 	}
-
-	private boolean hasBadVAddr = false;
-	private int cause, badVAddr;
     }	
 
     private class Instruction {
@@ -616,6 +1501,13 @@ public final class Processor {
 	    writeBack();
 	}	
 
+	public void run(DecodedInstruction decoded) throws MipsException {
+	    this.decoded = decoded;
+	    decode();
+	    execute();
+	    writeBack();
+	}
+
 	private boolean test(int flag) {
 	    return Lib.test(flag, flags);
 	}
@@ -626,62 +1518,40 @@ public final class Processor {
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 
-	    value = readMem(registers[regPC], 4);
+	    // the processor trace shows the fetch, so skip the cache
+	    if (Lib.test(dbgProcessor)) {
+		decoded = new DecodedInstruction(readMemTraced(registers[regPC], 4));
+		return;
+	    }
+
+	    decoded = predecoded(translateTraced(registers[regPC], 4, false));
 	}
 	
 	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
-
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
-	    }
-
-	    operation = info.operation;
-	    name = info.name;
-	    format = info.format;
-	    flags = info.flags;
+	    value = decoded.value;
+	    op = decoded.op;
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    rd = decoded.rd;
+	    sh = decoded.sh;
+	    func = decoded.func;
+	    target = decoded.target;
+	    imm = decoded.imm;
+
+	    operation = decoded.operation;
+	    name = decoded.name;
+	    format = decoded.format;
+	    flags = decoded.flags;
 
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
 	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
+	    size = decoded.size;
 
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
+	    dstReg = decoded.dstReg;
 
 	    // get jtarget
 	    if (format == Mips.RFMT)
@@ -693,11 +1563,6 @@ public final class Processor {
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
@@ -869,7 +1734,7 @@ public final class Processor {
 			throw new ArithmeticException();
 		}
 		catch (ArithmeticException e) {
-		    throw new MipsException(exceptionOverflow);
+		    throw raise(exceptionOverflow);
 		}
 		break;
 
@@ -939,10 +1804,10 @@ public final class Processor {
 		break;
 
 	    case Mips.SYSCALL:
-		throw new MipsException(exceptionSyscall);
+		throw raise(exceptionSyscall);
 
 	    case Mips.LOAD:
-		value = readMem(addr, size);
+		value = readMemTraced(addr, size);
 		
 		if (!test(Mips.UNSIGNED))
 		    dst = Lib.extend(value, 0, size*8);
@@ -952,7 +1817,7 @@ public final class Processor {
 		break;
 
 	    case Mips.LWL:
-		value = readMem(addr&~0x3, 4);
+		value = readMemTraced(addr&~0x3, 4);
 
 		// LWL shifts the input left so the addressed byte is highest
 		preserved = (3-(addr&0x3))*8;	// number of bits to preserve
@@ -963,7 +1828,7 @@ public final class Processor {
 		break;
 
 	    case Mips.LWR:
-		value = readMem(addr&~0x3, 4);
+		value = readMemTraced(addr&~0x3, 4);
 
 		// LWR shifts the input right so the addressed byte is lowest
 		preserved = (addr&0x3)*8;	// number of bits to preserve
@@ -974,11 +1839,11 @@ public final class Processor {
 		break;
 
 	    case Mips.STORE:
-		writeMem(addr, size, (int) src2);
+		writeMemTraced(addr, size, (int) src2);
 		break;
 
 	    case Mips.SWL:
-		value = readMem(addr&~0x3, 4);
+		value = readMemTraced(addr&~0x3, 4);
 
 		// SWL shifts highest order byte into the addressed position
 		preserved = (3-(addr&0x3))*8;
@@ -988,11 +1853,11 @@ public final class Processor {
 		// merge values
 		dst = (dst & mask) | (value & ~mask);
 
-		writeMem(addr&~0x3, 4, (int) dst);
+		writeMemTraced(addr&~0x3, 4, (int) dst);
 		break;
 
 	    case Mips.SWR:
-		value = readMem(addr&~0x3, 4);
+		value = readMemTraced(addr&~0x3, 4);
 
 		// SWR shifts the lowest order byte into the addressed position
 		preserved = (addr&0x3)*8;
@@ -1002,14 +1867,14 @@ public final class Processor {
 		// merge values
 		dst = (dst & mask) | (value & ~mask);
 
-		writeMem(addr&~0x3, 4, (int) dst);
+		writeMemTraced(addr&~0x3, 4, (int) dst);
 		break;
 
 	    case Mips.UNIMPL:
 		System.err.println("Warning: encountered unimplemented inst");
 		
 	    case Mips.INVALID:
-		throw new MipsException(exceptionIllegalInstruction);
+		throw raise(exceptionIllegalInstruction);
 
 	    default:
 		Lib.assertNotReached();
@@ -1019,7 +1884,7 @@ public final class Processor {
 	private void writeBack() throws MipsException {
 	    // if instruction is signed, but carry bit !+ sign bit, throw
 	    if (test(Mips.OVERFLOW) && Lib.test(dst,31) != Lib.test(dst,32))
-		throw new MipsException(exceptionOverflow);
+		throw raise(exceptionOverflow);
 
 	    if (test(Mips.DELAYEDLOAD))
 		delayedLoad(dstReg, (int) dst, mask);
@@ -1052,6 +1917,7 @@ public final class Processor {
 	}
     
 	// state used to execute a single instruction
+	DecodedInstruction decoded;
 	int value, op, rs, rt, rd, sh, func, target, imm;
 	int operation, format, flags;
 	String name;
@@ -1063,7 +1929,685 @@ public final class Processor {
 	boolean branch;
     }
 
-    private static class Mips {
+    /**
+     * The cached code for one page of physical memory.
+     */
+    private final class CodePage {
+	CodePage(int ppn) {
+	    this.ppn = ppn;
+	}
+
+	DecodedInstruction decode(int offset) {
+	    int index = offset >> 2;
+
+	    DecodedInstruction decoded = instructions[index];
+	    if (decoded == null) {
+		int word = loadMem(ppn*pageSize + offset, 4);
+		decoded = new DecodedInstruction(word);
+		instructions[index] = decoded;
+	    }
+
+	    return decoded;
+	}
+
+	Op op(int offset) {
+	    int index = offset >> 2;
+
+	    Op op = ops[index];
+	    if (op == null) {
+		op = newOp(decode(offset));
+		ops[index] = op;
+	    }
+
+	    return op;
+	}
+
+	final int ppn;
+	final DecodedInstruction[] instructions =
+	    new DecodedInstruction[pageSize/4];
+	final Op[] ops = new Op[pageSize/4];
+	final Block[] blocks = new Block[pageSize/4];
+    }
+
+    /**
+     * A straight-line sequence of instructions within one physical page,
+     * translated into operations with their operands already resolved. A
+     * block ends with the delay slot of a branch or jump, with a syscall or
+     * invalid instruction, at the end of the page, or after
+     * <tt>maxBlockLength</tt> instructions.
+     */
+    private final class Block {
+	Block(CodePage page, int offset) {
+	    this.page = page;
+	    this.ppn = page.ppn;
+
+	    int start = offset;
+	    int length = 0;
+	    DecodedInstruction[] instructions =
+		new DecodedInstruction[maxBlockLength];
+	    boolean delaySlot = false;
+
+	    while (length < maxBlockLength && offset < pageSize) {
+		DecodedInstruction decoded = page.decode(offset);
+		instructions[length++] = decoded;
+		offset += 4;
+
+		if (delaySlot)
+		    break;
+
+		if (Lib.test(Mips.BRANCH, decoded.flags))
+		    delaySlot = true;
+		else if (decoded.operation == Mips.SYSCALL ||
+			 decoded.operation == Mips.INVALID ||
+			 decoded.operation == Mips.UNIMPL)
+		    break;
+	    }
+
+	    this.instructions = new DecodedInstruction[length];
+	    System.arraycopy(instructions, 0, this.instructions, 0, length);
+
+	    ops = new Op[length];
+	    for (int i=0; i<length; i++)
+		ops[i] = page.op(start + i*4);
+	}
+
+	/**
+	 * Count an execution of this block, translating it to bytecode once it
+	 * has run <tt>translationThreshold</tt> times.
+	 *
+	 * @return	<tt>true</tt> if this block has been translated.
+	 */
+	boolean translate() {
+	    if (translated != null)
+		return true;
+
+	    if (executions < 0 || ++executions < translationThreshold)
+		return false;
+
+	    final Block block = this;
+	    privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    block.translated = translator.translate(block.instructions);
+		}
+	    });
+
+	    // don't try again if the block can't be translated
+	    if (translated == null)
+		executions = -1;
+
+	    return translated != null;
+	}
+
+	final CodePage page;
+	final int ppn;
+	final DecodedInstruction[] instructions;
+	final Op[] ops;
+
+	/** The number of times this block has run, or -1 if untranslatable. */
+	int executions = 0;
+	/** The translated form of this block, if any. */
+	TranslatedBlock translated = null;
+    }
+
+    /**
+     * A basic block translated into JVM bytecode by
+     * <tt>BlockTranslator</tt>. Subclasses are generated at run time.
+     */
+    abstract static class TranslatedBlock {
+	TranslatedBlock() {
+	}
+
+	/**
+	 * Execute the block, leaving the processor in the same state the
+	 * interpreter would. If an instruction causes an exception, the PC
+	 * registers identify that instruction.
+	 *
+	 * @param	processor	the processor to run on.
+	 * @param	ppn		the physical page holding the block.
+	 * @return	the number of instructions executed.
+	 * @exception	MipsException	if an instruction caused an exception.
+	 */
+	abstract int run(Processor processor, int ppn) throws MipsException;
+    }
+
+    /**
+     * Return a threaded-code operation that executes the specified
+     * instruction exactly as <tt>Instruction.run()</tt> would.
+     *
+     * @param	d	the instruction.
+     * @return	the corresponding operation.
+     */
+    private Op newOp(DecodedInstruction d) {
+	boolean unsigned = Lib.test(Mips.UNSIGNED, d.flags);
+	boolean immediate = Lib.test(Mips.SRC2IMM, d.flags);
+
+	switch (d.operation) {
+	case Mips.ADD:
+	    if (Lib.test(Mips.OVERFLOW, d.flags))
+		break;
+	    if (immediate)
+		return new AddImmOp(d.dstReg, d.rs, d.imm);
+	    return new AddOp(d.dstReg, d.rs, d.rt);
+	case Mips.SUB:
+	    if (Lib.test(Mips.OVERFLOW, d.flags))
+		break;
+	    return new SubOp(d.dstReg, d.rs, d.rt);
+	case Mips.AND:
+	    if (immediate)
+		return new AndImmOp(d.dstReg, d.rs, d.imm);
+	    return new AndOp(d.dstReg, d.rs, d.rt);
+	case Mips.OR:
+	    if (immediate)
+		return new OrImmOp(d.dstReg, d.rs, d.imm);
+	    return new OrOp(d.dstReg, d.rs, d.rt);
+	case Mips.XOR:
+	    if (immediate)
+		return new XorImmOp(d.dstReg, d.rs, d.imm);
+	    return new XorOp(d.dstReg, d.rs, d.rt);
+	case Mips.NOR:
+	    return new NorOp(d.dstReg, d.rs, d.rt);
+	case Mips.SLT:
+	    return new SltOp(d.dstReg, d.rs, d.rt, immediate, d.imm, unsigned);
+	case Mips.LUI:
+	    return new LuiOp(d.dstReg, d.imm);
+	case Mips.SLL:
+	case Mips.SRA:
+	case Mips.SRL:
+	    return new ShiftOp(d.operation, d.dstReg, d.rt,
+			       Lib.test(Mips.SRC1SH, d.flags), d.sh, d.rs);
+	case Mips.MFLO:
+	    return new MoveOp(d.dstReg, regLo);
+	case Mips.MFHI:
+	    return new MoveOp(d.dstReg, regHi);
+	case Mips.MULT:
+	    return new MultOp(d.rs, d.rt, unsigned);
+	case Mips.BEQ:
+	case Mips.BNE:
+	case Mips.BLEZ:
+	case Mips.BGTZ:
+	case Mips.BLTZ:
+	case Mips.BGEZ:
+	    return new BranchOp(d.operation, d.rs, d.rt, d.imm,
+				Lib.test(Mips.LINK, d.flags) ? d.dstReg : 0);
+	case Mips.JUMP:
+	    return new JumpOp(d.format, d.rs, d.target,
+			      Lib.test(Mips.LINK, d.flags) ? d.dstReg : 0);
+	case Mips.LOAD:
+	    return new LoadOp(d.dstReg, d.rs, d.imm, d.size, unsigned);
+	case Mips.STORE:
+	    return new StoreOp(d.rt, d.rs, d.imm, d.size);
+	case Mips.SYSCALL:
+	    return new SyscallOp();
+	}
+
+	// everything else is rare enough to leave to the interpreter
+	return new InterpretedOp(d);
+    }
+
+    /**
+     * One instruction of a basic block, with its operands preresolved.
+     */
+    private abstract class Op {
+	/**
+	 * Execute this instruction, including its writeback and the update of
+	 * the PC.
+	 *
+	 * @exception	MipsException	if the instruction caused an exception.
+	 */
+	abstract void execute() throws MipsException;
+
+	/**
+	 * Complete a non-load instruction that writes <i>value</i> to
+	 * <i>dstReg</i>, and advance to the next sequential instruction.
+	 */
+	final void retire(int dstReg, int value) {
+	    if (loadTarget != 0)
+		finishLoad();
+
+	    if (dstReg != 0)
+		registers[dstReg] = value;
+
+	    int nextPC = registers[regNextPC];
+	    registers[regPC] = nextPC;
+	    registers[regNextPC] = nextPC+4;
+	}
+
+	/** <tt>true</tt> if this instruction might store to memory. */
+	boolean writesMemory = false;
+    }
+
+    private final class AddOp extends Op {
+	AddOp(int rd, int rs, int rt) {
+	    this.rd = rd; this.rs = rs; this.rt = rt;
+	}
+
+	void execute() {
+	    retire(rd, registers[rs] + registers[rt]);
+	}
+
+	private final int rd, rs, rt;
+    }
+
+    private final class AddImmOp extends Op {
+	AddImmOp(int rt, int rs, int imm) {
+	    this.rt = rt; this.rs = rs; this.imm = imm;
+	}
+
+	void execute() {
+	    retire(rt, registers[rs] + imm);
+	}
+
+	private final int rt, rs, imm;
+    }
+
+    private final class SubOp extends Op {
+	SubOp(int rd, int rs, int rt) {
+	    this.rd = rd; this.rs = rs; this.rt = rt;
+	}
+
+	void execute() {
+	    retire(rd, registers[rs] - registers[rt]);
+	}
+
+	private final int rd, rs, rt;
+    }
+
+    private final class AndOp extends Op {
+	AndOp(int rd, int rs, int rt) {
+	    this.rd = rd; this.rs = rs; this.rt = rt;
+	}
+
+	void execute() {
+	    retire(rd, registers[rs] & registers[rt]);
+	}
+
+	private final int rd, rs, rt;
+    }
+
+    private final class AndImmOp extends Op {
+	AndImmOp(int rt, int rs, int imm) {
+	    this.rt = rt; this.rs = rs; this.imm = imm;
+	}
+
+	void execute() {
+	    retire(rt, registers[rs] & imm);
+	}
+
+	private final int rt, rs, imm;
+    }
+
+    private final class OrOp extends Op {
+	OrOp(int rd, int rs, int rt) {
+	    this.rd = rd; this.rs = rs; this.rt = rt;
+	}
+
+	void execute() {
+	    retire(rd, registers[rs] | registers[rt]);
+	}
+
+	private final int rd, rs, rt;
+    }
+
+    private final class OrImmOp extends Op {
+	OrImmOp(int rt, int rs, int imm) {
+	    this.rt = rt; this.rs = rs; this.imm = imm;
+	}
+
+	void execute() {
+	    retire(rt, registers[rs] | imm);
+	}
+
+	private final int rt, rs, imm;
+    }
+
+    private final class XorOp extends Op {
+	XorOp(int rd, int rs, int rt) {
+	    this.rd = rd; this.rs = rs; this.rt = rt;
+	}
+
+	void execute() {
+	    retire(rd, registers[rs] ^ registers[rt]);
+	}
+
+	private final int rd, rs, rt;
+    }
+
+    private final class XorImmOp extends Op {
+	XorImmOp(int rt, int rs, int imm) {
+	    this.rt = rt; this.rs = rs; this.imm = imm;
+	}
+
+	void execute() {
+	    retire(rt, registers[rs] ^ imm);
+	}
+
+	private final int rt, rs, imm;
+    }
+
+    private final class NorOp extends Op {
+	NorOp(int rd, int rs, int rt) {
+	    this.rd = rd; this.rs = rs; this.rt = rt;
+	}
+
+	void execute() {
+	    retire(rd, ~(registers[rs] | registers[rt]));
+	}
+
+	private final int rd, rs, rt;
+    }
+
+    private final class SltOp extends Op {
+	SltOp(int dst, int rs, int rt, boolean immediate, int imm,
+	      boolean unsigned) {
+	    this.dst = dst; this.rs = rs; this.rt = rt;
+	    this.immediate = immediate; this.imm = imm;
+	    this.unsigned = unsigned;
+	}
+
+	void execute() {
+	    long src1 = registers[rs];
+	    long src2 = immediate ? imm : registers[rt];
+
+	    if (unsigned) {
+		src1 &= 0xFFFFFFFFL;
+		src2 &= 0xFFFFFFFFL;
+	    }
+
+	    retire(dst, (src1<src2) ? 1 : 0);
+	}
+
+	private final int dst, rs, rt, imm;
+	private final boolean immediate, unsigned;
+    }
+
+    private final class LuiOp extends Op {
+	LuiOp(int rt, int imm) {
+	    this.rt = rt; this.value = imm << 16;
+	}
+
+	void execute() {
+	    retire(rt, value);
+	}
+
+	private final int rt, value;
+    }
+
+    private final class ShiftOp extends Op {
+	ShiftOp(int operation, int rd, int rt, boolean byShiftAmount, int sh,
+		int rs) {
+	    this.operation = operation;
+	    this.rd = rd; this.rt = rt;
+	    this.byShiftAmount = byShiftAmount;
+	    this.sh = sh; this.rs = rs;
+	}
+
+	void execute() {
+	    // same long arithmetic as the interpreter, including its srl
+	    long src2 = registers[rt];
+	    int amount = (byShiftAmount ? sh : registers[rs]) & 0x1F;
+	    long dst;
+
+	    if (operation == Mips.SLL)
+		dst = src2 << amount;
+	    else if (operation == Mips.SRA)
+		dst = src2 >> amount;
+	    else
+		dst = src2 >>> amount;
+
+	    retire(rd, (int) dst);
+	}
+
+	private final int operation, rd, rt, sh, rs;
+	private final boolean byShiftAmount;
+    }
+
+    private final class MoveOp extends Op {
+	MoveOp(int rd, int source) {
+	    this.rd = rd; this.source = source;
+	}
+
+	void execute() {
+	    retire(rd, registers[source]);
+	}
+
+	private final int rd, source;
+    }
+
+    private final class MultOp extends Op {
+	MultOp(int rs, int rt, boolean unsigned) {
+	    this.rs = rs; this.rt = rt; this.unsigned = unsigned;
+	}
+
+	void execute() {
+	    long src1 = registers[rs];
+	    long src2 = registers[rt];
+
+	    if (unsigned) {
+		src1 &= 0xFFFFFFFFL;
+		src2 &= 0xFFFFFFFFL;
+	    }
+
+	    long dst = src1 * src2;
+	    registers[regLo] = (int) Lib.extract(dst, 0, 32);
+	    registers[regHi] = (int) Lib.extract(dst, 32, 32);
+
+	    retire(0, 0);
+	}
+
+	private final int rs, rt;
+	private final boolean unsigned;
+    }
+
+    private final class BranchOp extends Op {
+	BranchOp(int operation, int rs, int rt, int imm, int link) {
+	    this.operation = operation;
+	    this.rs = rs; this.rt = rt;
+	    this.offset = imm<<2;
+	    this.link = link;
+	}
+
+	void execute() {
+	    int src1 = registers[rs];
+	    boolean branch;
+
+	    switch (operation) {
+	    case Mips.BEQ:
+		branch = (src1 == registers[rt]);
+		break;
+	    case Mips.BNE:
+		branch = (src1 != registers[rt]);
+		break;
+	    case Mips.BLEZ:
+		branch = (src1 <= 0);
+		break;
+	    case Mips.BGTZ:
+		branch = (src1 > 0);
+		break;
+	    case Mips.BLTZ:
+		branch = (src1 < 0);
+		break;
+	    default:
+		branch = (src1 >= 0);
+		break;
+	    }
+
+	    int nextPC = registers[regNextPC];
+
+	    if (loadTarget != 0)
+		finishLoad();
+
+	    if (link != 0)
+		registers[link] = nextPC+4;
+
+	    registers[regPC] = nextPC;
+	    registers[regNextPC] = branch ? nextPC+offset : nextPC+4;
+	}
+
+	private final int operation, rs, rt, offset, link;
+    }
+
+    private final class JumpOp extends Op {
+	JumpOp(int format, int rs, int target, int link) {
+	    this.register = (format == Mips.RFMT);
+	    this.rs = rs;
+	    this.target = target<<2;
+	    this.link = link;
+	}
+
+	void execute() {
+	    int nextPC = registers[regNextPC];
+	    int jtarget;
+
+	    if (register)
+		jtarget = registers[rs];
+	    else
+		jtarget = (nextPC&0xF0000000) | target;
+
+	    if (loadTarget != 0)
+		finishLoad();
+
+	    if (link != 0)
+		registers[link] = nextPC+4;
+
+	    registers[regPC] = nextPC;
+	    registers[regNextPC] = jtarget;
+	}
+
+	private final boolean register;
+	private final int rs, target, link;
+    }
+
+    private final class LoadOp extends Op {
+	LoadOp(int rt, int rs, int imm, int size, boolean unsigned) {
+	    this.rt = rt; this.rs = rs; this.imm = imm;
+	    this.size = size; this.unsigned = unsigned;
+	}
+
+	void execute() throws MipsException {
+	    int value = readMem(registers[rs] + imm, size);
+
+	    if (!unsigned)
+		value = Lib.extend(value, 0, size*8);
+
+	    delayedLoad(rt, value, 0xFFFFFFFF);
+
+	    int nextPC = registers[regNextPC];
+	    registers[regPC] = nextPC;
+	    registers[regNextPC] = nextPC+4;
+	}
+
+	private final int rt, rs, imm, size;
+	private final boolean unsigned;
+    }
+
+    private final class StoreOp extends Op {
+	StoreOp(int rt, int rs, int imm, int size) {
+	    this.rt = rt; this.rs = rs; this.imm = imm; this.size = size;
+	    writesMemory = true;
+	}
+
+	void execute() throws MipsException {
+	    writeMem(registers[rs] + imm, size, registers[rt]);
+
+	    retire(0, 0);
+	}
+
+	private final int rt, rs, imm, size;
+    }
+
+    private final class SyscallOp extends Op {
+	void execute() throws MipsException {
+	    throw raise(exceptionSyscall);
+	}
+    }
+
+    private final class InterpretedOp extends Op {
+	InterpretedOp(DecodedInstruction decoded) {
+	    this.decoded = decoded;
+	    writesMemory = true;
+	}
+
+	void execute() throws MipsException {
+	    if (interpreter == null)
+		interpreter = new Instruction();
+
+	    interpreter.run(decoded);
+	}
+
+	private final DecodedInstruction decoded;
+    }
+
+    /** Executes the instructions the threaded-code engine does not handle. */
+    private Instruction interpreter = null;
+
+    /**
+     * The parts of a decoded instruction that depend only on the instruction
+     * word, and so can be cached and reused each time the word is executed.
+     */
+    static final class DecodedInstruction {
+	DecodedInstruction(int value) {
+	    this.value = value;
+
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    // get imm
+	    if (Lib.test(Mips.UNSIGNED, flags))
+		imm = Lib.extract(value, 0, 16);
+	    else
+		imm = Lib.extend(value, 0, 16);
+	}
+
+	final int value, op, rs, rt, rd, sh, func, target, imm;
+	final int operation, format, flags;
+	final String name;
+	final int size, dstReg;
+    }
+
+    static class Mips {
 	Mips() {
 	}
 
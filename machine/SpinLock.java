@@ -0,0 +1,92 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A spin lock, for mutual exclusion between simulated processors. Unlike the
+ * kernel's <tt>Lock</tt>, a spin lock does not put the current thread to
+ * sleep, so it can be acquired while interrupts are disabled, and it excludes
+ * threads running on other processors rather than other threads on the same
+ * processor. It should only be held briefly.
+ *
+ * <p>
+ * A spin lock is not owned by a thread. It may be released by a different
+ * thread than the one that acquired it, so that the kernel lock can be handed
+ * across a context switch.
+ *
+ * <p>
+ * A processor waiting for a spin lock first spins, then yields the host CPU,
+ * and finally parks for increasing periods, so that waiting costs little even
+ * when there are more simulated processors than host CPUs.
+ */
+public final class SpinLock {
+    /**
+     * Allocate a new spin lock, initially free.
+     */
+    public SpinLock() {
+    }
+
+    /**
+     * Acquire this lock, waiting until it is free.
+     */
+    public void acquire() {
+	if (held.compareAndSet(false, true))
+	    return;
+
+	long parkNanos = minParkNanos;
+
+	for (int attempt=0; ; attempt++) {
+	    // spin on a plain read, so waiting processors don't contend
+	    if (!held.get() && held.compareAndSet(false, true))
+		return;
+
+	    if (attempt < spins) {
+		continue;
+	    }
+	    else if (attempt < spins + yields) {
+		Thread.yield();
+	    }
+	    else {
+		LockSupport.parkNanos(parkNanos);
+		parkNanos = Math.min(parkNanos*2, maxParkNanos);
+	    }
+	}
+    }
+
+    /**
+     * Acquire this lock if it is free.
+     *
+     * @return	<tt>true</tt> if the lock was acquired.
+     */
+    public boolean tryAcquire() {
+	return held.compareAndSet(false, true);
+    }
+
+    /**
+     * Release this lock. The lock must be held.
+     */
+    public void release() {
+	Lib.assertTrue(held.get());
+
+	held.set(false);
+    }
+
+    /**
+     * Test whether this lock is held by some processor.
+     *
+     * @return	<tt>true</tt> if the lock is held.
+     */
+    public boolean isHeld() {
+	return held.get();
+    }
+
+    private final AtomicBoolean held = new AtomicBoolean(false);
+
+    private static final int spins = 100;
+    private static final int yields = 10;
+    private static final long minParkNanos = 1000;
+    private static final long maxParkNanos = 100000;
+}
@@ -60,6 +60,20 @@ public class StandardConsole implements SerialConsole {
 	}
     }
 
+    /**
+     * Poll for a byte of input, recording or replaying it if there is a
+     * device log.
+     */
+    private int receive() {
+	DeviceLog log = Machine.deviceLog();
+	if (log == null)
+	    return in();
+	else if (log.isReplaying())
+	    return log.consoleInput(-1);
+	else
+	    return log.consoleInput(in());
+    }
+
     private int translateCharacter(int c) {
 	// translate win32 0x0D 0x0A sequence to single newline
 	if (c == 0x0A && prevCarriageReturn) {
@@ -89,7 +103,7 @@ public class StandardConsole implements SerialConsole {
     private void receiveInterrupt() {
 	Lib.assertTrue(incomingKey == -1);
 
-	incomingKey = translateCharacter(in());
+	incomingKey = translateCharacter(receive());
 	if (incomingKey == -1) {
 	    scheduleReceiveInterrupt();
 	}
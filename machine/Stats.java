@@ -20,15 +20,21 @@ public final class Stats {
     public void print() {
 	System.out.println("Ticks: total " + totalTicks
 			   + ", kernel " + kernelTicks
-			   + ", user " + userTicks);
+			   + ", user " + userTicks
+			   + (idleTicks > 0 ? ", idle " + idleTicks : ""));
 	System.out.println("Disk I/O: reads " + numDiskReads
 			   + ", writes " + numDiskWrites);
 	System.out.println("Console I/O: reads " + numConsoleReads
 			   + ", writes " + numConsoleWrites);
 	System.out.println("Paging: page faults " + numPageFaults
-			   + ", TLB misses " + numTLBMisses);
+			   + ", TLB misses " + numTLBMisses
+			   + (numTLBHits > 0 ? ", TLB hits " + numTLBHits : ""));
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
+	if (numRealTimeJobs > 0)
+	    System.out.println("Real time: jobs " + numRealTimeJobs
+			       + ", deadlines missed " + numDeadlinesMissed
+			       + ", budget overruns " + numBudgetOverruns);
     }
 
     /**
@@ -44,6 +50,11 @@ public final class Stats {
      * The total amount of simulated time that Nachos has spent in user mode.
      */
     public long userTicks = 0;
+    /**
+     * The part of <tt>kernelTicks</tt> that the idle thread skipped over
+     * while waiting for an interrupt.
+     */
+    public long idleTicks = 0;
 
     /** The total number of sectors Nachos has read from the simulated disk.*/
     public int numDiskReads = 0;
@@ -57,10 +68,18 @@ public final class Stats {
     public int numPageFaults = 0;
     /** The total number of TLB misses that have occurred. */
     public int numTLBMisses = 0;
+    /** The total number of TLB hits that have occurred. */
+    public long numTLBHits = 0;
     /** The total number of packets Nachos has sent to the network. */
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
     public int numPacketsReceived = 0;
+    /** The total number of real-time jobs that have finished. */
+    public int numRealTimeJobs = 0;
+    /** The number of real-time jobs that finished after their deadline. */
+    public int numDeadlinesMissed = 0;
+    /** The number of real-time jobs that used up their budget. */
+    public int numBudgetOverruns = 0;
 
     /**
      * The amount to advance simulated time after each user instructions is
@@ -6,6 +6,7 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
 import java.security.PrivilegedAction;
 
 /**
@@ -21,6 +22,28 @@ import java.security.PrivilegedAction;
  * <p>
  * Do not use the <i>synchronized</i> keyword <b>anywhere</b> in your code.
  * It's against the rules, <i>and</i> it can easily deadlock nachos.
+ *
+ * <p>
+ * On a machine with more than one processor, a TCB runs on each processor,
+ * but only the one holding the kernel lock runs kernel code, and that is the
+ * one returned by <tt>currentTCB()</tt>. The others are running user code or
+ * waiting for work.
+ *
+ * <p>
+ * Since only one TCB runs at a time, the number of TCBs is limited only by
+ * the memory their JVM threads take. <tt>TCB.maxThreads</tt> sets the limit.
+ * If <tt>TCB.virtualThreads</tt> is set and the JVM supports virtual
+ * threads, each TCB runs on a virtual thread, which costs little more than
+ * its stack as actually used. Otherwise each TCB gets a platform thread,
+ * whose stack size can be reduced with <tt>TCB.stackSize</tt>, in bytes.
+ *
+ * <p>
+ * A context switch hands off directly: the outgoing thread unparks exactly
+ * the incoming one and parks itself, with no monitor for either to contend
+ * on. Setting <tt>TCB.handoff</tt> to <tt>monitor</tt> restores the original
+ * handoff, which waits and notifies on a monitor bound to each TCB, for
+ * comparison. Virtual threads should use the default, since a virtual thread
+ * waiting on a monitor may pin its carrier thread.
  */
 public final class TCB {
     /**
@@ -40,6 +63,50 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	maxThreads = Config.getInteger("TCB.maxThreads", maxThreads);
+	Lib.assertTrue(maxThreads > 0, "TCB.maxThreads must be positive");
+
+	stackSize = Config.getInteger("TCB.stackSize", 0);
+	Lib.assertTrue(stackSize >= 0, "TCB.stackSize must not be negative");
+
+	if (Config.getBoolean("TCB.virtualThreads", false))
+	    findVirtualThreadBuilder();
+
+	String handoff = Config.getString("TCB.handoff", "park");
+	Lib.assertTrue(handoff.equals("park") || handoff.equals("monitor"),
+		       "TCB.handoff must be park or monitor");
+	monitorHandoff = handoff.equals("monitor");
+    }
+
+    /**
+     * Return the name of the context switch handoff in use, set by
+     * <tt>TCB.handoff</tt>.
+     *
+     * @return	<tt>park</tt> or <tt>monitor</tt>.
+     */
+    public static String getHandoff() {
+	return monitorHandoff ? "monitor" : "park";
+    }
+
+    /**
+     * Return the maximum number of started, non-destroyed TCBs that can be in
+     * existence at once, set by <tt>TCB.maxThreads</tt>.
+     *
+     * @return	the maximum number of TCBs.
+     */
+    public static int getMaxThreads() {
+	return maxThreads;
+    }
+
+    /**
+     * Return whether TCBs run on virtual threads, set by
+     * <tt>TCB.virtualThreads</tt>.
+     *
+     * @return	<tt>true</tt> if TCBs run on virtual threads.
+     */
+    public static boolean usesVirtualThreads() {
+	return virtualThreadBuilder != null;
     }
     
     /**
@@ -94,7 +161,7 @@ public final class TCB {
 		};
 
 	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
+		    public void run() { javaThread = newJavaThread(tcbTarget); }
 		});
 
 	    /* The Java thread hasn't yet started, but we need to get it
@@ -105,7 +172,7 @@ public final class TCB {
 	     */
 	    currentTCB.running = false;
 	    
-	    this.javaThread.start();
+	    startJavaThread();
 	    currentTCB.waitForInterrupt();
 	}
 	else {
@@ -119,6 +186,45 @@ public final class TCB {
 	}
     }
 
+    /**
+     * Causes the thread represented by this TCB to begin execution on another
+     * processor. Unlike <tt>start(Runnable)</tt>, the new thread does not wait
+     * to be context switched to, but runs concurrently with the current
+     * thread, starting as soon as it can acquire the kernel lock. When the
+     * target starts, this TCB is the current TCB of the specified processor,
+     * and interrupts are disabled.
+     *
+     * @param	target		the code to run in the new thread.
+     * @param	processor	the number of the processor to start on. No
+     *				other TCB may be running on it.
+     */
+    public void start(Runnable target, int processor) {
+	Lib.assertTrue(javaThread == null && !done);
+	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(processor > 0 && processor < Machine.numProcessors());
+
+	// only a running TCB can start a processor
+	Lib.assertTrue(currentTCB != null &&
+		       currentTCB.javaThread == Thread.currentThread());
+
+	runningThreads.add(this);
+
+	this.target = target;
+	this.processor = processor;
+	startsProcessor = true;
+	running = true;
+
+	tcbTarget = new Runnable() {
+		public void run() { threadroot(); }
+	    };
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() { javaThread = newJavaThread(tcbTarget); }
+	    });
+
+	startJavaThread();
+    }
+
     /**
      * Return the TCB of the currently running thread.
      */
@@ -126,6 +232,42 @@ public final class TCB {
 	return currentTCB;
     }
 
+    /**
+     * Return the number of the processor that the current TCB is running on.
+     *
+     * @return	the current processor number, or 0 before the first TCB
+     *		starts.
+     */
+    static int currentProcessor() {
+	TCB tcb = currentTCB;
+	return (tcb == null) ? 0 : tcb.processor;
+    }
+
+    /**
+     * Release the kernel lock, so that another processor can run kernel code
+     * while the current thread runs user code or waits for work. The current
+     * TCB stops being current until it calls <tt>acquireKernel()</tt>.
+     *
+     * @return	the current TCB.
+     */
+    static TCB releaseKernel() {
+	TCB tcb = currentTCB;
+	Lib.assertTrue(tcb.javaThread == Thread.currentThread());
+
+	kernelLock.release();
+	return tcb;
+    }
+
+    /**
+     * Wait for the kernel lock, and make the specified TCB current again.
+     *
+     * @param	tcb	the TCB returned by <tt>releaseKernel()</tt>.
+     */
+    static void acquireKernel(TCB tcb) {
+	kernelLock.acquire();
+	currentTCB = tcb;
+    }
+
     /**
      * Context switch between the current TCB and this TCB. This TCB will
      * become the new current TCB. It is acceptable for this TCB to be the
@@ -157,6 +299,9 @@ public final class TCB {
 
 	TCB previous = currentTCB;
 	previous.running = false;
+
+	// this TCB takes over the processor
+	this.processor = previous.processor;
 	
 	this.interrupt();
 	previous.yield();
@@ -211,7 +356,15 @@ public final class TCB {
 	// this should be running the current thread
 	Lib.assertTrue(javaThread == Thread.currentThread());
 
-	if (!isFirstTCB) {
+	if (startsProcessor) {
+	    /* We run on our own processor, so we only have to wait for the
+	     * kernel lock before running kernel code.
+	     */
+
+	    acquireKernel(this);
+	    Machine.interrupt().disable();
+	}
+	else if (!isFirstTCB) {
 	    /* start() is waiting for us to wake it up, signalling that it's OK
 	     * to context switch to us. We leave the running flag false so that
 	     * we'll still run if a context switch happens before we go to
@@ -224,11 +377,13 @@ public final class TCB {
 	}
 	else {
 	    /* start() called us directly, so we just need to initialize
-	     * a couple things.
+	     * a couple things. The first TCB runs kernel code, so it holds the
+	     * kernel lock.
 	     */
 	    
 	    currentTCB = this;
 	    running = true;
+	    kernelLock.acquire();
 	}
 
 	try {
@@ -247,6 +402,16 @@ public final class TCB {
 	    runningThreads.removeElement(this);
 	    if (runningThreads.isEmpty())
 		privilege.exit(0);
+
+	    /* Virtual threads do not keep the JVM running, so the first TCB's
+	     * thread, the only platform thread, stays until Nachos exits.
+	     */
+	    if (isFirstTCB && virtualThreadBuilder != null) {
+		while (true) {
+		    try { Thread.sleep(Long.MAX_VALUE); }
+		    catch (InterruptedException e2) { }
+		}
+	    }
 	}
 	catch (Throwable e) {
 	    System.out.print("\n");
@@ -280,14 +445,52 @@ public final class TCB {
     }
 
     /**
-     * Waits on the monitor bound to this TCB until its <tt>running</tt> flag
-     * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
-     * TCB needs to go to wait for its turn to run. This includes the ping-pong
+     * Parks the current thread until this TCB's <tt>running</tt> flag is set
+     * to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a TCB
+     * needs to go to wait for its turn to run. This includes the ping-pong
      * process of starting and destroying TCBs, as well as in context switching
      * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
      * is updated by <tt>contextSwitch()</tt> before we get called.
+     *
+     * <p>
+     * If <tt>interrupt()</tt> unparks this TCB's thread before it parks, the
+     * permit makes <tt>park()</tt> return at once, and the flag is set by
+     * then, so no wakeup is ever lost.
+     */
+    private void waitForInterrupt() {
+	if (monitorHandoff) {
+	    waitOnMonitor();
+	    return;
+	}
+
+	while (!running)
+	    LockSupport.park(this);
+    }
+
+    /**
+     * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
+     * and unparking its thread. Used in the ping-pong process of starting and
+     * destroying TCBs, as well as in context switching to this TCB.
      */
-    private synchronized void waitForInterrupt() {
+    private void interrupt() {
+	if (monitorHandoff) {
+	    notifyMonitor();
+	    return;
+	}
+
+	// once running is set this TCB may be destroyed, so latch its thread
+	Thread thread = javaThread;
+
+	running = true;
+	LockSupport.unpark(thread);
+    }
+
+    /**
+     * The original <tt>waitForInterrupt()</tt>, used if <tt>TCB.handoff</tt>
+     * is <tt>monitor</tt>: waits on the monitor bound to this TCB until its
+     * <tt>running</tt> flag is set.
+     */
+    private synchronized void waitOnMonitor() {
 	while (!running) {
 	    try { wait(); }
 	    catch (InterruptedException e) { }
@@ -295,16 +498,90 @@ public final class TCB {
     }
 
     /**
-     * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-     * and signalling the monitor bound to it. Used in the ping-pong process of
-     * starting and destroying TCBs, as well as in context switching to this
-     * TCB.
+     * The original <tt>interrupt()</tt>, used if <tt>TCB.handoff</tt> is
+     * <tt>monitor</tt>: sets the <tt>running</tt> flag and signals the
+     * monitor bound to this TCB.
      */
-    private synchronized void interrupt() {
+    private synchronized void notifyMonitor() {
 	running = true;
 	notify();
     }
 
+    /**
+     * Create the JVM thread to run a TCB: a virtual thread if they were
+     * asked for and are available, and otherwise a platform thread with the
+     * configured stack size. Must be called with privilege.
+     */
+    private static Thread newJavaThread(Runnable target) {
+	if (virtualThreadBuilder != null) {
+	    try {
+		return (Thread) unstartedMethod.invoke(virtualThreadBuilder,
+						       target);
+	    }
+	    catch (Exception e) {
+		Lib.assertNotReached("unable to create a virtual thread");
+	    }
+	}
+
+	if (stackSize == 0)
+	    return new Thread(target);
+	else
+	    return new Thread(null, target, "TCB", stackSize);
+    }
+
+    /**
+     * Start the JVM thread of this TCB. Starting a virtual thread can start a
+     * carrier thread for the JDK's scheduler, so it is done with privilege.
+     */
+    private void startJavaThread() {
+	if (virtualThreadBuilder == null) {
+	    javaThread.start();
+	    return;
+	}
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() { javaThread.start(); }
+	    });
+    }
+
+    /**
+     * Look up <tt>Thread.ofVirtual()</tt>, which only JVMs with virtual
+     * threads have. Nachos is built for older JVMs, so this is done by
+     * reflection, and platform threads are used if it fails. A first virtual
+     * thread is then run, with privilege, so that the JDK sets up its
+     * scheduler and carrier threads. The scheduler starts more carrier
+     * threads as it needs them, which <tt>NachosSecurityManager</tt> allows.
+     */
+    private static void findVirtualThreadBuilder() {
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			Class<?> builderClass =
+			    Class.forName("java.lang.Thread$Builder");
+			unstartedMethod =
+			    builderClass.getMethod("unstarted", Runnable.class);
+			virtualThreadBuilder =
+			    Thread.class.getMethod("ofVirtual").invoke(null);
+
+			Thread first = (Thread)
+			    unstartedMethod.invoke(virtualThreadBuilder,
+						   new Runnable() {
+						       public void run() { }
+						   });
+			first.start();
+			first.join();
+		    }
+		    catch (Exception e) {
+			virtualThreadBuilder = null;
+		    }
+		}
+	    });
+
+	Lib.debug(dbgTCB, virtualThreadBuilder != null ?
+		  "Using virtual threads" :
+		  "Virtual threads are not available, using platform threads");
+    }
+
     private void associateThread(KThread thread) {
 	// make sure AutoGrader.runningThread() gets called only once per
 	// context switch
@@ -328,9 +605,26 @@ public final class TCB {
 
     /**
      * The maximum number of started, non-destroyed TCB's that can be in
-     * existence.
+     * existence. Set by <tt>TCB.maxThreads</tt>.
+     */
+    private static int maxThreads = 250;
+    /**
+     * The stack size of each platform thread, in bytes, or 0 for the JVM's
+     * default. Set by <tt>TCB.stackSize</tt>.
      */
-    public static final int maxThreads = 250;
+    private static long stackSize = 0;
+    /**
+     * The <tt>Thread.Builder</tt> that creates virtual threads, and its
+     * <tt>unstarted()</tt> method, or <tt>null</tt> if TCBs use platform
+     * threads.
+     */
+    private static Object virtualThreadBuilder = null;
+    private static java.lang.reflect.Method unstartedMethod = null;
+    /**
+     * <tt>true</tt> if context switches use the original monitor handoff
+     * rather than parking. Set by <tt>TCB.handoff</tt>.
+     */
+    private static boolean monitorHandoff = false;
 
     /**
      * A reference to the currently running TCB. It is initialized to
@@ -347,6 +641,16 @@ public final class TCB {
      */
     private static TCB currentTCB = null;
 
+    /**
+     * The kernel lock. On a machine with more than one processor, only the
+     * processor holding this lock may run kernel code, and
+     * <tt>currentTCB</tt> is the TCB running on that processor. Processors
+     * running user code, or waiting for work, do not hold it. The lock is
+     * handed from TCB to TCB by <tt>contextSwitch()</tt> along with the
+     * processor.
+     */
+    private static SpinLock kernelLock = new SpinLock();
+
     /**
      * A vector containing all <i>running</i> TCB objects. It is initialized to
      * an empty vector when the <tt>TCB</tt> class is loaded. TCB objects are
@@ -364,6 +668,8 @@ public final class TCB {
     private static Privilege privilege;
     private static KThread toBeDestroyed = null;
 
+    private static final char dbgTCB = 'T';
+
     /**
      * <tt>true</tt> if and only if this TCB is the first TCB to start, the one
      * started in <tt>Machine.main(String[])</tt>. Initialized by
@@ -387,8 +693,12 @@ public final class TCB {
      * when the associated Java thread ought to run ASAP. When starting or
      * destroying a TCB, this is temporarily true for a thread other than that
      * of the current TCB.
+     *
+     * <p>
+     * Volatile, since with the default handoff no monitor orders the TCB's
+     * thread waking up after the writes made before it was woken.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -396,6 +706,17 @@ public final class TCB {
      * will know that the current TCB is doomed.
      */
     private boolean done = false;
+
+    /**
+     * The number of the processor this TCB is running on, or last ran on. Set
+     * by <tt>contextSwitch()</tt>, or by <tt>start(Runnable, int)</tt>.
+     */
+    private int processor = 0;
+    /**
+     * <tt>true</tt> if this TCB was started on its own processor by
+     * <tt>start(Runnable, int)</tt>.
+     */
+    private boolean startsProcessor = false;
     
     private KThread nachosThread = null;
     private boolean associated = false;
@@ -73,6 +73,9 @@ public final class Timer {
 	int delay = Stats.TimerTicks;
 	delay += Lib.random(delay/10) - (delay/20);
 
+	if (Machine.deviceLog() != null)
+	    delay = Machine.deviceLog().timerDelay(delay);
+
 	privilege.interrupt.schedule(delay, "timer", timerInterrupt);
     }
 
@@ -209,6 +209,11 @@ public class NachosSecurityManager extends SecurityManager {
 	    }
 	}
 
+	// the JDK's virtual thread scheduler starts its carrier threads on
+	// behalf of whichever thread hands it work
+	if (forVirtualThreadScheduler())
+	    return;
+
 	// some are always allowed
 	if (perm instanceof PropertyPermission) {
 	    // allowed to read properties
@@ -276,6 +281,35 @@ public class NachosSecurityManager extends SecurityManager {
 	verifyPrivilege(perm);
     }
 
+    /**
+     * Return whether the permission being checked is needed by the JDK's
+     * scheduler for virtual threads, and not by Nachos code. That is the case
+     * if the scheduler is on the call stack below the check, with only JDK
+     * code between them.
+     *
+     * @return	<tt>true</tt> if the scheduler needs the permission.
+     */
+    private boolean forVirtualThreadScheduler() {
+	Class[] context = getClassContext();
+
+	for (int i=0; i<context.length; i++) {
+	    if (context[i] == NachosSecurityManager.class)
+		continue;
+
+	    String name = context[i].getName();
+
+	    if (name.equals("java.lang.VirtualThread") ||
+		name.equals("jdk.internal.misc.CarrierThread"))
+		return true;
+
+	    if (!name.startsWith("java.") && !name.startsWith("jdk.") &&
+		!name.startsWith("sun."))
+		return false;
+	}
+
+	return false;
+    }
+
     /**
      * Called by the <tt>java.lang.Thread</tt> constructor to determine a
      * thread group for a child thread of the current thread. The caller must
@@ -147,8 +147,19 @@ public abstract class Privilege {
 	 * @param	type	a name for the type of interrupt being
 	 *			scheduled.
 	 * @param	handler	the interrupt handler to call.
+	 * @return	a handle that can be passed to <tt>cancel()</tt>.
 	 */
-	public void schedule(long when, String type, Runnable handler);
+	public long schedule(long when, String type, Runnable handler);
+
+	/**
+	 * Cancel an interrupt that has been scheduled but has not yet occurred.
+	 *
+	 * @param	handle	the handle returned by <tt>schedule()</tt>.
+	 * @return	<tt>true</tt> if the interrupt was cancelled, or
+	 *		<tt>false</tt> if it had already occurred or been
+	 *		cancelled.
+	 */
+	public boolean cancel(long handle);
 	
 	/**
 	 * Advance the simulated time.
@@ -158,6 +169,39 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Advance the simulated time by several ticks at once, checking for
+	 * due interrupts only once at the end.
+	 *
+	 * @param inKernelMode	<tt>true</tt> if the current thread is running kernel
+	 *		code, <tt>false</tt> if the current thread is running
+	 *		MIPS user code.
+	 * @param count	the number of ticks to advance.
+	 */
+	public void tick(boolean inKernelMode, int count);
+
+	/**
+	 * Release the kernel lock to run user code on the specified processor,
+	 * in parallel with the other processors. Only used when there is more
+	 * than one processor. Until <tt>enterKernel()</tt> is called, the
+	 * caller must not touch any kernel or interrupt state.
+	 *
+	 * @param	processor	the number of the current processor.
+	 * @return	the number of instructions that can be run before an
+	 *		interrupt might be due.
+	 */
+	public long leaveKernel(int processor);
+
+	/**
+	 * Wait for the kernel lock after running user code on the specified
+	 * processor, and advance simulated time to account for it. Interrupts
+	 * are not checked until the next call to <tt>tick()</tt>.
+	 *
+	 * @param	processor	the number of the processor.
+	 * @param	instructions	the number of instructions that were run.
+	 */
+	public void enterKernel(int processor, long instructions);
     }
 
     /**
@@ -0,0 +1,53 @@
+#!/bin/sh
+#
+# Differential test of the processor's fast and instrumented execution loops.
+#
+# Runs each user program twice, once normally and once with the disassembly
+# debug flag (-d m), which selects the fully instrumented loop. The
+# disassembly and exception trace is then stripped out, and the remaining
+# output, including the final statistics, must be identical.
+#
+# Run from a project directory (e.g. proj2) after building, with "make
+# difftest", or directly as "sh ../test/difftest.sh [nachos arguments]".
+# Any arguments, such as "-[] other.conf", are passed to every run.
+
+NACHOS="java -cp . nachos.machine.Machine"
+
+strip() {
+    perl -0pe 's/PC=0x[0-9A-F]{8}\t[^\n]*\n//g; s/exception: [^\n]*\n//g' |
+	grep -v '^WARNING'
+}
+
+tmp=${TMPDIR:-/tmp}/difftest.$$
+status=0
+
+# each line is a program, then its console input; programs that need
+# arguments are run from the shell
+while IFS='|' read -r program input; do
+    # the kernel self test echoes the console until it sees a q
+    printf "q\n$input" | $NACHOS "$@" -x $program 2>&1 | strip > $tmp.fast
+    printf "q\n$input" | $NACHOS "$@" -d m -x $program 2>&1 | strip \
+	> $tmp.traced
+
+    if cmp -s $tmp.fast $tmp.traced; then
+	echo "ok     $program"
+    else
+	echo "FAILED $program"
+	diff $tmp.fast $tmp.traced | head -20
+	status=1
+    fi
+
+    rm -f $tmp.fast $tmp.traced
+done <<END
+halt.coff|
+matmult.coff|
+sort.coff|
+echo.coff|
+cat.coff|
+cp.coff|
+mv.coff|
+rm.coff|
+sh.coff|echo a bb ccc\ncp halt.c difftest.c\ncat difftest.c\nrm difftest.c\nexit\n
+END
+
+exit $status
@@ -0,0 +1,28 @@
+/* trapbench.c
+ *	Microbenchmark for the cost of a system call round trip.
+ *
+ *	Makes a large number of "close" syscalls on a bad file descriptor,
+ *	which the kernel rejects without doing any work, so nearly all of
+ *	the time is spent trapping into the kernel and back. Compare the
+ *	wall-clock time of "nachos -x trapbench.coff" across changes to the
+ *	processor's exception path.
+ *
+ *	trapbench.coff is not checked in, so this program is left out of
+ *	TARGETS. Build it with "make trapbench.coff", with ARCHDIR pointing
+ *	at the MIPS cross-compiler.
+ */
+
+#include "syscall.h"
+
+#define NUMTRAPS 1000000
+
+int
+main()
+{
+    int i;
+
+    for (i=0; i<NUMTRAPS; i++)
+	close(-1);
+
+    return 0;
+}
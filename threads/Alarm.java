@@ -26,24 +26,15 @@ public class Alarm {
 
     /**
      * The timer interrupt handler. This is called by the machine's timer
-     * periodically (approximately every 500 clock ticks). Causes the current
-     * thread to yield, forcing a context switch if there is another thread
-     * that should be run.
+     * periodically (approximately every 500 clock ticks). Wakes the threads
+     * whose time has come, then causes the current thread to yield if the
+     * scheduler decides to preempt it, forcing a context switch.
      */
     public void timerInterrupt() {
     	
    
     	
     	boolean status = Machine.interrupt().disable(); 
-    	
-    	//check if there are no waiting threads
-     	if(waitingQueue.isEmpty()) {
-     		return; 
-     	}
-     	//not time yet 
-     	if(waitingQueue.peek().wakeTime > Machine.timer().getTime()) {
-     		return; 	
-     	}
     
      	// our priority queue is already sorted from descending to ascending order so we just check the first element of the waitingQueue and 
     	while(!waitingQueue.isEmpty() && waitingQueue.peek().wakeTime <= Machine.timer().getTime()) {
@@ -53,7 +44,8 @@ public class Alarm {
     		Lib.assertTrue(currentwaiter.wakeTime <= Machine.timer().getTime());
     } 
     	
-    //	KThread.yield();
+    	if (ThreadedKernel.scheduler.timerInterrupt(KThread.currentThread()))
+    	    KThread.yield();
     	Machine.interrupt().restore(status);
   }
     
@@ -89,6 +81,55 @@ public class Alarm {
 	
     }
     
+    /**
+     * Measure how long a thread that wakes from <tt>waitUntil()</tt> waits
+     * for the processor while CPU-bound threads compete for it, and print the
+     * average and worst delay past its wake time. Each CPU-bound thread runs
+     * for the specified number of ticks and then finishes, so with a
+     * scheduler that does not preempt, the sleeper waits for all of them.
+     *
+     * @param	hogs	the number of CPU-bound threads.
+     * @param	work	the ticks each CPU-bound thread runs for.
+     * @param	samples	the number of times to sleep and wake.
+     */
+    public static void benchmark(int hogs, final int work, int samples) {
+	KThread[] hogThreads = new KThread[hogs];
+	for (int i=0; i<hogs; i++) {
+	    hogThreads[i] = new KThread(new Runnable() {
+		    public void run() {
+			// each time interrupts are enabled, the clock ticks
+			for (int j=0; j<work/Stats.KernelTick; j++) {
+			    Machine.interrupt().disable();
+			    Machine.interrupt().enable();
+			}
+		    }
+		});
+	    hogThreads[i].setName("latency hog " + i).fork();
+	}
+
+	long total = 0, worst = 0;
+	for (int i=0; i<samples; i++) {
+	    long wakeTime = Machine.timer().getTime() + benchmarkSleep;
+	    ThreadedKernel.alarm.waitUntil(benchmarkSleep);
+
+	    long latency = Machine.timer().getTime() - wakeTime;
+	    total += latency;
+	    worst = Math.max(worst, latency);
+	}
+
+	for (int i=0; i<hogs; i++)
+	    hogThreads[i].join();
+
+	System.out.println("Alarm: " + hogs + " CPU-bound threads, " +
+			   samples + " wakeups under " +
+			   ThreadedKernel.scheduler.getClass().getName() +
+			   ": average latency " + (total / samples) +
+			   " ticks, worst " + worst + " ticks");
+    }
+
+    /** The ticks the benchmark sleeps for each time. */
+    private static final int benchmarkSleep = 1000;
+
   //implements Comparable, this priorityqueue is sorted in ascending wakeTime order 
  private PriorityQueue<waitingData> waitingQueue = new PriorityQueue<waitingData>();  
     
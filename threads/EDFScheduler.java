@@ -0,0 +1,597 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * A scheduler with a real-time class, scheduled earliest deadline first, on
+ * top of another scheduler for every other thread.
+ *
+ * <p>
+ * A thread joins the real-time class by declaring a period and a budget, both
+ * in ticks, with <tt>setRealTime()</tt>. It then runs one job per period: the
+ * deadline of each job is the end of its period, and the job may use the
+ * budget of processor time. The thread ends each job by calling
+ * <tt>waitForNextPeriod()</tt>, which sleeps until the next period begins. A
+ * set of such threads can meet all of its deadlines on one processor exactly
+ * when their budgets add up to no more than their periods allow, so a thread
+ * is only admitted if the total utilization, the sum of budget/period,
+ * stays within the <tt>EDFScheduler.utilization</tt> key of
+ * <tt>nachos.conf</tt>, which is 1 by default.
+ *
+ * <p>
+ * Real-time threads always run before the other threads, which are left to
+ * the scheduler named by the <tt>EDFScheduler.bestEffort</tt> key,
+ * <tt>RoundRobinScheduler</tt> by default. On every timer interrupt, the
+ * running thread is preempted if a real-time thread with an earlier deadline
+ * is ready, or if it is a real-time thread that has used up its budget. Such
+ * a thread is held back until its current deadline, when it gets a fresh
+ * budget and a deadline one period later, so that it cannot take time from
+ * the others.
+ *
+ * <p>
+ * Each job that finishes is counted in the statistics Nachos prints when it
+ * halts, along with whether it missed its deadline and whether it used up its
+ * budget.
+ */
+public class EDFScheduler extends Scheduler {
+    /**
+     * Allocate a new EDF scheduler, configured from <tt>nachos.conf</tt>.
+     */
+    public EDFScheduler() {
+	this((Scheduler) Lib.constructObject(
+		 Config.getString("EDFScheduler.bestEffort",
+				  "nachos.threads.RoundRobinScheduler")),
+	     Config.getDouble("EDFScheduler.utilization", 1.0));
+    }
+
+    /**
+     * Allocate a new EDF scheduler.
+     *
+     * @param	bestEffort	the scheduler for threads that are not real
+     *				time.
+     * @param	maxUtilization	the largest total utilization to admit.
+     */
+    public EDFScheduler(Scheduler bestEffort, double maxUtilization) {
+	Lib.assertTrue(maxUtilization > 0);
+
+	this.bestEffort = bestEffort;
+	this.maxUtilization = maxUtilization;
+    }
+
+    /**
+     * Return the scheduler for threads that are not real time.
+     *
+     * @return	the best-effort scheduler.
+     */
+    public Scheduler getBestEffort() {
+	return bestEffort;
+    }
+
+    /**
+     * Allocate a new EDF thread queue.
+     *
+     * @param	transferPriority	passed to the best-effort scheduler.
+     *					Real-time threads do not donate
+     *					priority.
+     * @return	a new EDF thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new EDFQueue(bestEffort.newThreadQueue(transferPriority));
+    }
+
+    public int getPriority(KThread thread) {
+	return bestEffort.getPriority(thread);
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return bestEffort.getEffectivePriority(thread);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	bestEffort.setPriority(thread, priority);
+    }
+
+    public boolean increasePriority() {
+	return bestEffort.increasePriority();
+    }
+
+    public boolean decreasePriority() {
+	return bestEffort.decreasePriority();
+    }
+
+    /**
+     * Make a thread real time, or change its period and budget, if the
+     * total utilization allows. Its first job begins now. Must be called
+     * with interrupts disabled, for the current thread or for a thread that
+     * has not been forked.
+     *
+     * @param	thread	the thread.
+     * @param	period	the length of each period, in ticks.
+     * @param	budget	the processor time each job may use, in ticks.
+     * @return	<tt>true</tt> if the thread was admitted.
+     */
+    public boolean setRealTime(KThread thread, long period, long budget) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(budget > 0 && budget <= period);
+
+	Task task = tasks.get(thread);
+	Lib.assertTrue(task == null || task.waitingOn == null);
+
+	double others = utilization - (task == null ? 0 : task.utilization());
+	if (others + (double) budget / period > maxUtilization + 1e-9)
+	    return false;
+
+	if (task == null) {
+	    task = new Task(thread);
+	    tasks.put(thread, task);
+	}
+
+	task.period = period;
+	task.budget = budget;
+	utilization = others + task.utilization();
+
+	long now = Machine.timer().getTime();
+	task.runningSince = now;
+	task.startJob(now + period);
+
+	return true;
+    }
+
+    /**
+     * Return a real-time thread to the best-effort class, releasing its share
+     * of the utilization. A real-time thread must do this before it finishes.
+     * Must be called with interrupts disabled, for the current thread or for
+     * a thread that is not waiting.
+     *
+     * @param	thread	the thread.
+     */
+    public void clearRealTime(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Task task = tasks.remove(thread);
+	Lib.assertTrue(task != null && task.waitingOn == null);
+
+	utilization -= task.utilization();
+    }
+
+    /**
+     * End the current thread's job, and sleep until its next period begins.
+     * If the job finished late, the next one begins at once, with a full
+     * period to its deadline. The current thread must be real time.
+     */
+    public void waitForNextPeriod() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Task task = tasks.get(KThread.currentThread());
+	Lib.assertTrue(task != null);
+
+	long now = Machine.timer().getTime();
+	charge(task, now);
+
+	boolean missed = (now > task.jobDeadline);
+	jobs++;
+	if (missed)
+	    misses++;
+	if (task.overran)
+	    overruns++;
+	Machine.recordRealTimeJob(missed, task.overran);
+
+	long release = Math.max(task.jobDeadline, now);
+	task.startJob(release + task.period);
+
+	if (release > now)
+	    ThreadedKernel.alarm.waitUntil(release - now);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    public void runningThread(KThread thread) {
+	Task task = tasks.get(thread);
+	if (task != null)
+	    task.runningSince = Machine.timer().getTime();
+
+	bestEffort.runningThread(thread);
+    }
+
+    public void stoppingThread(KThread thread) {
+	Task task = tasks.get(thread);
+	if (task != null)
+	    charge(task, Machine.timer().getTime());
+
+	bestEffort.stoppingThread(thread);
+    }
+
+    /**
+     * Charge a real-time thread for the time it has used, or let the
+     * best-effort scheduler account for any other thread, and decide whether
+     * to preempt it.
+     *
+     * @return	<tt>true</tt> if a real-time thread with an earlier deadline
+     *		is ready, if the thread is real time and has used up its
+     *		budget, or if it is not and the best-effort scheduler would
+     *		preempt it.
+     */
+    public boolean timerInterrupt(KThread thread) {
+	long now = Machine.timer().getTime();
+
+	Task task = tasks.get(thread);
+	boolean preempt;
+	if (task != null) {
+	    charge(task, now);
+	    preempt = task.throttled;
+	}
+	else {
+	    preempt = bestEffort.timerInterrupt(thread);
+	}
+
+	EDFQueue readyQueue = (EDFQueue) KThread.readyQueue();
+	readyQueue.release(now);
+
+	Task first = readyQueue.earliest();
+	if (first == null)
+	    return preempt;
+
+	if (task == null || task.throttled)
+	    return true;
+
+	return preempt || first.deadline < task.deadline;
+    }
+
+    /**
+     * Charge a real-time thread for the ticks since it was last charged. If
+     * that uses up its budget, hold it back, moving it aside if it is on the
+     * ready queue.
+     */
+    private void charge(Task task, long now) {
+	task.remaining -= now - task.runningSince;
+	task.runningSince = now;
+
+	if (task.remaining > 0 || task.throttled)
+	    return;
+
+	EDFQueue queue = task.waitingOn;
+	boolean ready = (queue != null && queue == KThread.readyQueue());
+	if (ready)
+	    queue.waitQueue.remove(task);
+
+	task.throttled = true;
+	task.overran = true;
+
+	if (ready)
+	    queue.throttled.add(task);
+    }
+
+    /**
+     * Test if this module is working: overcommitted threads must not be
+     * admitted, real-time threads must leave a queue by deadline, ahead of
+     * everyone else, and a real-time thread that takes a lock must end the
+     * donation to its last holder.
+     */
+    public static void selfTest() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	EDFScheduler scheduler =
+	    new EDFScheduler(new RoundRobinScheduler(), 1.0);
+
+	KThread slow = new KThread().setName("edf test slow");
+	KThread fast = new KThread().setName("edf test fast");
+	KThread other = new KThread().setName("edf test other");
+
+	Lib.assertTrue(scheduler.setRealTime(slow, 1000, 500));
+	Lib.assertTrue(scheduler.setRealTime(fast, 400, 160));
+	Lib.assertTrue(!scheduler.setRealTime(other, 1000, 200));
+
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+	queue.waitForAccess(other);
+	queue.waitForAccess(slow);
+	queue.waitForAccess(fast);
+	Lib.assertTrue(queue.nextThread() == fast);
+	Lib.assertTrue(queue.nextThread() == slow);
+	Lib.assertTrue(queue.nextThread() == other);
+	Lib.assertTrue(queue.nextThread() == null);
+
+	scheduler.clearRealTime(fast);
+	Lib.assertTrue(scheduler.setRealTime(other, 1000, 200));
+
+	EDFScheduler donating =
+	    new EDFScheduler(new PriorityScheduler(), 1.0);
+
+	KThread holder = new KThread().setName("edf test holder");
+	KThread realTime = new KThread().setName("edf test real time");
+	KThread waiter = new KThread().setName("edf test waiter");
+
+	donating.setPriority(holder, 0);
+	donating.setPriority(waiter, 7);
+	Lib.assertTrue(donating.setRealTime(realTime, 1000, 100));
+
+	ThreadQueue lock = donating.newThreadQueue(true);
+	lock.acquire(holder);
+	lock.waitForAccess(realTime);
+	lock.waitForAccess(waiter);
+	Lib.assertTrue(donating.getEffectivePriority(holder) == 7);
+
+	Lib.assertTrue(lock.nextThread() == realTime);
+	Lib.assertTrue(donating.getEffectivePriority(holder) == 0);
+
+	Lib.assertTrue(lock.nextThread() == waiter);
+	Lib.assertTrue(lock.nextThread() == null);
+	Lib.assertTrue(donating.getEffectivePriority(waiter) == 7);
+
+	donating.clearRealTime(realTime);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Run real-time threads against CPU-bound best-effort threads, and print
+     * how many jobs missed their deadlines. Two of the real-time threads stay
+     * within their budgets, and a third needs more than its budget, so it is
+     * held back and misses, without making the others miss. A fourth thread
+     * asks for more than the utilization left, and is turned away. The
+     * current scheduler must be an <tt>EDFScheduler</tt>.
+     *
+     * @param	hogs	the number of CPU-bound threads.
+     * @param	jobs	the number of jobs each real-time thread runs.
+     */
+    public static void benchmark(int hogs, final int jobs) {
+	Lib.assertTrue(ThreadedKernel.scheduler instanceof EDFScheduler);
+	final EDFScheduler scheduler = (EDFScheduler) ThreadedKernel.scheduler;
+
+	int jobsBefore = scheduler.jobs;
+	int missesBefore = scheduler.misses;
+	int overrunsBefore = scheduler.overruns;
+
+	// period, budget, and work of each job
+	final int[][] tasks = { { 2000, 600, 400 },
+				{ 5000, 1500, 1000 },
+				{ 10000, 1000, 1500 } };
+	KThread[] taskThreads = new KThread[tasks.length];
+	for (int i=0; i<tasks.length; i++) {
+	    final int[] task = tasks[i];
+	    taskThreads[i] = new KThread(new Runnable() {
+		    public void run() {
+			for (int j=0; j<jobs; j++) {
+			    burn(task[2]);
+			    scheduler.waitForNextPeriod();
+			}
+
+			boolean intStatus = Machine.interrupt().disable();
+			scheduler.clearRealTime(KThread.currentThread());
+			Machine.interrupt().restore(intStatus);
+		    }
+		});
+	    taskThreads[i].setName("edf benchmark task " + i);
+	}
+
+	boolean intStatus = Machine.interrupt().disable();
+	for (int i=0; i<tasks.length; i++) {
+	    Lib.assertTrue(scheduler.setRealTime(taskThreads[i], tasks[i][0],
+						 tasks[i][1]));
+	}
+	KThread greedy = new KThread().setName("edf benchmark greedy");
+	Lib.assertTrue(!scheduler.setRealTime(greedy, 1000, 500));
+	Machine.interrupt().restore(intStatus);
+
+	for (int i=0; i<tasks.length; i++)
+	    taskThreads[i].fork();
+
+	KThread[] hogThreads = new KThread[hogs];
+	for (int i=0; i<hogs; i++) {
+	    hogThreads[i] = new KThread(new Runnable() {
+		    public void run() { burn(100000); }
+		});
+	    hogThreads[i].setName("edf benchmark hog " + i).fork();
+	}
+
+	for (int i=0; i<tasks.length; i++)
+	    taskThreads[i].join();
+	for (int i=0; i<hogs; i++)
+	    hogThreads[i].join();
+
+	System.out.println("EDFScheduler: " + hogs + " CPU-bound threads: " +
+			   (scheduler.jobs - jobsBefore) + " jobs, " +
+			   (scheduler.misses - missesBefore) +
+			   " deadlines missed, " +
+			   (scheduler.overruns - overrunsBefore) +
+			   " budget overruns");
+    }
+
+    /**
+     * Keep the processor busy for about the specified number of ticks.
+     */
+    private static void burn(int ticks) {
+	// each time interrupts are enabled, the clock ticks
+	for (int i=0; i<ticks/Stats.KernelTick; i++) {
+	    Machine.interrupt().disable();
+	    Machine.interrupt().enable();
+	}
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that keeps real-time threads by deadline, ahead
+     * of a queue of the best-effort scheduler for everyone else. On the ready
+     * queue, real-time threads that have used up their budgets wait apart
+     * until their deadlines.
+     */
+    protected class EDFQueue extends ThreadQueue {
+	EDFQueue(ThreadQueue bestEffortQueue) {
+	    this.bestEffortQueue = bestEffortQueue;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    Task task = tasks.get(thread);
+	    if (task == null) {
+		bestEffortQueue.waitForAccess(thread);
+		return;
+	    }
+
+	    Lib.assertTrue(task.waitingOn == null);
+	    task.waitingOn = this;
+	    task.sequence = sequence++;
+
+	    if (this == KThread.readyQueue()) {
+		if (task.throttled &&
+		    task.deadline <= Machine.timer().getTime())
+		    task.replenish();
+
+		if (task.throttled) {
+		    throttled.add(task);
+		    return;
+		}
+	    }
+
+	    waitQueue.add(task);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    bestEffortQueue.acquire(thread);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (this == KThread.readyQueue())
+		release(Machine.timer().getTime());
+
+	    Task task = waitQueue.pollFirst();
+	    if (task == null)
+		return bestEffortQueue.nextThread();
+
+	    // the last best-effort thread to get access no longer has it
+	    bestEffortQueue.clearOwner();
+
+	    task.waitingOn = null;
+	    return task.thread;
+	}
+
+	ThreadQueue wrappedQueue() {
+	    return bestEffortQueue;
+	}
+
+	/**
+	 * Give the threads held back until the specified time fresh budgets,
+	 * and make them ready.
+	 */
+	void release(long now) {
+	    while (!throttled.isEmpty() && throttled.first().deadline <= now) {
+		Task task = throttled.pollFirst();
+		task.replenish();
+		waitQueue.add(task);
+	    }
+	}
+
+	/**
+	 * Return the waiting real-time thread with the earliest deadline.
+	 *
+	 * @return	the earliest real-time thread, or <tt>null</tt> if
+	 *		there is none.
+	 */
+	Task earliest() {
+	    return waitQueue.isEmpty() ? null : waitQueue.first();
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (Iterator<Task> i=waitQueue.iterator(); i.hasNext(); )
+		System.out.print(i.next().thread + " ");
+	    bestEffortQueue.print();
+	}
+
+	private ThreadQueue bestEffortQueue;
+	/** The waiting real-time threads, by deadline and then arrival. */
+	TreeSet<Task> waitQueue = new TreeSet<Task>(byDeadline);
+	/** The real-time threads held back until their deadlines. */
+	TreeSet<Task> throttled = new TreeSet<Task>(byDeadline);
+    }
+
+    /**
+     * The state of a real-time thread.
+     */
+    protected class Task {
+	Task(KThread thread) {
+	    this.thread = thread;
+	}
+
+	double utilization() {
+	    return (double) budget / period;
+	}
+
+	/**
+	 * Begin a job with the specified deadline, and a full budget.
+	 */
+	void startJob(long deadline) {
+	    jobDeadline = deadline;
+	    this.deadline = deadline;
+	    remaining = budget;
+	    throttled = false;
+	    overran = false;
+	}
+
+	/**
+	 * Give a thread that used up its budget another, for the next
+	 * period.
+	 */
+	void replenish() {
+	    deadline += period;
+	    remaining = budget;
+	    throttled = false;
+	}
+
+	/** The thread with which this object is associated. */
+	KThread thread;
+	long period, budget;
+	/** The deadline of the current job. */
+	long jobDeadline;
+	/**
+	 * The deadline the thread is scheduled by, which is later than that
+	 * of the job if it has used up its budget.
+	 */
+	long deadline;
+	/** The processor time left in the budget. */
+	long remaining;
+	/** When the thread was last charged for the processor. */
+	long runningSince;
+	/** Whether the thread is held back until its deadline. */
+	boolean throttled = false;
+	/** Whether the current job has used up a budget. */
+	boolean overran = false;
+	/** The queue the thread is waiting on, or <tt>null</tt>. */
+	EDFQueue waitingOn = null;
+	/** Orders threads with equal deadlines by arrival. */
+	long sequence;
+    }
+
+    private static final Comparator<Task> byDeadline = new Comparator<Task>() {
+	    public int compare(Task a, Task b) {
+		if (a.deadline != b.deadline)
+		    return a.deadline < b.deadline ? -1 : 1;
+		else if (a.sequence != b.sequence)
+		    return a.sequence < b.sequence ? -1 : 1;
+		else
+		    return 0;
+	    }
+	};
+
+    private Scheduler bestEffort;
+    private double maxUtilization;
+    /** The total utilization of the real-time threads admitted. */
+    private double utilization = 0;
+    /** The real-time threads. */
+    private IdentityHashMap<KThread,Task> tasks =
+	new IdentityHashMap<KThread,Task>();
+    private long sequence = 0;
+
+    /** Jobs finished, deadlines missed, and budgets overrun so far. */
+    private int jobs = 0, misses = 0, overruns = 0;
+}
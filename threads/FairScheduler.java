@@ -0,0 +1,421 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * A scheduler that shares the processor fairly by virtual runtime. Each
+ * thread's virtual runtime grows as it runs, by the ticks it used divided by
+ * its weight, which is its priority. The next thread to receive access is
+ * always the one that has had the least virtual runtime, so over time each
+ * thread gets processor time in proportion to its weight.
+ *
+ * <p>
+ * Each queue keeps its waiting threads in a balanced tree ordered by virtual
+ * runtime, so choosing the next thread takes logarithmic time. Threads with
+ * equal virtual runtime leave in the order they arrived.
+ *
+ * <p>
+ * The scheduler keeps the minimum virtual runtime of the threads that have
+ * run, which only grows. A thread that begins waiting is given virtual
+ * runtime at least this minimum less a fixed credit, read from the
+ * <tt>FairScheduler.sleeperCredit</tt> key of <tt>nachos.conf</tt> in ticks.
+ * A thread that slept, such as one waiting for the console, runs soon after it
+ * wakes, but cannot save up the time it slept to monopolize the processor.
+ *
+ * <p>
+ * This scheduler preempts: on every timer interrupt, the running thread is
+ * charged for the time it has used, and yields if it is more than the
+ * <tt>FairScheduler.granularity</tt> key, in ticks, ahead of the first ready
+ * thread. There is no priority donation.
+ */
+public class FairScheduler extends Scheduler {
+    /**
+     * Allocate a new fair scheduler, configured from <tt>nachos.conf</tt>.
+     */
+    public FairScheduler() {
+	this(Config.getInteger("FairScheduler.sleeperCredit",
+			       2*Stats.TimerTicks),
+	     Config.getInteger("FairScheduler.granularity", Stats.TimerTicks));
+    }
+
+    /**
+     * Allocate a new fair scheduler.
+     *
+     * @param	sleeperCredit	the most virtual runtime, in ticks, that a
+     *				waking thread can be behind the minimum.
+     * @param	granularity	the virtual runtime, in ticks, that the running
+     *				thread can be ahead of the first ready thread
+     *				before it is preempted.
+     */
+    public FairScheduler(int sleeperCredit, int granularity) {
+	Lib.assertTrue(sleeperCredit >= 0 && granularity >= 0);
+
+	this.sleeperCredit = (long) sleeperCredit * weightUnit;
+	this.granularity = (long) granularity * weightUnit;
+    }
+
+    /**
+     * Allocate a new fair thread queue.
+     *
+     * @param	transferPriority	ignored. This scheduler does not
+     *					donate priority.
+     * @return	a new fair thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new FairQueue();
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).priority;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		       priority <= priorityMaximum);
+
+	getThreadState(thread).priority = priority;
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority != priorityMaximum);
+	if (changed)
+	    setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority != priorityMinimum);
+	if (changed)
+	    setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    /**
+     * Start charging the thread for the processor.
+     */
+    public void runningThread(KThread thread) {
+	ThreadState state = getThreadState(thread);
+
+	state.runningSince = Machine.timer().getTime();
+	minVruntime = Math.max(minVruntime, state.vruntime);
+    }
+
+    /**
+     * Charge the thread for the rest of the time it ran.
+     */
+    public void stoppingThread(KThread thread) {
+	charge(getThreadState(thread), Machine.timer().getTime());
+    }
+
+    /**
+     * Charge the running thread for the time it has used, and preempt it if
+     * it is too far ahead of the first ready thread.
+     *
+     * @return	<tt>true</tt> if the thread's virtual runtime exceeds that of
+     *		the first ready thread by more than the granularity.
+     */
+    public boolean timerInterrupt(KThread thread) {
+	ThreadState state = getThreadState(thread);
+
+	charge(state, Machine.timer().getTime());
+
+	FairQueue readyQueue = readyQueue();
+	if (readyQueue.waitQueue.isEmpty())
+	    return false;
+
+	return state.vruntime - readyQueue.waitQueue.first().vruntime >
+	    granularity;
+    }
+
+    /**
+     * Return the ready queue, or the queue of this scheduler that it wraps.
+     *
+     * @return	the queue that holds the ready threads of this scheduler.
+     */
+    private FairQueue readyQueue() {
+	ThreadQueue queue = KThread.readyQueue();
+	while (!(queue instanceof FairQueue))
+	    queue = queue.wrappedQueue();
+
+	return (FairQueue) queue;
+    }
+
+    /**
+     * Charge a thread for the ticks since it was last charged, and move it in
+     * its queue if it is waiting.
+     */
+    private void charge(ThreadState state, long now) {
+	long ticks = now - state.runningSince;
+	state.runningSince = now;
+
+	if (ticks == 0)
+	    return;
+
+	FairQueue queue = state.waitingOn;
+	if (queue != null)
+	    queue.waitQueue.remove(state);
+
+	state.vruntime += ticks * weightUnit / state.priority;
+
+	if (queue != null)
+	    queue.waitQueue.add(state);
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * The default priority for a new thread. Do not change this value.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum priority that a thread can have. Do not change this value.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum priority that a thread can have. Do not change this value.
+     */
+    public static final int priorityMaximum = 1000;
+
+    /**
+     * The virtual runtime a thread of weight 1 gains in one tick. Virtual
+     * runtime is kept in these smaller units so that heavy threads still
+     * advance.
+     */
+    private static final long weightUnit = 1024;
+
+    /**
+     * Test if this module is working: threads must share the processor in
+     * proportion to their weights, and a thread that slept must be given only
+     * the bounded credit.
+     */
+    public static void selfTest() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	FairScheduler scheduler = new FairScheduler(1000, 500);
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+
+	int[] priorities = { 1, 2, 4 };
+	KThread[] threads = new KThread[priorities.length];
+	for (int i=0; i<threads.length; i++) {
+	    threads[i] = new KThread().setName("fair test " + i);
+	    scheduler.setPriority(threads[i], priorities[i]);
+	    queue.waitForAccess(threads[i]);
+	}
+
+	int[] ran = tally(threads, scheduler.runSlices(queue, 700));
+	for (int i=0; i<threads.length; i++)
+	    Lib.assertTrue(Math.abs(ran[i] - 100*priorities[i]) <= 1);
+
+	// a thread that slept through all that gets exactly the credit
+	KThread sleeper = new KThread().setName("fair test sleeper");
+	queue.waitForAccess(sleeper);
+	ThreadState state = scheduler.getThreadState(sleeper);
+	Lib.assertTrue(state.vruntime == scheduler.minVruntime - 1000*weightUnit);
+	Lib.assertTrue(queue.nextThread() == sleeper);
+
+	for (int i=0; i<threads.length; i++)
+	    queue.nextThread();
+	Lib.assertTrue(queue.nextThread() == null);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Run a simulated workload on a queue: each time, the thread the queue
+     * chooses runs for one timer interrupt's worth of ticks, is charged for
+     * it, and is put back.
+     *
+     * @return	the thread that received each slice.
+     */
+    private KThread[] runSlices(ThreadQueue queue, int slices) {
+	KThread[] ran = new KThread[slices];
+
+	for (int i=0; i<slices; i++) {
+	    KThread thread = queue.nextThread();
+	    ThreadState state = getThreadState(thread);
+	    minVruntime = Math.max(minVruntime, state.vruntime);
+	    ran[i] = thread;
+
+	    state.runningSince = 0;
+	    charge(state, Stats.TimerTicks);
+	    queue.waitForAccess(thread);
+	}
+
+	return ran;
+    }
+
+    /**
+     * Measure how long this scheduler takes to choose a thread, and how far
+     * each thread's share of the processor strays from its share of the
+     * weights, and print the results. The threads have priorities from 1 to
+     * 10.
+     *
+     * @param	numThreads	the number of threads.
+     * @param	slices		the number of slices to hand out.
+     */
+    public static void benchmark(int numThreads, int slices) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	FairScheduler scheduler = new FairScheduler(0, 0);
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+
+	KThread[] threads = new KThread[numThreads];
+	long totalWeight = 0;
+	for (int i=0; i<numThreads; i++) {
+	    threads[i] = new KThread().setName("fair benchmark " + i);
+	    scheduler.setPriority(threads[i], 1 + i%10);
+	    queue.waitForAccess(threads[i]);
+	    totalWeight += 1 + i%10;
+	}
+
+	// warm up, then time
+	KThread[] chosen = null;
+	long time = 0;
+	for (int round=0; round<2; round++) {
+	    long start = System.nanoTime();
+	    chosen = scheduler.runSlices(queue, slices);
+	    time = System.nanoTime() - start;
+	}
+	int[] ran = tally(threads, chosen);
+
+	double error = 0;
+	for (int i=0; i<numThreads; i++) {
+	    double expected = (double) slices * (1 + i%10) / totalWeight;
+	    error = Math.max(error, Math.abs(ran[i] - expected));
+	}
+
+	System.out.println("FairScheduler: " + numThreads + " threads, " +
+			   slices + " slices: largest share error " +
+			   Math.round(error*10)/10.0 + " slices, " +
+			   (time / slices) + " ns per decision");
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that orders threads by virtual runtime, in a
+     * balanced tree.
+     */
+    protected class FairQueue extends ThreadQueue {
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    Lib.assertTrue(state.waitingOn == null);
+
+	    state.vruntime = Math.max(state.vruntime,
+				      minVruntime - sleeperCredit);
+	    state.sequence = sequence++;
+	    state.waitingOn = this;
+	    waitQueue.add(state);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = waitQueue.pollFirst();
+	    if (state == null)
+		return null;
+
+	    state.waitingOn = null;
+
+	    return state.thread;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (Iterator<ThreadState> i=waitQueue.iterator(); i.hasNext(); )
+		System.out.print(i.next().thread + " ");
+	}
+
+	/** The waiting threads, by virtual runtime and then arrival. */
+	TreeSet<ThreadState> waitQueue =
+	    new TreeSet<ThreadState>(new Comparator<ThreadState>() {
+		    public int compare(ThreadState a, ThreadState b) {
+			if (a.vruntime != b.vruntime)
+			    return a.vruntime < b.vruntime ? -1 : 1;
+			else if (a.sequence != b.sequence)
+			    return a.sequence < b.sequence ? -1 : 1;
+			else
+			    return 0;
+		    }
+		});
+    }
+
+    /**
+     * The scheduling state of a thread: its weight and its virtual runtime.
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The priority of the associated thread, which is its weight. */
+	protected int priority = priorityDefault;
+	/** The virtual runtime of the thread, in units of 1/1024 tick. */
+	long vruntime = 0;
+	/** When the thread was last charged for the processor. */
+	long runningSince = 0;
+	/** Orders threads with equal virtual runtime by arrival. */
+	long sequence;
+	/** The queue the thread is waiting on, or <tt>null</tt>. */
+	FairQueue waitingOn = null;
+    }
+
+    private long sleeperCredit;
+    private long granularity;
+
+    /** The least virtual runtime of the threads that have run. */
+    private long minVruntime = 0;
+    private long sequence = 0;
+}
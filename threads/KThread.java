@@ -33,28 +33,33 @@ public class KThread {
      * @return	the current thread.
      */
     public static KThread currentThread() {
-	Lib.assertTrue(currentThread != null);
-	return currentThread;
+	Lib.assertTrue(currentThreads != null);
+
+	KThread thread = currentThreads[Machine.processorNumber()];
+	Lib.assertTrue(thread != null);
+	return thread;
     }
     
     /**
      * Allocate a new <tt>KThread</tt>. If this is the first <tt>KThread</tt>,
-     * create an idle thread as well.
+     * create an idle thread for each processor as well, and start the other
+     * processors.
      */
     public KThread() {
-	if (currentThread != null) {
+	if (currentThreads != null) {
 	    tcb = new TCB();
 	}	    
 	else {
 	    readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
 	    readyQueue.acquire(this);	    
 
-	    currentThread = this;
+	    currentThreads = new KThread[Machine.numProcessors()];
+	    currentThreads[Machine.processorNumber()] = this;
 	    tcb = TCB.currentTCB();
 	    name = "main";
 	    restoreState();
 
-	    createIdleThread();
+	    createIdleThreads();
 	}
     }
 
@@ -163,7 +168,7 @@ public class KThread {
     private void begin() {
 	Lib.debug(dbgThread, "Beginning thread: " + toString());
 	
-	Lib.assertTrue(this == currentThread);
+	Lib.assertTrue(this == currentThread());
 
 	restoreState();
 
@@ -181,11 +186,11 @@ public class KThread {
      * delete this thread.
      */
     public static void finish() {
-	Lib.debug(dbgThread, "Finishing thread: " + currentThread.toString());
+	Lib.debug(dbgThread, "Finishing thread: " + currentThread().toString());
 	
 	Machine.interrupt().disable();
 
-	 ThreadQueue currentJoinQueue = currentThread.joinQueue; 
+	 ThreadQueue currentJoinQueue = currentThread().joinQueue; 
 	
 	if(currentJoinQueue != null) {
 		KThread thread = currentJoinQueue.nextThread(); 
@@ -200,10 +205,10 @@ public class KThread {
 	Machine.autoGrader().finishingCurrentThread();
 
 	Lib.assertTrue(toBeDestroyed == null);
-	toBeDestroyed = currentThread;
+	toBeDestroyed = currentThread();
 
 
-	currentThread.status = statusFinished;
+	currentThread().status = statusFinished;
 	
 	
 	
@@ -227,13 +232,13 @@ public class KThread {
      * called with interrupts disabled.
      */
     public static void yield() {
-	Lib.debug(dbgThread, "Yielding thread: " + currentThread.toString());
+	Lib.debug(dbgThread, "Yielding thread: " + currentThread().toString());
 	
-	Lib.assertTrue(currentThread.status == statusRunning);
+	Lib.assertTrue(currentThread().status == statusRunning);
 	
 	boolean intStatus = Machine.interrupt().disable();
 
-	currentThread.ready();
+	currentThread().ready();
 	
 
 	runNextThread();
@@ -253,12 +258,12 @@ public class KThread {
      * scheduled this thread to be destroyed by the next thread to run.
      */
     public static void sleep() {
-	Lib.debug(dbgThread, "Sleeping thread: " + currentThread.toString());
+	Lib.debug(dbgThread, "Sleeping thread: " + currentThread().toString());
 	
 	Lib.assertTrue(Machine.interrupt().disabled());
 
-	if (currentThread.status != statusFinished)
-	    currentThread.status = statusBlocked;
+	if (currentThread().status != statusFinished)
+	    currentThread().status = statusBlocked;
 
 	runNextThread();
     }
@@ -274,12 +279,22 @@ public class KThread {
 	Lib.assertTrue(status != statusReady);
 	
 	status = statusReady;
-	if (this != idleThread)
+	if (this != idleThreads[Machine.processorNumber()])
 	    readyQueue.waitForAccess(this);
 	
 	Machine.autoGrader().readyThread(this);
     }
 
+    /**
+     * Return the queue of threads waiting for the processor, so that a
+     * scheduler can tell it apart from its other queues.
+     *
+     * @return	the ready queue.
+     */
+    static ThreadQueue readyQueue() {
+	return readyQueue;
+    }
+
     /**
      * Waits for this thread to finish. If this thread is already finished,
      * return immediately. This method must only be called once; the second
@@ -288,7 +303,7 @@ public class KThread {
      */
     public void join() {
 	   Lib.debug(dbgThread, "Joining to thread: " + toString());
-	   Lib.assertTrue(this != currentThread);
+	   Lib.assertTrue(this != currentThread());
 	
 	   //disable interrupts , our thread needs to finish without any interruptions
      boolean boolStatus = Machine.interrupt().disable(); 
@@ -300,9 +315,9 @@ public class KThread {
       }
 
     //handle multiple joined requests. A waiting thread needs to be put to sleep while waiting 
-      if(currentThread != this && status != statusFinished) {
-          joinQueue.waitForAccess(currentThread);
-          currentThread.sleep(); 
+      if(currentThread() != this && status != statusFinished) {
+          joinQueue.waitForAccess(currentThread());
+          currentThread().sleep(); 
      }
 
       //re-enable interrupts
@@ -311,25 +326,58 @@ public class KThread {
     }
 
     /**
-     * Create the idle thread. Whenever there are no threads ready to be run,
-     * and <tt>runNextThread()</tt> is called, it will run the idle thread. The
-     * idle thread must never block, and it will only be allowed to run when
-     * all other threads are blocked.
+     * Create the idle threads, one for each processor. Whenever there are no
+     * threads ready to be run, and <tt>runNextThread()</tt> is called, it will
+     * run the idle thread of the current processor. An idle thread must never
+     * block, and it will only be allowed to run when all other threads are
+     * blocked or running on other processors.
      *
      * <p>
-     * Note that <tt>ready()</tt> never adds the idle thread to the ready set.
+     * The idle thread of each processor after the first is started directly
+     * on that processor, which starts the processor running.
+     *
+     * <p>
+     * Note that <tt>ready()</tt> never adds an idle thread to the ready set.
      */
-    private static void createIdleThread() {
-	Lib.assertTrue(idleThread == null);
-	
-	idleThread = new KThread(new Runnable() {
-	    public void run() { while (true) yield(); }
-	});
-	idleThread.setName("idle");
+    private static void createIdleThreads() {
+	Lib.assertTrue(idleThreads == null);
 
-	Machine.autoGrader().setIdleThread(idleThread);
+	idleThreads = new KThread[Machine.numProcessors()];
+	for (int i=0; i<idleThreads.length; i++) {
+	    idleThreads[i] = new KThread(new Runnable() {
+		public void run() { while (true) yield(); }
+	    });
+	    idleThreads[i].setName(i == 0 ? "idle" : "idle " + i);
+	}
+
+	Machine.autoGrader().setIdleThread(idleThreads[0]);
 	
-	idleThread.fork();
+	idleThreads[0].fork();
+
+	for (int i=1; i<idleThreads.length; i++)
+	    idleThreads[i].startOnProcessor(i);
+    }
+
+    /**
+     * Start this thread running on the specified processor, which must not be
+     * running any other thread. The thread is never added to the ready queue.
+     *
+     * @param	processor	the processor number.
+     */
+    private void startOnProcessor(int processor) {
+	Lib.assertTrue(status == statusNew);
+	Lib.assertTrue(target != null);
+
+	Lib.debug(dbgThread, "Starting thread: " + toString()
+		  + " on processor " + processor);
+
+	currentThreads[processor] = this;
+
+	tcb.start(new Runnable() {
+		public void run() {
+		    runThread();
+		}
+	    }, processor);
     }
     
     /**
@@ -338,8 +386,15 @@ public class KThread {
      */
     private static void runNextThread() {
 	KThread nextThread = readyQueue.nextThread();
-	if (nextThread == null)
+	if (nextThread == null) {
+	    KThread idleThread = idleThreads[Machine.processorNumber()];
+
+	    // the idle thread is spinning, so skip ahead to the next interrupt
+	    if (currentThread() == idleThread)
+		Machine.interrupt().idle();
+
 	    nextThread = idleThread;
+	}
 
 	nextThread.run();
     }
@@ -369,16 +424,17 @@ public class KThread {
 
 	Machine.yield();
 
-	currentThread.saveState();
+	currentThread().saveState();
+	ThreadedKernel.scheduler.stoppingThread(currentThread());
 
-	Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
+	Lib.debug(dbgThread, "Switching from: " + currentThread().toString()
 		  + " to: " + toString());
 
-	currentThread = this;
+	currentThreads[Machine.processorNumber()] = this;
 
 	tcb.contextSwitch();
 
-	currentThread.restoreState();
+	currentThread().restoreState();
     }
 
     /**
@@ -386,13 +442,14 @@ public class KThread {
      * <tt>statusRunning</tt> and check <tt>toBeDestroyed</tt>.
      */
     protected void restoreState() {
-	Lib.debug(dbgThread, "Running thread: " + currentThread.toString());
+	Lib.debug(dbgThread, "Running thread: " + currentThread().toString());
 	
 	Lib.assertTrue(Machine.interrupt().disabled());
-	Lib.assertTrue(this == currentThread);
+	Lib.assertTrue(this == currentThread());
 	Lib.assertTrue(tcb == TCB.currentTCB());
 
 	Machine.autoGrader().runningThread(this);
+	ThreadedKernel.scheduler.runningThread(this);
 	
 	status = statusRunning;
 
@@ -409,7 +466,7 @@ public class KThread {
      */
     protected void saveState() {
 	Lib.assertTrue(Machine.interrupt().disabled());
-	Lib.assertTrue(this == currentThread);
+	Lib.assertTrue(this == currentThread());
     }
 
     private static class PingTest implements Runnable {
@@ -424,7 +481,7 @@ public class KThread {
 	    for (int i=0; i<5; i++) {
 		System.out.println("*** thread " + which + " looped "
 				   + i + " times");
-		currentThread.yield();
+		currentThread().yield();
 		    
 	    }
 	}
@@ -441,6 +498,37 @@ public class KThread {
 	new KThread(new PingTest(1)).setName("forked thread").fork();
 	new PingTest(0).run();
     }
+
+    /**
+     * Fork the specified number of threads, so that they all exist at once,
+     * then join them all, and print how long it took. Each thread yields
+     * once before it finishes.
+     *
+     * @param	numThreads	the number of threads to fork.
+     */
+    public static void benchmark(int numThreads) {
+	KThread[] threads = new KThread[numThreads];
+
+	long start = System.nanoTime();
+
+	for (int i=0; i<numThreads; i++) {
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() { currentThread().yield(); }
+		}).setName("benchmark " + i);
+	    threads[i].fork();
+	}
+
+	for (int i=0; i<numThreads; i++)
+	    threads[i].join();
+
+	long elapsed = System.nanoTime() - start;
+
+	System.out.println("KThread: forked and joined " + numThreads +
+			   " threads in " + (elapsed / 1000000) + " ms (" +
+			   (TCB.usesVirtualThreads() ? "virtual" : "platform") +
+			   " threads, TCB.maxThreads = " +
+			   TCB.getMaxThreads() + ")");
+    }
     
     //JOIN TEST 
     public static void JoinTest () {
@@ -527,9 +615,11 @@ public class KThread {
     private static int numCreated = 0;
    
     private static ThreadQueue readyQueue = null;
-    private static KThread currentThread = null;
+    /** The thread running on each processor, indexed by processor number. */
+    private static KThread[] currentThreads = null;
     private static KThread toBeDestroyed = null;
-    private static KThread idleThread = null;
+    /** The idle thread of each processor. */
+    private static KThread[] idleThreads = null;
     
     private static KThread testThread = null; 
 }
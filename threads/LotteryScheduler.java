@@ -1,14 +1,9 @@
-
 package nachos.threads;
 
 import nachos.machine.*;
-import nachos.threads.PriorityScheduler.PriorityQueue;
-import nachos.threads.PriorityScheduler.ThreadState;
 
-import java.util.TreeSet;
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Random;
 
 /**
  * A scheduler that chooses threads using a lottery.
@@ -29,55 +24,37 @@ import java.util.Iterator;
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking
  * the maximum).
+ *
+ * <p>
+ * Each queue keeps the tickets of its waiting threads in a Fenwick tree, so a
+ * lottery is drawn in logarithmic time. A thread's effective tickets, and the
+ * total each queue donates to its owner, are kept up to date as tickets change,
+ * so a change costs logarithmic time for each thread along the chain of
+ * threads waiting on one another.
+ *
+ * <p>
+ * Tickets can be issued in currencies, as in Waldspurger and Weihl's lottery
+ * scheduling. A currency is funded by tickets of another currency, and all of
+ * its tickets share the value of that funding, so a group of threads can be
+ * given a fixed share of the processor however many tickets they issue among
+ * themselves. A thread's tickets stay issued in its currency until it is
+ * given tickets in another one.
+ *
+ * <p>
+ * A thread that gives up the processor after using only a fraction
+ * <i>f</i> of a quantum receives compensation tickets, which multiply its
+ * tickets by 1/<i>f</i> until it next runs, so threads that block often get
+ * their share of the processor too.
  */
 public class LotteryScheduler extends PriorityScheduler {
     /**
      * Allocate a new lottery scheduler.
      */
     public LotteryScheduler() {
+	baseCurrency = new Currency("base", null, 0);
+	baseCurrency.rate = 1;
     }
-    
-    
-    public void setPriority(KThread thread, int priority) { 
-        Lib.assertTrue(Machine.interrupt().disabled()); 
-        getThreadState(thread).setPriority(priority); 
-    } 
- 
-    public boolean increasePriority() { 
-        boolean intStatus = Machine.interrupt().disable(); 
- 
-        KThread thread = KThread.currentThread(); 
-        setPriority(thread, getPriority(thread) + 1); 
- 
-        Machine.interrupt().restore(intStatus); 
-        return true; 
-    } 
- 
-    public boolean decreasePriority() { 
-        boolean intStatus = Machine.interrupt().disable(); 
- 
-        KThread thread = KThread.currentThread(); 
-        setPriority(thread, getPriority(thread) - 1); 
- 
-        Machine.interrupt().restore(intStatus); 
-        return true; 
-    } 
- 
-    protected LotteryThreadState getThreadState(KThread thread) { 
-        if (thread.schedulingState == null) 
-            thread.schedulingState = new LotteryThreadState(thread); 
- 
-        return (LotteryThreadState) thread.schedulingState; 
-    } 
-    
-    public static final int priorityDefault = 1;
-
-	public static final int priorityMinimum = 1;
 
-	public static final int priorityMaximum = Integer.MAX_VALUE;
-   
-    
-   
     /**
      * Allocate a new lottery thread queue.
      *
@@ -87,112 +64,640 @@ public class LotteryScheduler extends PriorityScheduler {
      * @return	a new lottery thread queue.
      */
     public ThreadQueue newThreadQueue(boolean transferPriority) {
-	// implement me
-    return new LotteryQueue(transferPriority);
-    }   
-    
-    
-    
+	return new LotteryQueue(transferPriority);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		       priority <= priorityMaximum);
+
+	LotteryThreadState state = getThreadState(thread);
+	setTickets(thread, state.currency, priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMaximum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMinimum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    /**
+     * Return the base currency, in which tickets are worth their face value.
+     * Threads hold tickets in the base currency unless given others.
+     *
+     * @return	the base currency.
+     */
+    public Currency getBaseCurrency() {
+	return baseCurrency;
+    }
+
+    /**
+     * Create a new currency, funded by the specified number of tickets of
+     * another currency. Must be called with interrupts disabled.
+     *
+     * @param	name	a name for the currency.
+     * @param	funder	the currency that funds the new currency.
+     * @param	funding	the number of tickets of <tt>funder</tt> that the new
+     *			currency is worth.
+     * @return	the new currency.
+     */
+    public Currency newCurrency(String name, Currency funder, int funding) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	Lib.assertTrue(funder != null && funding >= 0);
+
+	Currency currency = new Currency(name, funder, funding);
+	funder.children.add(currency);
+	funder.issued += funding;
+	if (funder != baseCurrency)
+	    revalue(funder);
+
+	return currency;
+    }
+
+    /**
+     * Give a thread the specified number of tickets in the specified
+     * currency, in place of all the tickets it held. Must be called with
+     * interrupts disabled.
+     *
+     * @param	thread		the thread.
+     * @param	currency	the currency of the tickets.
+     * @param	tickets		the number of tickets.
+     */
+    public void setTickets(KThread thread, Currency currency, int tickets) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	Lib.assertTrue(tickets >= 0);
+
+	LotteryThreadState state = getThreadState(thread);
+	Currency previous = state.currency;
+
+	previous.issued -= state.priority;
+	if (previous != baseCurrency)
+	    previous.holders.remove(state);
+
+	state.currency = currency;
+	state.priority = tickets;
+
+	currency.issued += tickets;
+	if (currency != baseCurrency)
+	    currency.holders.add(state);
+
+	if (previous != currency && previous != baseCurrency)
+	    revalue(previous);
+	if (currency != baseCurrency)
+	    revalue(currency);
+	else
+	    state.revalue();
+    }
+
+    /**
+     * Recompute the value of a currency's tickets, and of the tickets of every
+     * thread and currency it funds, after the number it has issued changed.
+     * The base currency's tickets are always worth one each.
+     */
+    private void revalue(Currency currency) {
+	if (currency != baseCurrency) {
+	    if (currency.issued == 0)
+		currency.rate = 0;
+	    else
+		currency.rate = currency.funder.rate * currency.funding /
+		    currency.issued;
+	}
+
+	for (int i=0; i<currency.holders.size(); i++)
+	    currency.holders.get(i).revalue();
+
+	for (int i=0; i<currency.children.size(); i++)
+	    revalue(currency.children.get(i));
+    }
+
+    /**
+     * Note when the thread started running, and end any compensation it was
+     * receiving.
+     */
+    public void runningThread(KThread thread) {
+	LotteryThreadState state = getThreadState(thread);
+
+	state.runningSince = Machine.timer().getTime();
+	state.setCompensation(1);
+    }
+
+    /**
+     * Compensate the thread if it gives up the processor before its quantum
+     * is over.
+     */
+    public void stoppingThread(KThread thread) {
+	LotteryThreadState state = getThreadState(thread);
+
+	long used = Machine.timer().getTime() - state.runningSince;
+	if (used < quantum)
+	    state.setCompensation((double) quantum / Math.max(used, 1));
+    }
+
+    protected LotteryThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new LotteryThreadState(thread);
+
+	return (LotteryThreadState) thread.schedulingState;
+    }
+
+    /**
+     * The default priority for a new thread. Do not change this value.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum priority that a thread can have. Do not change this value.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum priority that a thread can have. Do not change this value.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
+    /**
+     * The length of a quantum in ticks, against which compensation tickets
+     * are computed.
+     */
+    public static final int quantum = Stats.TimerTicks;
+
+    /**
+     * Test if this module is working: threads must win in proportion to their
+     * tickets, tickets must add up through donation, and currencies and
+     * compensation must change what tickets are worth.
+     */
+    public static void selfTest() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	LotteryScheduler scheduler = new LotteryScheduler();
+	scheduler.random = new Random(0);
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+
+	int[] tickets = { 1, 2, 7 };
+	KThread[] threads = new KThread[tickets.length];
+	for (int i=0; i<threads.length; i++) {
+	    threads[i] = new KThread().setName("lottery test " + i);
+	    scheduler.setPriority(threads[i], tickets[i]);
+	    queue.waitForAccess(threads[i]);
+	}
+
+	int draws = 20000;
+	int[] wins = new int[threads.length];
+	for (int i=0; i<draws; i++) {
+	    KThread winner = queue.nextThread();
+	    for (int j=0; j<threads.length; j++) {
+		if (winner == threads[j])
+		    wins[j]++;
+	    }
+	    queue.waitForAccess(winner);
+	}
+	for (int i=0; i<threads.length; i++) {
+	    int expected = draws * tickets[i] / 10;
+	    Lib.assertTrue(Math.abs(wins[i] - expected) < expected / 10);
+	}
+	for (int i=0; i<threads.length; i++)
+	    queue.nextThread();
+	Lib.assertTrue(queue.nextThread() == null);
+
+	// waiters add their tickets to the owner's
+	ThreadQueue lock = scheduler.newThreadQueue(true);
+	lock.acquire(threads[0]);
+	lock.waitForAccess(threads[1]);
+	lock.waitForAccess(threads[2]);
+	Lib.assertTrue(scheduler.getEffectivePriority(threads[0]) == 10);
+
+	KThread next = lock.nextThread();
+	KThread other = (next == threads[1]) ? threads[2] : threads[1];
+	Lib.assertTrue(scheduler.getEffectivePriority(threads[0]) == 1);
+	Lib.assertTrue(scheduler.getEffectivePriority(next) ==
+		       scheduler.getPriority(next) +
+		       scheduler.getPriority(other));
+	Lib.assertTrue(lock.nextThread() == other);
+	Lib.assertTrue(lock.nextThread() == null);
+	Lib.assertTrue(scheduler.getEffectivePriority(other) ==
+		       scheduler.getPriority(other));
+
+	// a currency's tickets share its funding
+	Currency currency =
+	    scheduler.newCurrency("test", scheduler.getBaseCurrency(), 100);
+	scheduler.setTickets(threads[0], currency, 1);
+	scheduler.setTickets(threads[1], currency, 3);
+	Lib.assertTrue(scheduler.getEffectivePriority(threads[0]) == 25);
+	Lib.assertTrue(scheduler.getEffectivePriority(threads[1]) == 75);
+	scheduler.setPriority(threads[1], 9);
+	Lib.assertTrue(scheduler.getEffectivePriority(threads[0]) == 10);
+	Lib.assertTrue(scheduler.getEffectivePriority(threads[1]) == 90);
+
+	// a thread that used a fifth of its quantum gets five times the tickets
+	LotteryThreadState state = scheduler.getThreadState(threads[2]);
+	state.runningSince = Machine.timer().getTime() - quantum/5;
+	scheduler.stoppingThread(threads[2]);
+	Lib.assertTrue(scheduler.getEffectivePriority(threads[2]) == 35);
+	scheduler.runningThread(threads[2]);
+	Lib.assertTrue(scheduler.getEffectivePriority(threads[2]) == 7);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Measure how long it takes to hold a lottery with the specified number
+     * of threads waiting, and print the result. Each step draws a winner and
+     * puts it back, as a running thread does when it yields.
+     *
+     * @param	waiting		the number of threads to keep waiting.
+     * @param	operations	the number of steps to time.
+     */
+    public static void benchmark(int waiting, int operations) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	LotteryScheduler scheduler = new LotteryScheduler();
+	scheduler.random = new Random(0);
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+
+	for (int i=0; i<waiting; i++) {
+	    KThread thread = new KThread().setName("benchmark " + i);
+	    scheduler.setPriority(thread, 1 + i%100);
+	    queue.waitForAccess(thread);
+	}
+
+	// warm up, then time
+	for (int round=0; round<2; round++) {
+	    long start = System.nanoTime();
+
+	    for (int i=0; i<operations; i++)
+		queue.waitForAccess(queue.nextThread());
+
+	    long elapsed = System.nanoTime() - start;
+	    if (round == 1) {
+		System.out.println("LotteryScheduler: " + waiting +
+				   " waiting, " + (elapsed / operations) +
+				   " ns per draw and enqueue");
+	    }
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * A currency in which tickets can be issued. Its value is the value of
+     * the tickets of another currency that fund it, divided among all the
+     * tickets it has issued.
+     */
+    public class Currency {
+	Currency(String name, Currency funder, int funding) {
+	    this.name = name;
+	    this.funder = funder;
+	    this.funding = funding;
+	}
+
+	/**
+	 * Return the name of this currency.
+	 *
+	 * @return	the name of this currency.
+	 */
+	public String getName() {
+	    return name;
+	}
+
+	public String toString() {
+	    return name + " (" + issued + " issued, worth " +
+		Math.round(rate * issued) + ")";
+	}
+
+	private String name;
+	private Currency funder;
+	private int funding;
+	/** The number of tickets of this currency issued. */
+	private long issued = 0;
+	/** The value of one ticket of this currency, in base tickets. */
+	private double rate = 0;
+	/** The threads that hold tickets of this currency. */
+	private ArrayList<LotteryThreadState> holders =
+	    new ArrayList<LotteryThreadState>();
+	/** The currencies funded by this currency. */
+	private ArrayList<Currency> children = new ArrayList<Currency>();
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+     * The tickets of each waiting thread are kept in a slot of a Fenwick
+     * tree, which gives the sum of any prefix of the slots in logarithmic
+     * time.
+     */
     protected class LotteryQueue extends PriorityQueue {
-    	
-    	LotteryQueue(boolean transferPriority) {
-			super(transferPriority);
+	LotteryQueue(boolean transferPriority) {
+	    super(transferPriority);
+
+	    allocate(4);
+	}
+
+	protected ThreadState pickNextThread() {
+	    if (size == 0)
+		return null;
+
+	    if (total == 0) {
+		for (int slot=1; ; slot++) {
+		    if (holders[slot] != null)
+			return holders[slot];
 		}
-    	    
-    	    @Override
-    	 	protected LotteryThreadState pickNextThread() {
-     	 
-     	
-     
-     		if(threadList.isEmpty()) {
-     			return null; 
-     		} else {
-     			
-     		  int totalTickets = 0; 
-     		  
-     		  for(int i = 0; i < threadList.size(); i++) {
-     			  KThread currentThread = (KThread) threadList.get(i); 
-     			  totalTickets += getThreadState(currentThread).getEffectivePriority(); 
-     		  }
-     		  
-     		  int randomNum = (int) (Math.random() * totalTickets); 
-     		  
-     		  LotteryThreadState winnerState = null; 
-     		  
-     		  for(int i = 0; i < threadList.size(); i++) {
-     			  KThread currentThread = (KThread) threadList.get(i); 
-     			  if(randomNum < getThreadState(currentThread).getEffectivePriority()) {
-     				  winnerState = (LotteryThreadState) getThreadState(currentThread); 
-     			  	  break; 
-     			  }
-     			  randomNum -= getThreadState(currentThread).getEffectivePriority(); 
-     		  }
-     			return winnerState; 		
-     	}
-     		
-     		
-     	}
-    	    
-    	    
-    	   
-    	
-    }  
-    	   
-    
+	    }
+
+	    double draw = (random == null) ? Lib.random() : random.nextDouble();
+	    long winning = Math.min((long) (draw * total), total-1);
+
+	    // find the first slot whose prefix sum exceeds the winning ticket
+	    int slot = 0;
+	    for (int step=Integer.highestOneBit(capacity); step>0; step>>=1) {
+		if (slot+step <= capacity && tree[slot+step] <= winning) {
+		    slot += step;
+		    winning -= tree[slot];
+		}
+	    }
+
+	    return holders[slot+1];
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int slot=1; slot<=capacity; slot++) {
+		if (holders[slot] != null)
+		    System.out.print(holders[slot].thread + " ");
+	    }
+	}
+
+	protected boolean isEmpty() {
+	    return size == 0;
+	}
+
+	protected void add(ThreadState state) {
+	    LotteryThreadState lotteryState = (LotteryThreadState) state;
+
+	    if (freeCount == 0)
+		allocate(capacity * 2);
+
+	    int slot = freeSlots[--freeCount];
+	    holders[slot] = lotteryState;
+	    lotteryState.slot = slot;
+	    lotteryState.waitingOn = this;
+	    size++;
+
+	    update(slot, lotteryState.effectiveTickets);
+	}
+
+	protected void remove(ThreadState state) {
+	    LotteryThreadState lotteryState = (LotteryThreadState) state;
+	    Lib.assertTrue(lotteryState.waitingOn == this);
+
+	    int slot = lotteryState.slot;
+	    long tickets = weights[slot];
+
+	    update(slot, -tickets);
+	    holders[slot] = null;
+	    freeSlots[freeCount++] = slot;
+	    lotteryState.waitingOn = null;
+	    size--;
+
+	    if (transferPriority && owner != null)
+		((LotteryThreadState) owner).changeDonated(-tickets);
+	}
+
+	protected void setOwner(ThreadState owner) {
+	    LotteryThreadState previous = (LotteryThreadState) this.owner;
+	    if (previous == owner)
+		return;
+
+	    this.owner = owner;
+
+	    if (transferPriority) {
+		if (previous != null)
+		    previous.changeDonated(-total);
+		if (owner != null)
+		    ((LotteryThreadState) owner).changeDonated(total);
+	    }
+	}
+
+	/**
+	 * Add to the tickets held in the specified slot.
+	 */
+	void update(int slot, long delta) {
+	    weights[slot] += delta;
+	    total += delta;
+
+	    for (int i=slot; i<=capacity; i+=i&-i)
+		tree[i] += delta;
+	}
+
+	/**
+	 * Grow the tree to the specified number of slots, rebuilding it from
+	 * the tickets held in each slot.
+	 */
+	private void allocate(int newCapacity) {
+	    long[] newWeights = new long[newCapacity+1];
+	    LotteryThreadState[] newHolders =
+		new LotteryThreadState[newCapacity+1];
+	    int[] newFreeSlots = new int[newCapacity];
+
+	    if (weights != null) {
+		System.arraycopy(weights, 0, newWeights, 0, capacity+1);
+		System.arraycopy(holders, 0, newHolders, 0, capacity+1);
+		System.arraycopy(freeSlots, 0, newFreeSlots, 0, freeCount);
+	    }
+
+	    // hand out the lowest slots first
+	    for (int slot=newCapacity; slot>capacity; slot--)
+		newFreeSlots[freeCount++] = slot;
+
+	    tree = new long[newCapacity+1];
+	    for (int slot=1; slot<=newCapacity; slot++) {
+		tree[slot] += newWeights[slot];
+		int parent = slot + (slot & -slot);
+		if (parent <= newCapacity)
+		    tree[parent] += tree[slot];
+	    }
+
+	    weights = newWeights;
+	    holders = newHolders;
+	    freeSlots = newFreeSlots;
+	    capacity = newCapacity;
+	}
+
+	/** The Fenwick tree over <tt>weights</tt>, indexed from 1. */
+	private long[] tree;
+	/** The tickets held in each slot. */
+	private long[] weights;
+	private LotteryThreadState[] holders;
+	private int[] freeSlots;
+	private int freeCount = 0;
+	private int capacity = 0;
+	private int size = 0;
+	/** The tickets held by all waiting threads. */
+	private long total = 0;
+    }
+
+    /**
+     * The scheduling state of a thread in a lottery scheduler. The inherited
+     * <tt>priority</tt> is the number of tickets the thread holds, in its
+     * currency.
+     */
     protected class LotteryThreadState extends ThreadState {
-    
-    	
-    			public LotteryThreadState(KThread thread) {
-    					super(thread);
-		    }
-    			
-    			
-    			 /* return the sum of all tickets 
-        	     * 
-        	     */
-    			/*
-        	        public int getSum() {
-        	        	PriorityQueue waiteQueue = null; 
-        	    		ArrayList currentthreadList = null; 
-        	    	    LinkedList<PriorityQueue>  currentAccessList = 
-        	        	     for(int i = 0; i < accessList.size(); i++) {
-        	        	    	 waiteQueue = accessList.get(i); 
-        	        	    	  
-        	        	
-        	    	         for(int j = 0; j < threadList.size(); j++) {
-        	    		   	 int currentP = getThreadState((KThread)threadList.get(i)).getPriority(); 
-        	    	         total += currentP; 
-        	    	         }
-        	        	     }
-        	    	    return total; 
-              }
-              */
-    			
-    			
-    			@Override
-    			public int getEffectivePriority() {
-    				int ticketSum = this.priority; 
-    				
-    				for(int i = 0; i < this.accessList.size(); i++) {
-				PriorityQueue waitQueue = (PriorityQueue) accessList.get(i); 
-				 		if(waitQueue.transferPriority) {
-				 			ArrayList<KThread> currentList = waitQueue.getList(); 
-				 			for(int j = 0; j < currentList.size(); j++) {
-				 				KThread currentThread = (KThread) currentList.get(j); 
-				 				ticketSum += getThreadState(currentThread).getEffectivePriority(); 
-				 			}	 			
-				 		}
-    				}
-    				
-    				
-    				return ticketSum; 
-            }
-            
-
-    
-     }
-
-   }
+	/**
+	 * Allocate a new <tt>LotteryThreadState</tt> object and associate it
+	 * with the specified thread. The thread starts with the default number
+	 * of tickets in the base currency.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public LotteryThreadState(KThread thread) {
+	    super(thread);
+
+	    currency = baseCurrency;
+	    priority = LotteryScheduler.priorityDefault;
+	    currency.issued += priority;
+	    ownTickets = effectiveTickets = priority;
+	}
 
+	/**
+	 * Return the effective tickets of the associated thread: its own,
+	 * plus those of every thread waiting for it.
+	 *
+	 * @return	the effective tickets of the associated thread, or
+	 *		<tt>Integer.MAX_VALUE</tt> if there are more.
+	 */
+	public int getEffectivePriority() {
+	    return (int) Math.min(effectiveTickets, Integer.MAX_VALUE);
+	}
 
+	public void setPriority(int priority) {
+	    setTickets(thread, currency, priority);
+	}
 
+	public void waitForAccess(PriorityQueue waitQueue) {
+	    Lib.assertTrue(waitingOn == null);
+
+	    waitQueue.add(this);
+
+	    if (waitQueue.transferPriority && waitQueue.owner != null) {
+		((LotteryThreadState) waitQueue.owner)
+		    .changeDonated(effectiveTickets);
+	    }
+	}
+
+	public void release(PriorityQueue waitQueue) {
+	}
+
+	/**
+	 * Recompute what the associated thread's own tickets are worth, after
+	 * its currency or compensation changed.
+	 */
+	void revalue() {
+	    long value = Math.round(priority * currency.rate * compensation);
+
+	    adjust(value - ownTickets);
+	    ownTickets = value;
+	}
+
+	void setCompensation(double compensation) {
+	    if (this.compensation != compensation) {
+		this.compensation = compensation;
+		revalue();
+	    }
+	}
+
+	/**
+	 * Add to the tickets donated to the associated thread.
+	 */
+	void changeDonated(long delta) {
+	    donatedTickets += delta;
+	    adjust(delta);
+	}
+
+	/**
+	 * Add to the effective tickets of the associated thread, and pass the
+	 * change along the chain of threads waiting for one another. A chain
+	 * that leads back to a thread already visited is a deadlock, and is not
+	 * followed around again.
+	 */
+	private void adjust(long delta) {
+	    if (delta == 0)
+		return;
+
+	    long walk = ++walks;
+	    LotteryThreadState state = this;
+
+	    while (true) {
+		state.lastWalk = walk;
+		state.effectiveTickets += delta;
+
+		LotteryQueue queue = (LotteryQueue) state.waitingOn;
+		if (queue == null)
+		    return;
+
+		queue.update(state.slot, delta);
+
+		LotteryThreadState owner = (LotteryThreadState) queue.owner;
+		if (!queue.transferPriority || owner == null ||
+		    owner.lastWalk == walk)
+		    return;
+
+		owner.donatedTickets += delta;
+		state = owner;
+	    }
+	}
+
+	/** The currency of the associated thread's tickets. */
+	Currency currency;
+	/** The number of base tickets the thread's own tickets are worth. */
+	long ownTickets;
+	/** The tickets donated by threads waiting for the associated thread. */
+	long donatedTickets = 0;
+	long effectiveTickets;
+	/** The factor by which compensation multiplies the thread's tickets. */
+	double compensation = 1;
+	/** The time at which the associated thread last started running. */
+	long runningSince = 0;
+
+	/** The Fenwick tree slot of the thread in the queue it waits on. */
+	private int slot;
+	/** The last propagation that visited this thread. */
+	private long lastWalk = 0;
+    }
+
+    private Currency baseCurrency;
+    /**
+     * The source of draws for a scheduler under test, which must not disturb
+     * the machine's random numbers, or <tt>null</tt> to use
+     * <tt>Lib.random()</tt>.
+     */
+    Random random = null;
+    /** The number of propagations of ticket changes so far. */
+    private long walks = 0;
+}
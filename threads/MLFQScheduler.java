@@ -0,0 +1,441 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.Iterator;
+
+/**
+ * A multilevel feedback queue scheduler. Waiting threads are kept at one of
+ * several levels, and the next thread to receive access is always the first
+ * thread at the highest level that has any. Threads at the same level are
+ * served first-come first-serve.
+ *
+ * <p>
+ * This scheduler preempts: on every timer interrupt, the alarm asks it
+ * whether the running thread should yield. Each level has a quantum, counted
+ * in timer interrupts, which doubles from one level to the next one down. A
+ * thread that uses up its quantum has shown it is bound by the processor, so
+ * it moves down a level and yields. A thread that blocks before its quantum
+ * is up has shown it is interactive, so it moves up a level. A running thread
+ * also yields as soon as a thread at a higher level is ready, so an
+ * interactive thread that wakes up runs at once.
+ *
+ * <p>
+ * So that threads at the lower levels do not starve, every few timer
+ * interrupts all threads are moved back to the top level. The moves are made
+ * lazily: each thread and each queue remember the last boost they have seen,
+ * and catch up the next time they are used.
+ *
+ * <p>
+ * The number of levels, the quantum of the top level, and the number of timer
+ * interrupts between boosts are read from the <tt>MLFQScheduler.levels</tt>,
+ * <tt>MLFQScheduler.quantum</tt>, and <tt>MLFQScheduler.boostInterval</tt>
+ * keys of <tt>nachos.conf</tt>.
+ *
+ * <p>
+ * Priorities are levels counted from the bottom, so a thread at the top level
+ * has priority <tt>levels-1</tt> and a thread at the bottom has priority 0.
+ * There is no priority donation.
+ */
+public class MLFQScheduler extends Scheduler {
+    /**
+     * Allocate a new multilevel feedback queue scheduler, configured from
+     * <tt>nachos.conf</tt>.
+     */
+    public MLFQScheduler() {
+	this(Config.getInteger("MLFQScheduler.levels", 3),
+	     Config.getInteger("MLFQScheduler.quantum", 1),
+	     Config.getInteger("MLFQScheduler.boostInterval", 50));
+    }
+
+    /**
+     * Allocate a new multilevel feedback queue scheduler.
+     *
+     * @param	levels		the number of levels.
+     * @param	quantum		the quantum of the top level, in timer
+     *				interrupts.
+     * @param	boostInterval	the number of timer interrupts between moving
+     *				all threads back to the top level.
+     */
+    public MLFQScheduler(int levels, int quantum, int boostInterval) {
+	Lib.assertTrue(levels >= 1 && levels <= 30);
+	Lib.assertTrue(quantum >= 1 && boostInterval >= 1);
+
+	this.levels = levels;
+	this.boostInterval = boostInterval;
+
+	quanta = new int[levels];
+	for (int i=0; i<levels; i++)
+	    quanta[i] = quantum << i;
+    }
+
+    /**
+     * Allocate a new multilevel thread queue.
+     *
+     * @param	transferPriority	ignored. This scheduler does not
+     *					donate priority.
+     * @return	a new multilevel thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new MLFQQueue();
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return levels-1 - getThreadState(thread).level();
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum && priority < levels);
+
+	setLevel(getThreadState(thread), levels-1 - priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority != levels-1);
+	if (changed)
+	    setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority != priorityMinimum);
+	if (changed)
+	    setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    /**
+     * Move the thread up a level if it is blocking before its quantum is up.
+     * A thread that is yielding is already back on the ready queue, and keeps
+     * the part of its quantum it has used.
+     */
+    public void stoppingThread(KThread thread) {
+	ThreadState state = getThreadState(thread);
+
+	if (state.waitingOn != null && state.waitingOn == readyQueue())
+	    return;
+
+	int level = state.level();
+	if (state.used < quanta[level])
+	    setLevel(state, Math.max(level-1, 0));
+    }
+
+    /**
+     * Charge the running thread for a timer interrupt, and boost all threads
+     * if it is time to. The thread moves down a level if it has used up its
+     * quantum.
+     *
+     * @return	<tt>true</tt> if another thread is ready, and either the
+     *		thread used up its quantum, all threads were just boosted,
+     *		or the other thread is at a higher level.
+     */
+    public boolean timerInterrupt(KThread thread) {
+	boolean boosted = false;
+	if (++sinceBoost >= boostInterval) {
+	    sinceBoost = 0;
+	    boostEpoch++;
+	    boosted = true;
+	}
+
+	ThreadState state = getThreadState(thread);
+	int level = state.level();
+
+	boolean expired = (++state.used >= quanta[level]);
+	if (expired)
+	    setLevel(state, Math.min(level+1, levels-1));
+
+	int waiting = readyQueue().highestLevel();
+	if (waiting < 0)
+	    return false;
+
+	return expired || boosted || waiting < state.level();
+    }
+
+    /**
+     * Return the ready queue, or the queue of this scheduler that it wraps.
+     *
+     * @return	the queue that holds the ready threads of this scheduler.
+     */
+    protected MLFQQueue readyQueue() {
+	ThreadQueue queue = KThread.readyQueue();
+	while (!(queue instanceof MLFQQueue))
+	    queue = queue.wrappedQueue();
+
+	return (MLFQQueue) queue;
+    }
+
+    /**
+     * Move a thread to the specified level, with a fresh quantum. A waiting
+     * thread moves to the back of the new level of its queue.
+     */
+    private void setLevel(ThreadState state, int level) {
+	MLFQQueue queue = state.waitingOn;
+
+	if (queue != null)
+	    queue.refresh();
+
+	int previous = state.level();
+	if (queue != null)
+	    queue.lists.get(previous).removeLastOccurrence(state.thread);
+
+	state.level = level;
+	state.used = 0;
+
+	if (queue != null)
+	    queue.lists.get(level).add(state.thread);
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * The minimum priority that a thread can have, that of the bottom level.
+     * Do not change this value.
+     */
+    public static final int priorityMinimum = 0;
+
+    /**
+     * Test if this module is working: threads that use up their quanta must
+     * move down, threads that block early must move up, the higher levels
+     * must be served first, and boosts must bring everyone back to the top.
+     */
+    public static void selfTest() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	// the test's queue stands in for the ready queue
+	MLFQScheduler scheduler = new MLFQScheduler(3, 1, 5) {
+		protected MLFQQueue readyQueue() {
+		    if (queue == null)
+			queue = new MLFQQueue();
+
+		    return queue;
+		}
+
+		private MLFQQueue queue = null;
+	    };
+	ThreadQueue queue = scheduler.readyQueue();
+
+	KThread hog = new KThread().setName("mlfq test hog");
+	KThread interactive = new KThread().setName("mlfq test interactive");
+
+	// the hog uses up a quantum at the top level, then two at the next
+	queue.waitForAccess(hog);
+	Lib.assertTrue(queue.nextThread() == hog);
+	scheduler.runningThread(hog);
+	Lib.assertTrue(!scheduler.timerInterrupt(hog));
+	Lib.assertTrue(scheduler.getPriority(hog) == 1);
+	Lib.assertTrue(!scheduler.timerInterrupt(hog));
+	Lib.assertTrue(scheduler.getPriority(hog) == 1);
+	Lib.assertTrue(!scheduler.timerInterrupt(hog));
+	Lib.assertTrue(scheduler.getPriority(hog) == 0);
+
+	// a thread at a higher level preempts it, and runs first
+	queue.waitForAccess(interactive);
+	Lib.assertTrue(scheduler.timerInterrupt(hog));
+	queue.waitForAccess(hog);
+	scheduler.stoppingThread(hog);
+	Lib.assertTrue(scheduler.getPriority(hog) == 0);
+	Lib.assertTrue(queue.nextThread() == interactive);
+	scheduler.runningThread(interactive);
+
+	// blocking early moves a thread up, even while it waits
+	scheduler.setPriority(interactive, 0);
+	scheduler.stoppingThread(interactive);
+	Lib.assertTrue(scheduler.getPriority(interactive) == 1);
+	queue.waitForAccess(interactive);
+	scheduler.setPriority(interactive, 2);
+	Lib.assertTrue(queue.nextThread() == interactive);
+	scheduler.runningThread(interactive);
+	queue.waitForAccess(interactive);
+	scheduler.setPriority(interactive, 0);
+
+	// the fifth interrupt boosts both threads, but the hog then uses up
+	// its new quantum at once
+	Lib.assertTrue(queue.nextThread() == hog);
+	scheduler.runningThread(hog);
+	Lib.assertTrue(scheduler.timerInterrupt(hog));
+	queue.waitForAccess(hog);
+	Lib.assertTrue(scheduler.getPriority(interactive) == 2);
+	Lib.assertTrue(scheduler.getPriority(hog) == 1);
+	Lib.assertTrue(queue.nextThread() == interactive);
+	Lib.assertTrue(queue.nextThread() == hog);
+	Lib.assertTrue(queue.nextThread() == null);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> with a FIFO list for each level.
+     */
+    protected class MLFQQueue extends ThreadQueue {
+	MLFQQueue() {
+	    lists = new ArrayList<LinkedList<KThread>>(levels);
+	    for (int i=0; i<levels; i++)
+		lists.add(new LinkedList<KThread>());
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    Lib.assertTrue(state.waitingOn == null);
+
+	    refresh();
+	    lists.get(state.level()).add(thread);
+	    state.waitingOn = this;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    int level = highestLevel();
+	    if (level < 0)
+		return null;
+
+	    KThread thread = lists.get(level).removeFirst();
+	    ThreadState state = getThreadState(thread);
+	    state.waitingOn = null;
+
+	    return thread;
+	}
+
+	/**
+	 * Return the highest level with a waiting thread.
+	 *
+	 * @return	the highest level with a waiting thread, or -1 if the
+	 *		queue is empty.
+	 */
+	int highestLevel() {
+	    refresh();
+
+	    for (int i=0; i<levels; i++) {
+		if (!lists.get(i).isEmpty())
+		    return i;
+	    }
+
+	    return -1;
+	}
+
+	/**
+	 * Move every thread to the top level if there has been a boost since
+	 * this queue was last used. The threads stay in the order they would
+	 * have been chosen.
+	 */
+	void refresh() {
+	    if (epoch == boostEpoch)
+		return;
+
+	    for (int i=1; i<levels; i++) {
+		lists.get(0).addAll(lists.get(i));
+		lists.get(i).clear();
+	    }
+
+	    epoch = boostEpoch;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    refresh();
+	    for (int i=0; i<levels; i++) {
+		for (Iterator<KThread> j=lists.get(i).iterator(); j.hasNext(); )
+		    System.out.print(j.next() + " ");
+	    }
+	}
+
+	/** The waiting threads at each level, in order of arrival. */
+	ArrayList<LinkedList<KThread>> lists;
+	/** The last boost this queue has seen. */
+	private long epoch = boostEpoch;
+    }
+
+    /**
+     * The scheduling state of a thread: its level, and how much of its
+     * quantum it has used.
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Return the level of the associated thread, first moving it to the
+	 * top if there has been a boost since it was last used.
+	 *
+	 * @return	the level of the associated thread.
+	 */
+	int level() {
+	    if (epoch != boostEpoch) {
+		level = 0;
+		used = 0;
+		epoch = boostEpoch;
+	    }
+
+	    return level;
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The level of the thread, 0 at the top. */
+	int level = 0;
+	/** The timer interrupts charged against the current quantum. */
+	int used = 0;
+	/** The last boost this thread has seen. */
+	long epoch = boostEpoch;
+	/** The queue the thread is waiting on, or <tt>null</tt>. */
+	MLFQQueue waitingOn = null;
+    }
+
+    private int levels;
+    /** The quantum of each level, in timer interrupts. */
+    private int[] quanta;
+    private int boostInterval;
+
+    /** The number of boosts so far. */
+    private long boostEpoch = 0;
+    private int sinceBoost = 0;
+}
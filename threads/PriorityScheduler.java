@@ -1,7 +1,7 @@
 package nachos.threads;
 import nachos.machine.*;
-import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.Random;
 
 /**
  * A scheduler that chooses threads based on their priorities.
@@ -22,6 +22,21 @@ import java.util.LinkedList;
  * <p>
  * A priority scheduler must partially solve the priority inversion problem; in
  * particular, priority must be donated through locks, and through joins.
+ *
+ * <p>
+ * Since there are only eight priorities, each queue keeps one FIFO list of
+ * waiting threads per priority, and a bitmap of the lists that are not empty.
+ * Adding, removing and choosing a thread each take constant time, however many
+ * threads are waiting. A thread whose priority changes while it waits keeps
+ * its place in line, so moving it to its new list takes time proportional to
+ * the number of threads in that list that arrived after it.
+ *
+ * <p>
+ * Donation is maintained incrementally. Each queue that transfers priority
+ * donates its highest waiting priority to its owner, and each thread counts
+ * the donations it receives at each priority, so its effective priority is
+ * known without looking at the queues it owns. A change is passed along the
+ * chain of waiting threads only while it changes what some queue donates.
  */
 public class PriorityScheduler extends Scheduler {
 	/**
@@ -119,70 +134,329 @@ public class PriorityScheduler extends Scheduler {
 		return (ThreadState) thread.schedulingState;
 	}
 
+	/**
+	 * Test if this module is working: threads must leave a queue in order of
+	 * priority, and in the order they arrived among equal priorities, and
+	 * priority must be donated to the owner of a queue that transfers it.
+	 */
+	public static void selfTest() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		PriorityScheduler scheduler = new PriorityScheduler();
+		ThreadQueue queue = scheduler.newThreadQueue(false);
+
+		int[] priorities = { 1, 5, 1, 7, 0, 5, 7, 1 };
+		int[] order = { 3, 6, 1, 5, 0, 2, 7, 4 };
+
+		KThread[] threads = new KThread[priorities.length];
+		for (int i=0; i<threads.length; i++) {
+			threads[i] = new KThread().setName("priority test " + i);
+			scheduler.setPriority(threads[i], priorities[i]);
+			queue.waitForAccess(threads[i]);
+		}
+
+		for (int i=0; i<order.length; i++)
+			Lib.assertTrue(queue.nextThread() == threads[order[i]]);
+		Lib.assertTrue(queue.nextThread() == null);
+
+		// a waiter donates to the owner, which moves up in the ready queue
+		ThreadQueue lock = scheduler.newThreadQueue(true);
+		lock.acquire(threads[4]);
+		queue.waitForAccess(threads[0]);
+		queue.waitForAccess(threads[4]);
+		lock.waitForAccess(threads[3]);
+		Lib.assertTrue(scheduler.getEffectivePriority(threads[4]) == 7);
+		Lib.assertTrue(queue.nextThread() == threads[4]);
+
+		// the donation ends when the owner passes the queue on
+		Lib.assertTrue(lock.nextThread() == threads[3]);
+		Lib.assertTrue(scheduler.getEffectivePriority(threads[4]) == 0);
+		Lib.assertTrue(lock.nextThread() == null);
+		Lib.assertTrue(queue.nextThread() == threads[0]);
+
+		Machine.interrupt().restore(intStatus);
+
+		donationTest(50, 200, 2000, false);
+	}
+
+	/**
+	 * Stress priority donation, and check the effective priority of every
+	 * thread against one computed from scratch. A chain of threads is built in
+	 * which each holds a lock and waits for the lock held by the next, with a
+	 * crowd of other threads waiting on locks along the chain. Then random
+	 * operations change priorities, add waiters, and pass locks on or take
+	 * free ones.
+	 *
+	 * @param	chainLength	the number of threads in the chain.
+	 * @param	waiters		the number of other threads.
+	 * @param	operations	the number of random operations.
+	 * @param	report		<tt>true</tt> to print the time per
+	 *				operation, checking only at the end rather
+	 *				than after every operation.
+	 */
+	public static void donationTest(int chainLength, int waiters,
+					int operations, boolean report) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		PriorityScheduler scheduler = new PriorityScheduler();
+		Random random = new Random(0);
+
+		int numThreads = chainLength + waiters;
+		int numLocks = chainLength + waiters/4 + 1;
+
+		KThread[] threads = new KThread[numThreads];
+		HashMap<KThread,Integer> index = new HashMap<KThread,Integer>();
+		int[] priority = new int[numThreads];
+		int[] waitingFor = new int[numThreads];
+		for (int i=0; i<numThreads; i++) {
+			threads[i] = new KThread().setName("donation test " + i);
+			index.put(threads[i], i);
+			priority[i] = random.nextInt(priorityMaximum+1);
+			scheduler.setPriority(threads[i], priority[i]);
+			waitingFor[i] = -1;
+		}
+
+		ThreadQueue[] locks = new ThreadQueue[numLocks];
+		int[] owner = new int[numLocks];
+		for (int i=0; i<numLocks; i++) {
+			locks[i] = scheduler.newThreadQueue(true);
+			owner[i] = -1;
+		}
+
+		for (int i=0; i<chainLength; i++) {
+			locks[i].acquire(threads[i]);
+			owner[i] = i;
+		}
+		for (int i=0; i<chainLength-1; i++) {
+			locks[i+1].waitForAccess(threads[i]);
+			waitingFor[i] = i+1;
+		}
+		for (int i=chainLength; i<numThreads; i++) {
+			int lock = random.nextInt(Math.max(chainLength, 1));
+			if (owner[lock] != -1) {
+				locks[lock].waitForAccess(threads[i]);
+				waitingFor[i] = lock;
+			}
+		}
+
+		long elapsed = 0;
+		int timed = 0;
+
+		for (int op=0; op<operations; op++) {
+			int thread = random.nextInt(numThreads);
+			int lock = random.nextInt(numLocks);
+			long start = System.nanoTime();
+
+			switch (random.nextInt(4)) {
+			case 0:
+				priority[thread] = random.nextInt(priorityMaximum+1);
+				start = System.nanoTime();
+				scheduler.setPriority(threads[thread], priority[thread]);
+				break;
+
+			case 1:
+				if (waitingFor[thread] != -1 || owner[lock] == -1 ||
+				    waitsFor(owner[lock], thread, owner, waitingFor))
+					continue;
+
+				locks[lock].waitForAccess(threads[thread]);
+				waitingFor[thread] = lock;
+				break;
+
+			case 2:
+				if (owner[lock] == -1 || waitingFor[owner[lock]] != -1)
+					continue;
+
+				int[] expected = null;
+				if (!report)
+					expected = effectivePriorities(priority, waitingFor, owner);
+
+				start = System.nanoTime();
+				KThread next = locks[lock].nextThread();
+				elapsed += System.nanoTime() - start;
+				timed++;
+
+				if (next == null) {
+					owner[lock] = -1;
+					continue;
+				}
+
+				int winner = index.get(next);
+				Lib.assertTrue(waitingFor[winner] == lock);
+				if (!report) {
+					for (int i=0; i<numThreads; i++) {
+						Lib.assertTrue(waitingFor[i] != lock ||
+							       expected[i] <= expected[winner]);
+					}
+				}
+
+				owner[lock] = winner;
+				waitingFor[winner] = -1;
+				if (!report)
+					check(scheduler, threads, priority, waitingFor, owner);
+				continue;
+
+			case 3:
+				if (waitingFor[thread] != -1 || owner[lock] != -1)
+					continue;
+
+				locks[lock].acquire(threads[thread]);
+				owner[lock] = thread;
+				break;
+			}
+
+			elapsed += System.nanoTime() - start;
+			timed++;
+
+			if (!report)
+				check(scheduler, threads, priority, waitingFor, owner);
+		}
+
+		check(scheduler, threads, priority, waitingFor, owner);
+
+		if (report) {
+			System.out.println("PriorityScheduler: donation chain of " +
+					   chainLength + ", " + waiters +
+					   " other threads, " +
+					   (elapsed / Math.max(timed, 1)) +
+					   " ns per operation");
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Test whether a thread waits, directly or through a chain of lock
+	 * owners, for another thread, so that letting the second wait on a lock
+	 * held by the first would deadlock.
+	 */
+	private static boolean waitsFor(int thread, int target, int[] owner,
+					int[] waitingFor) {
+		while (thread != -1) {
+			if (thread == target)
+				return true;
+
+			int lock = waitingFor[thread];
+			thread = (lock == -1) ? -1 : owner[lock];
+		}
+
+		return false;
+	}
+
+	/**
+	 * Compute every thread's effective priority from scratch, by following
+	 * each waiting thread's chain of lock owners.
+	 */
+	private static int[] effectivePriorities(int[] priority, int[] waitingFor,
+						 int[] owner) {
+		int[] effective = priority.clone();
+
+		for (int i=0; i<priority.length; i++) {
+			int lock = waitingFor[i];
+			while (lock != -1 && owner[lock] != -1) {
+				int holder = owner[lock];
+				effective[holder] = Math.max(effective[holder],
+							     priority[i]);
+				lock = waitingFor[holder];
+			}
+		}
+
+		return effective;
+	}
+
+	private static void check(PriorityScheduler scheduler, KThread[] threads,
+				  int[] priority, int[] waitingFor, int[] owner) {
+		int[] expected = effectivePriorities(priority, waitingFor, owner);
+
+		for (int i=0; i<threads.length; i++) {
+			Lib.assertTrue(scheduler.getEffectivePriority(threads[i]) ==
+				       expected[i]);
+		}
+	}
+
+	/**
+	 * Measure how long it takes to choose the next thread with the specified
+	 * number of threads waiting, and print the result. Each step dequeues the
+	 * best thread and puts it back, as a running thread does when it yields.
+	 *
+	 * @param	waiting		the number of threads to keep waiting.
+	 * @param	operations	the number of steps to time.
+	 */
+	public static void benchmark(int waiting, int operations) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		PriorityScheduler scheduler = new PriorityScheduler();
+		ThreadQueue queue = scheduler.newThreadQueue(false);
+
+		for (int i=0; i<waiting; i++) {
+			KThread thread = new KThread().setName("benchmark " + i);
+			scheduler.setPriority(thread, i % (priorityMaximum+1));
+			queue.waitForAccess(thread);
+		}
+
+		// warm up, then time
+		for (int round=0; round<2; round++) {
+			long start = System.nanoTime();
+
+			for (int i=0; i<operations; i++)
+				queue.waitForAccess(queue.nextThread());
+
+			long elapsed = System.nanoTime() - start;
+			if (round == 1) {
+				System.out.println("PriorityScheduler: " + waiting +
+						   " waiting, " +
+						   (elapsed / operations) +
+						   " ns per dequeue and enqueue");
+			}
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
 	/**
 	 * A <tt>ThreadQueue</tt> that sorts threads by priority.
 	 */
 	protected class PriorityQueue extends ThreadQueue {
-		
-		protected ArrayList threadList = new ArrayList(); // store threads 
-		protected KThread mainThread = null;   // Makes a single thread the owner 
-		
 		PriorityQueue(boolean transferPriority) {
 			this.transferPriority = transferPriority;
 		}
 
 		public void waitForAccess(KThread thread) {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			
-			KThread temp = null; 
-			
-			for(int i = 0; i < threadList.size(); i++) {
-				temp = (KThread)threadList.get(i); 
-				getThreadState(thread).updateEffecitvePriority(); //reset it 	
-			}
-			
-			threadList.add(thread);
+
 			getThreadState(thread).waitForAccess(this);
-			
-		
 		}
 
 		public void acquire(KThread thread) {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			mainThread = thread;   //become the main thread and gain access to resources
-			getThreadState(thread).acquire(this); //acquire the thread's state 
+
+			Lib.assertTrue(isEmpty());
+
+			getThreadState(thread).acquire(this);
 		}
 
 		public KThread nextThread() {
-		  boolean status = Machine.interrupt().disable(); 
+			Lib.assertTrue(Machine.interrupt().disabled());
 
-			if (mainThread != null) {
-				getThreadState(mainThread).removeQueue(this); 
-			}
-			
-			//check the "waiting to run" threadList , if there is run it 
-			
-			if(threadList.isEmpty()) {
-				mainThread = null; 
-				Machine.interrupt().restore(status);
-				return null; 
-			}
-			
-			mainThread = pickNextThread().thread; // if we reach here, there is something waiting on thread list and main thread will become that thread 
-			
-			if(mainThread != null) {
-				getThreadState(mainThread).updateEffecitvePriority();
-				threadList.remove(mainThread); 
-				acquire(mainThread); //mainThread acquires access 
+			ThreadState next = pickNextThread();
+
+			if (next == null) {
+				setOwner(null);
+				return null;
 			}
-			
-			Machine.interrupt().restore(status);			
-			return mainThread; 
+
+			remove(next);
+			next.acquire(this);
+
+			return next.thread;
+		}
+
+		void clearOwner() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			setOwner(null);
 		}
 
-		
-		
-		
 		/**
 		 * Return the next thread that <tt>nextThread()</tt> would return,
 		 * without modifying the state of this queue.
@@ -191,50 +465,181 @@ public class PriorityScheduler extends Scheduler {
 		 *		return.
 		 */
 		protected ThreadState pickNextThread() {
-			KThread result = null;
-			int index = 0; 
-			int maxPriority = -1;
-			int currentPriority = 0; 
-			long currentTime = Machine.timer().getTime(); 
-			long waitedTime = 0; 
-		
-	         if(threadList.isEmpty()) {
-	        	 return null; 
-	         }
-	         
-	         for(int i = 0; i < threadList.size(); i++) {
-	        	   KThread currentThread = (KThread) threadList.get(i); 
-	        	   
-	        	   
-	        	   //get the current thread's priority 
-	        	   if(transferPriority) {
-	        		   currentPriority = getThreadState(currentThread).getEffectivePriority(); 
-	        	   } else {
-	        		   currentPriority = getThreadState(currentThread).getPriority(); 
-	        	   }
-	        	   
-	        	   if(currentPriority > maxPriority) {
-	        		   maxPriority = currentPriority; //found most significant thread 
-	        		   index = i;                //save the position 
-	        		   currentTime = waitedTime; //reset the clock 
-	        	   } else if(currentPriority == maxPriority) {
-	        		     waitedTime = getThreadState(currentThread).getWaitedTime();
-	        		     if(waitedTime < currentTime) {
-	        		     currentTime = waitedTime; 
-	        		     index = i; 
-	        		     }
-	        	   } 
-	         }	
-		  return getThreadState((KThread) threadList.get(index)); //returns the appropriate thread 
-		}
-		
+			if (occupied == 0)
+				return null;
+
+			return heads[highestBit(occupied)];
+		}
+
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me (if you want)
+
+			for (int priority=priorityMaximum; priority>=priorityMinimum;
+			     priority--) {
+				for (ThreadState state=heads[priority]; state!=null;
+				     state=state.nextWaiter)
+					System.out.print(state.thread + " ");
+			}
+		}
+
+		/**
+		 * Test whether no threads are waiting on this queue.
+		 *
+		 * @return	<tt>true</tt> if this queue is empty.
+		 */
+		protected boolean isEmpty() {
+			return occupied == 0;
+		}
+
+		/**
+		 * Return the highest effective priority of the threads waiting on
+		 * this queue, which is the priority this queue donates to its owner
+		 * if it transfers priority.
+		 *
+		 * @return	the highest priority waiting, or -1 if the queue is
+		 *		empty.
+		 */
+		protected int getMaxPriority() {
+			return highestBit(occupied);
+		}
+
+		/**
+		 * Append a thread to the list for its effective priority. The
+		 * thread must not be waiting on any queue.
+		 *
+		 * @param	state	the thread to add.
+		 */
+		protected void add(ThreadState state) {
+			state.waitingOn = this;
+			state.sequence = nextSequence++;
+			link(state, state.getEffectivePriority());
+		}
+
+		/**
+		 * Remove a thread from this queue.
+		 *
+		 * @param	state	a thread waiting on this queue.
+		 */
+		protected void remove(ThreadState state) {
+			Lib.assertTrue(state.waitingOn == this);
+
+			unlink(state);
+			state.waitingOn = null;
+		}
+
+		/**
+		 * Move a waiting thread to the list for its effective priority, after
+		 * the priority has changed. The thread keeps its place in line among
+		 * the threads that arrived before and after it, so this takes time
+		 * proportional to the number of threads in the new list that arrived
+		 * after it.
+		 *
+		 * @param	state	a thread waiting on this queue.
+		 */
+		protected void reposition(ThreadState state) {
+			Lib.assertTrue(state.waitingOn == this);
+
+			int priority = state.getEffectivePriority();
+			if (priority != state.bucket) {
+				unlink(state);
+				link(state, priority);
+			}
 		}
-		
-		public ArrayList getList() {
-			return threadList; 
+
+		/**
+		 * Make the specified thread the owner of this queue, taking the
+		 * queue from its last owner.
+		 *
+		 * @param	owner	the new owner, or <tt>null</tt> if none.
+		 */
+		protected void setOwner(ThreadState owner) {
+			ThreadState previous = this.owner;
+
+			if (previous != owner) {
+				this.owner = owner;
+
+				if (previous != null) {
+					if (donation != -1)
+						previous.removeDonation(donation);
+					donation = -1;
+
+					previous.release(this);
+				}
+			}
+
+			ThreadState changed = passDonation();
+			if (changed != null)
+				changed.updateEffectivePriority();
+		}
+
+		/**
+		 * Bring the donation this queue makes to its owner up to date, after
+		 * the threads waiting on it have changed.
+		 *
+		 * @return	the owner, if the donation changed and its effective
+		 *		priority must be updated, or <tt>null</tt> if not.
+		 */
+		protected ThreadState passDonation() {
+			int max = -1;
+			if (transferPriority && owner != null)
+				max = getMaxPriority();
+
+			if (max == donation)
+				return null;
+
+			if (donation != -1)
+				owner.removeDonation(donation);
+			if (max != -1)
+				owner.addDonation(max);
+
+			donation = max;
+			return owner;
+		}
+
+		private void link(ThreadState state, int priority) {
+			state.bucket = priority;
+
+			// walk back past any threads that arrived later
+			ThreadState before = tails[priority];
+			while (before != null && before.sequence > state.sequence)
+				before = before.prevWaiter;
+
+			ThreadState after =
+				(before == null) ? heads[priority] : before.nextWaiter;
+
+			state.prevWaiter = before;
+			state.nextWaiter = after;
+
+			if (before == null)
+				heads[priority] = state;
+			else
+				before.nextWaiter = state;
+
+			if (after == null)
+				tails[priority] = state;
+			else
+				after.prevWaiter = state;
+
+			occupied |= 1 << priority;
+		}
+
+		private void unlink(ThreadState state) {
+			int priority = state.bucket;
+
+			if (state.prevWaiter == null)
+				heads[priority] = state.nextWaiter;
+			else
+				state.prevWaiter.nextWaiter = state.nextWaiter;
+
+			if (state.nextWaiter == null)
+				tails[priority] = state.prevWaiter;
+			else
+				state.nextWaiter.prevWaiter = state.prevWaiter;
+
+			state.prevWaiter = state.nextWaiter = null;
+
+			if (heads[priority] == null)
+				occupied &= ~(1 << priority);
 		}
 
 		/**
@@ -242,8 +647,16 @@ public class PriorityScheduler extends Scheduler {
 		 * threads to the owning thread.
 		 */
 		public boolean transferPriority;
-		LinkedList<KThread> waitQueue = new LinkedList<KThread>();
-		ThreadState lock = null;
+		/** The thread that has access, or <tt>null</tt> if none. */
+		protected ThreadState owner = null;
+		/** The priority donated to the owner, or -1 if none. */
+		private int donation = -1;
+
+		/** The first and last waiting thread of each priority. */
+		private ThreadState[] heads = new ThreadState[priorityMaximum+1];
+		private ThreadState[] tails = new ThreadState[priorityMaximum+1];
+		/** Bit <i>p</i> is set if a thread of priority <i>p</i> is waiting. */
+		private int occupied = 0;
 	}
 
 	/**
@@ -253,29 +666,17 @@ public class PriorityScheduler extends Scheduler {
 	 *
 	 * @see	nachos.threads.KThread#schedulingState
 	 */
-	protected class ThreadState implements Comparable {
-		
-		protected ArrayList accessList = new ArrayList(); 
-		protected long waitedTime = Machine.timer().getTime(); 
-		protected int effectivePriority = -1; //default, subject to change 
-		protected int resetPriority = -1; // will never change , used to reset effectivePriority
+	protected class ThreadState {
 		/**
 		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
 		 * specified thread.
 		 *
 		 * @param	thread	the thread this state belongs to.
 		 */
-		
-		public long getWaitedTime() {
-			return waitedTime; 
-		}
-		
-		
-		
 		public ThreadState(KThread thread) {
 			this.thread = thread;
 
-			setPriority(priorityDefault);
+			priority = effectivePriority = priorityDefault;
 		}
 
 		/**
@@ -293,31 +694,6 @@ public class PriorityScheduler extends Scheduler {
 		 * @return	the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-		PriorityQueue waitQueue = null; 
-		ArrayList currentthreadList = null; 
-		int maxP = priority; 
-		int currentP = 0; 
-		
-		
-		if(effectivePriority == -1) {
-			
-			for(int i = 0; i < accessList.size(); i++) {
-				waitQueue = (PriorityQueue) accessList.get(i); 
-				currentthreadList = waitQueue.getList(); 
-				
-				for(int j = 0; j < currentthreadList.size(); j++) {
-					currentP = ((ThreadState)((KThread)currentthreadList.get(j)).schedulingState).getEffectivePriority();
-					if(currentP > maxP) {
-						maxP = currentP; 
-						effectivePriority = maxP; 
-					}
-				}
-					
-			}	
-		}
-			 if(effectivePriority == -1) 
-				 effectivePriority = getPriority(); 
-
 			return effectivePriority;
 		}
 
@@ -327,15 +703,16 @@ public class PriorityScheduler extends Scheduler {
 		 * @param	priority	the new priority.
 		 */
 		public void setPriority(int priority) {
-			if(this.priority == priority) 
-				return; 
-			else if (priority > PriorityScheduler.priorityMaximum)
-				this.priority = PriorityScheduler.priorityMaximum; 
-			 else if (priority < PriorityScheduler.priorityMinimum) // If it is under the minimum,
-	   			 this.priority = PriorityScheduler.priorityMinimum;// It will be set as the minimum (0)
-	   		 else
-	   			 this.priority = priority;   			// Otherwise, the priority will get the priority
-	   		 effectivePriority = -1;
+			if (priority > PriorityScheduler.priorityMaximum)
+				priority = PriorityScheduler.priorityMaximum;
+			else if (priority < PriorityScheduler.priorityMinimum)
+				priority = PriorityScheduler.priorityMinimum;
+
+			if (this.priority == priority)
+				return;
+
+			this.priority = priority;
+			updateEffectivePriority();
 		}
 
 		/**
@@ -351,11 +728,13 @@ public class PriorityScheduler extends Scheduler {
 		 * @see	nachos.threads.ThreadQueue#waitForAccess
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
+			Lib.assertTrue(waitingOn == null);
 
-			
-			waitedTime = Machine.timer().getTime();  // grab the current time 
+			waitQueue.add(this);
 
-			
+			ThreadState changed = waitQueue.passDonation();
+			if (changed != null)
+				changed.updateEffectivePriority();
 		}
 
 		/**
@@ -369,52 +748,107 @@ public class PriorityScheduler extends Scheduler {
 		 * @see	nachos.threads.ThreadQueue#nextThread
 		 */
 		public void acquire(PriorityQueue waitQueue) {
-			accessList.add(waitQueue); 
-			effectivePriority = -1; 
+			waitQueue.setOwner(this);
 		}
-		
-		
-		public void removeQueue(PriorityQueue removedQueue) {
-			accessList.remove(removedQueue); 
+
+		/**
+		 * Called when the associated thread loses access to whatever is
+		 * guarded by <tt>waitQueue</tt>, because the queue has passed to
+		 * another thread or has no more waiting threads.
+		 *
+		 * @param	waitQueue	the queue the associated thread owned.
+		 */
+		public void release(PriorityQueue waitQueue) {
+			updateEffectivePriority();
 		}
 
-		public void updateEffecitvePriority() {
-			effectivePriority = resetPriority; // effective priority is bunk
-			
+		/**
+		 * Count a donation of the specified priority from a queue the
+		 * associated thread owns.
+		 *
+		 * @param	priority	the priority donated.
+		 */
+		protected void addDonation(int priority) {
+			donations[priority]++;
+			donated |= 1 << priority;
+		}
+
+		/**
+		 * Forget a donation counted by <tt>addDonation()</tt>.
+		 *
+		 * @param	priority	the priority that was donated.
+		 */
+		protected void removeDonation(int priority) {
+			Lib.assertTrue(donations[priority] > 0);
+
+			if (--donations[priority] == 0)
+				donated &= ~(1 << priority);
+		}
+
+		/**
+		 * Recompute the effective priority of the associated thread, which is
+		 * the greater of its own priority and the highest priority waiting on
+		 * any queue it owns that transfers priority. If it changes, the thread
+		 * moves within the queue it is waiting on, and if that changes what
+		 * the queue donates, the owner of the queue is updated in turn, and
+		 * so on along the chain of waiting threads. Each step takes constant
+		 * time, except for the move within the queue, which walks past the
+		 * threads at the new priority that arrived after this one.
+		 */
+		protected void updateEffectivePriority() {
+			ThreadState state = this;
+
+			while (state != null) {
+				int effective = Math.max(state.priority,
+							 highestBit(state.donated));
+
+				if (effective == state.effectivePriority)
+					return;
+
+				state.effectivePriority = effective;
+
+				PriorityQueue queue = state.waitingOn;
+				if (queue == null)
+					return;
+
+				queue.reposition(state);
+				state = queue.passDonation();
+			}
 		}
-		
 
 		/** The thread with which this object is associated. */
 		protected KThread thread;
 		/** The priority of the associated thread. */
 		protected int priority;
-		
-		 public int compareTo(Object obj) {   				 
-	   		 long waitingTime1 = (this.waitedTime);   		 
-	   		 long waitingTime2 = (((ThreadState)obj).waitedTime);   
-	   		 long priority1 = (this.priority);   			 
-	   		 long priority2 = (((ThreadState)obj).priority);   	 
-	   		 if (priority1 > priority2)   				 
-	   			 return -1;   					 
-	   		 else if (priority1 < priority2)   			 
-	   			 return 1;   				
-	   		 else{   						
-	   			 if(waitingTime1 < waitingTime2)    		
-	   				 return -1;   			 	
-	   			 else if (waitingTime1 > waitingTime2)   	 
-	   				 return 1;
-	   			 else
-	   				 return 0;   				
-	   		 }
-	   	 }
-		
-		 public boolean equals(Object o) {
-			 if(this.waitedTime == ((ThreadState)o).waitedTime && this.priority == ((ThreadState)o).priority){
-				return true; 
-			 }
-			return false; 
-		 }
+		/** The effective priority of the associated thread. */
+		protected int effectivePriority;
+		/**
+		 * The number of queues owned by the associated thread that donate
+		 * each priority to it.
+		 */
+		private int[] donations = new int[priorityMaximum+1];
+		/** Bit <i>p</i> is set if some queue donates priority <i>p</i>. */
+		private int donated = 0;
+
+		/** The queue the associated thread is waiting on, if any. */
+		protected PriorityQueue waitingOn = null;
+		/** The priority list the associated thread is in. */
+		private int bucket;
+		/** The order in which the associated thread began waiting. */
+		private long sequence;
+		private ThreadState prevWaiter = null, nextWaiter = null;
 	}
-		
-			
-}
\ No newline at end of file
+
+	/**
+	 * Return the index of the highest bit set in a priority bitmap.
+	 *
+	 * @param	bits	the bitmap.
+	 * @return	the highest priority in the bitmap, or -1 if it is empty.
+	 */
+	private static int highestBit(int bits) {
+		return 31 - Integer.numberOfLeadingZeros(bits);
+	}
+
+	/** The number of threads that have begun waiting on any queue. */
+	private long nextSequence = 0;
+}
@@ -2,6 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.IdentityHashMap;
+
 /**
  * Coordinates a group of thread queues of the same kind.
  *
@@ -154,4 +156,65 @@ public abstract class Scheduler {
     public boolean decreasePriority() {
 	return false;
     }
+
+    /**
+     * Notify the scheduler that the specified thread is now running on the
+     * current processor. <tt>KThread.restoreState()</tt> calls this method
+     * with interrupts disabled. A scheduler that accounts for the processor
+     * time each thread uses can start counting here.
+     *
+     * @param	thread	the thread that is now running.
+     */
+    public void runningThread(KThread thread) {
+    }
+
+    /**
+     * Notify the scheduler that the specified thread, which is the current
+     * thread, is about to give up its processor, because it is yielding,
+     * sleeping, or finishing. <tt>KThread.run()</tt> calls this method with
+     * interrupts disabled, just before switching to the next thread.
+     *
+     * @param	thread	the thread that is giving up its processor.
+     */
+    public void stoppingThread(KThread thread) {
+    }
+
+    /**
+     * Notify the scheduler of a timer interrupt, which arrived while the
+     * specified thread was running on the current processor, and ask whether
+     * the thread should be preempted. <tt>Alarm.timerInterrupt()</tt> calls
+     * this method with interrupts disabled, and yields if it returns
+     * <tt>true</tt>. By default, threads are never preempted.
+     *
+     * @param	thread	the thread that was interrupted.
+     * @return	<tt>true</tt> if the thread should yield.
+     */
+    public boolean timerInterrupt(KThread thread) {
+	return false;
+    }
+
+    /**
+     * Count how many times each of the specified threads was chosen, for a
+     * self test or benchmark. Entries of <tt>chosen</tt> that are
+     * <tt>null</tt> are ignored.
+     *
+     * @param	threads	the threads to count.
+     * @param	chosen	the threads chosen, in order.
+     * @return	the number of times <tt>threads[i]</tt> was chosen, for each
+     *		<tt>i</tt>.
+     */
+    static int[] tally(KThread[] threads, KThread[] chosen) {
+	IdentityHashMap<KThread,Integer> indices =
+	    new IdentityHashMap<KThread,Integer>();
+	for (int i=0; i<threads.length; i++)
+	    indices.put(threads[i], i);
+
+	int[] counts = new int[threads.length];
+	for (int i=0; i<chosen.length; i++) {
+	    if (chosen[i] != null)
+		counts[indices.get(chosen[i])]++;
+	}
+
+	return counts;
+    }
 }
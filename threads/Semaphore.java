@@ -67,13 +67,14 @@ public class Semaphore {
     }
 
     private static class PingTest implements Runnable {
-	PingTest(Semaphore ping, Semaphore pong) {
+	PingTest(Semaphore ping, Semaphore pong, int rounds) {
 	    this.ping = ping;
 	    this.pong = pong;
+	    this.rounds = rounds;
 	}
 	
 	public void run() {
-	    for (int i=0; i<10; i++) {
+	    for (int i=0; i<rounds; i++) {
 		ping.P();
 		pong.V();
 	    }
@@ -81,6 +82,7 @@ public class Semaphore {
 
 	private Semaphore ping;
 	private Semaphore pong;
+	private int rounds;
     }
 
     /**
@@ -90,7 +92,7 @@ public class Semaphore {
 	Semaphore ping = new Semaphore(0);
 	Semaphore pong = new Semaphore(0);
 
-	new KThread(new PingTest(ping, pong)).setName("ping").fork();
+	new KThread(new PingTest(ping, pong, 10)).setName("ping").fork();
 
 	for (int i=0; i<10; i++) {
 	    ping.V();
@@ -98,6 +100,40 @@ public class Semaphore {
 	}
     }
 
+    /**
+     * Measure how fast threads can switch, by bouncing between two threads
+     * through a pair of semaphores, and print the result. Every round trip is
+     * two context switches.
+     *
+     * @param	switches	the number of context switches to time.
+     */
+    public static void benchmark(int switches) {
+	int rounds = Math.max(switches / 2, 1);
+
+	Semaphore ping = new Semaphore(0);
+	Semaphore pong = new Semaphore(0);
+
+	KThread pinger =
+	    new KThread(new PingTest(ping, pong, rounds)).setName("ping");
+	pinger.fork();
+
+	long start = System.nanoTime();
+
+	for (int i=0; i<rounds; i++) {
+	    ping.V();
+	    pong.P();
+	}
+
+	long elapsed = Math.max(System.nanoTime() - start, 1);
+	pinger.join();
+
+	System.out.println("Semaphore ping-pong: " + (rounds*2) +
+			   " context switches in " + (elapsed / 1000000) +
+			   " ms, " + (long) (rounds*2 * 1e9 / elapsed) +
+			   " switches per second (TCB.handoff = " +
+			   TCB.getHandoff() + ")");
+    }
+
     private int value;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(false);
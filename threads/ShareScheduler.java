@@ -0,0 +1,689 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.TreeSet;
+
+/**
+ * A scheduler that divides the processor among a hierarchy of share groups.
+ * The root group holds groups, which hold groups or threads, so that, for
+ * example, the threads of each user process can be put in a group for the
+ * process, and the processes in a group for their user. Each group and each
+ * thread has a number of shares, and at every level, the processor is divided
+ * among the members that want it in proportion to their shares, whatever
+ * happens further down. A thread's shares are its priority. Threads that are
+ * not put in a group belong to the root.
+ *
+ * <p>
+ * Each member has a virtual runtime, which grows by the ticks its threads
+ * run divided by its shares. The next thread to run is found by starting at
+ * the root and taking the member with the least virtual runtime at each
+ * level, from a balanced tree of the members that have ready threads. A
+ * member that becomes ready is given at least the virtual runtime of the
+ * last member chosen at its level, so it cannot bank the time it was idle.
+ *
+ * <p>
+ * A group can also have a hard quota: the most ticks its threads may run in
+ * each accounting period, whose length is read from the
+ * <tt>ShareScheduler.period</tt> key of <tt>nachos.conf</tt>. Once a group
+ * uses up its quota, none of its threads is chosen until the next period
+ * begins, even if the processor has nothing else to do. A group is only
+ * stopped on a timer interrupt, so it can run past its quota; the excess is
+ * counted against the next period, so that over time it runs no more than
+ * its quota.
+ *
+ * <p>
+ * This scheduler preempts the running thread on every timer interrupt if
+ * another thread is ready, or if the thread's group has used up its quota.
+ * Only the ready queue is divided by shares; other queues are first-come
+ * first-serve. There is no priority donation.
+ */
+public class ShareScheduler extends Scheduler {
+    /**
+     * Allocate a new share scheduler, configured from <tt>nachos.conf</tt>.
+     */
+    public ShareScheduler() {
+	this(Config.getInteger("ShareScheduler.period", 10*Stats.TimerTicks));
+    }
+
+    /**
+     * Allocate a new share scheduler.
+     *
+     * @param	period	the length of each accounting period, in ticks.
+     */
+    public ShareScheduler(int period) {
+	Lib.assertTrue(period > 0);
+
+	this.period = period;
+    }
+
+    /**
+     * Allocate a new share thread queue.
+     *
+     * @param	transferPriority	ignored. This scheduler does not
+     *					donate priority.
+     * @return	a new share thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new ShareQueue();
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).shares;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		       priority <= priorityMaximum);
+
+	getThreadState(thread).shares = priority;
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority != priorityMaximum);
+	if (changed)
+	    setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority != priorityMinimum);
+	if (changed)
+	    setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    /**
+     * Return the root group, which holds every other group and thread.
+     *
+     * @return	the root group.
+     */
+    public Group getRootGroup() {
+	return root;
+    }
+
+    /**
+     * Create a new group.
+     *
+     * @param	parent	the group to put the new group in.
+     * @param	shares	the shares of the new group.
+     * @param	quota	the most ticks the group may run in each period, or
+     *			0 for no limit.
+     * @return	the new group.
+     */
+    public Group newGroup(Group parent, int shares, long quota) {
+	Lib.assertTrue(parent != null);
+
+	Group group = new Group(parent);
+	group.setShares(shares);
+	group.setQuota(quota);
+
+	return group;
+    }
+
+    /**
+     * Move a thread into a group. Must be called with interrupts disabled,
+     * for a thread that is not on the ready queue.
+     *
+     * @param	thread	the thread to move.
+     * @param	group	the group to move it to.
+     */
+    public void setGroup(KThread thread, Group group) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState state = getThreadState(thread);
+	Lib.assertTrue(!state.ready);
+
+	state.parent = group;
+    }
+
+    public void runningThread(KThread thread) {
+	getThreadState(thread).runningSince = Machine.timer().getTime();
+    }
+
+    public void stoppingThread(KThread thread) {
+	long now = Machine.timer().getTime();
+	ThreadState state = getThreadState(thread);
+
+	charge(state, now - state.runningSince, now);
+	state.runningSince = now;
+    }
+
+    /**
+     * Charge the running thread for the time it has used, and decide whether
+     * to preempt it.
+     *
+     * @return	<tt>true</tt> if another thread is ready, or if a group the
+     *		thread belongs to has used up its quota.
+     */
+    public boolean timerInterrupt(KThread thread) {
+	long now = Machine.timer().getTime();
+	ThreadState state = getThreadState(thread);
+
+	charge(state, now - state.runningSince, now);
+	state.runningSince = now;
+	rollOver(now);
+
+	for (Member member=state; member!=root; member=member.parent) {
+	    if (member.throttled)
+		return true;
+	}
+
+	return !root.members.isEmpty();
+    }
+
+    /**
+     * Charge a thread and the groups it belongs to for the specified number
+     * of ticks, which ended at the specified time. Groups that use up their
+     * quota are held back.
+     */
+    private void charge(ThreadState state, long ticks, long now) {
+	if (ticks <= 0)
+	    return;
+
+	rollOver(now);
+
+	for (Member member=state; member!=root; member=member.parent) {
+	    // the tree is ordered by virtual runtime
+	    boolean listed = member.listed;
+	    if (listed)
+		member.parent.members.remove(member);
+
+	    member.vruntime += ticks * shareUnit / member.shares;
+
+	    if (listed)
+		member.parent.members.add(member);
+
+	    if (member.quota > 0) {
+		refreshUsage(member);
+		member.usage += ticks;
+		if (member.usage >= member.quota && !member.throttled) {
+		    member.throttled = true;
+		    throttled.add(member);
+		    unlist(member);
+		}
+	    }
+	}
+    }
+
+    /**
+     * Begin a new accounting period if the current one is over, releasing
+     * the groups that were held back.
+     */
+    private void rollOver(long now) {
+	if (now < periodStart + period)
+	    return;
+
+	periodStart = now - (now - periodStart) % period;
+	periods++;
+
+	ArrayList<Member> released = throttled;
+	throttled = new ArrayList<Member>();
+	for (Iterator<Member> i=released.iterator(); i.hasNext(); ) {
+	    Member member = i.next();
+
+	    refreshUsage(member);
+	    if (member.usage >= member.quota) {
+		throttled.add(member);
+		continue;
+	    }
+
+	    member.throttled = false;
+	    if (member.wantsToRun())
+		list(member);
+	}
+    }
+
+    /**
+     * Bring a member's usage up to the current accounting period, carrying
+     * over what it ran past its quota in the last one.
+     */
+    private void refreshUsage(Member member) {
+	if (member.usagePeriod == periods)
+	    return;
+
+	if (member.usagePeriod == periods-1)
+	    member.usage = Math.max(member.usage - member.quota, 0);
+	else
+	    member.usage = 0;
+
+	member.usagePeriod = periods;
+    }
+
+    /**
+     * Put a member that has become ready in its group's tree, and the group in
+     * its own group's tree if it was not there, unless they are held back.
+     */
+    private void list(Member member) {
+	while (member != root && !member.listed && !member.throttled) {
+	    Group parent = member.parent;
+
+	    member.vruntime = Math.max(member.vruntime, parent.minVruntime);
+	    member.sequence = sequence++;
+	    parent.members.add(member);
+	    member.listed = true;
+
+	    member = parent;
+	}
+    }
+
+    /**
+     * Take a member out of its group's tree, and the group out of its own
+     * group's tree if it has no other member ready.
+     */
+    private void unlist(Member member) {
+	while (member != root && member.listed) {
+	    Group parent = member.parent;
+
+	    parent.members.remove(member);
+	    member.listed = false;
+
+	    if (!parent.members.isEmpty())
+		break;
+
+	    member = parent;
+	}
+    }
+
+    /**
+     * Add a thread to the threads ready to run.
+     */
+    private void makeReady(ThreadState state) {
+	Lib.assertTrue(!state.ready);
+
+	state.ready = true;
+	list(state);
+    }
+
+    /**
+     * Remove and return the thread that should run next, found by taking the
+     * member with the least virtual runtime at each level.
+     *
+     * @return	the thread to run next, or <tt>null</tt> if no thread is
+     *		ready, or every ready thread is held back.
+     */
+    private ThreadState chooseNext() {
+	if (root.members.isEmpty())
+	    return null;
+
+	Member member = root;
+	while (member instanceof Group) {
+	    Group group = (Group) member;
+	    member = group.members.first();
+	    group.minVruntime = Math.max(group.minVruntime, member.vruntime);
+	}
+
+	ThreadState state = (ThreadState) member;
+	state.ready = false;
+	unlist(state);
+
+	return state;
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * The default priority for a new thread. Do not change this value.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum priority that a thread can have. Do not change this value.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum priority that a thread can have. Do not change this value.
+     */
+    public static final int priorityMaximum = 1000;
+
+    /** The virtual runtime a member with one share gains in one tick. */
+    private static final long shareUnit = 1024;
+
+    /**
+     * Test if this module is working: the processor must be divided by
+     * shares at each level, and a group must not run past its quota.
+     */
+    public static void selfTest() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	ShareScheduler scheduler = new ShareScheduler(10000);
+
+	// group a has three times the shares of group b, whose two
+	// processes split its part evenly
+	Group a = scheduler.newGroup(scheduler.getRootGroup(), 3, 0);
+	Group b = scheduler.newGroup(scheduler.getRootGroup(), 1, 0);
+	Group[] processes = { scheduler.newGroup(a, 1, 0),
+			      scheduler.newGroup(b, 1, 0),
+			      scheduler.newGroup(b, 1, 0) };
+
+	KThread[] threads = new KThread[processes.length];
+	for (int i=0; i<threads.length; i++) {
+	    threads[i] = new KThread().setName("share test " + i);
+	    scheduler.setGroup(threads[i], processes[i]);
+	    scheduler.makeReady(scheduler.getThreadState(threads[i]));
+	}
+
+	int[] ran = tally(threads, scheduler.runSlices(400, 100));
+	Lib.assertTrue(Math.abs(ran[0] - 300) <= 1);
+	Lib.assertTrue(Math.abs(ran[1] - 50) <= 1);
+	Lib.assertTrue(Math.abs(ran[2] - 50) <= 1);
+
+	// held to 1000 ticks in a 10000 tick period, group b runs 10 slices
+	// of 100 ticks
+	scheduler.rollOver(scheduler.periodStart + 10000);
+	b.setQuota(1000);
+	ran = tally(threads, scheduler.runSlices(100, 100));
+	Lib.assertTrue(ran[1] + ran[2] == 10);
+	Lib.assertTrue(ran[0] == 90);
+
+	// and the next period it gets its share again
+	ran = tally(threads, scheduler.runSlices(40, 100));
+	Lib.assertTrue(ran[1] + ran[2] == 10);
+
+	scheduler.rollOver(scheduler.periodStart + 10000);
+	for (int i=0; i<threads.length; i++)
+	    Lib.assertTrue(scheduler.chooseNext() != null);
+	Lib.assertTrue(scheduler.chooseNext() == null);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Run a simulated workload: each time, the thread the scheduler chooses
+     * runs for the specified number of ticks, is charged for it, and is made
+     * ready again. Simulated time starts at the current period.
+     *
+     * @return	the thread that received each slice, or <tt>null</tt> for
+     *		a slice in which no thread could run.
+     */
+    private KThread[] runSlices(int slices, int ticks) {
+	KThread[] ran = new KThread[slices];
+	long now = periodStart;
+
+	for (int i=0; i<slices; i++) {
+	    rollOver(now);
+
+	    ThreadState state = chooseNext();
+	    if (state != null) {
+		ran[i] = state.thread;
+		charge(state, ticks, now + ticks);
+		makeReady(state);
+	    }
+
+	    now += ticks;
+	}
+
+	return ran;
+    }
+
+    /**
+     * Run CPU-bound threads in two groups, and print the part of the
+     * processor each group received. The first group has one thread and
+     * three shares; the second has the specified number of threads, one
+     * share, and a quota of a tenth of each period. The current scheduler
+     * must be a <tt>ShareScheduler</tt>.
+     *
+     * @param	threads	the number of threads in the second group.
+     * @param	ticks	how long to run the threads for.
+     */
+    public static void benchmark(int threads, final int ticks) {
+	Lib.assertTrue(ThreadedKernel.scheduler instanceof ShareScheduler);
+	ShareScheduler scheduler = (ShareScheduler) ThreadedKernel.scheduler;
+
+	boolean intStatus = Machine.interrupt().disable();
+	Group[] groups = {
+	    scheduler.newGroup(scheduler.getRootGroup(), 3, 0),
+	    scheduler.newGroup(scheduler.getRootGroup(), 1,
+			       scheduler.period / 10)
+	};
+	Machine.interrupt().restore(intStatus);
+
+	final long end = Machine.timer().getTime() + ticks;
+	final long[] ran = new long[groups.length];
+
+	KThread[] hogs = new KThread[1 + threads];
+	for (int i=0; i<hogs.length; i++) {
+	    final int group = (i == 0) ? 0 : 1;
+	    hogs[i] = new KThread(new Runnable() {
+		    public void run() {
+			// each time interrupts are enabled, the clock ticks
+			while (Machine.timer().getTime() < end) {
+			    Machine.interrupt().disable();
+			    Machine.interrupt().enable();
+			    ran[group] += Stats.KernelTick;
+			}
+		    }
+		});
+	    hogs[i].setName("share benchmark hog " + i);
+
+	    intStatus = Machine.interrupt().disable();
+	    scheduler.setGroup(hogs[i], groups[group]);
+	    Machine.interrupt().restore(intStatus);
+
+	    hogs[i].fork();
+	}
+
+	for (int i=0; i<hogs.length; i++)
+	    hogs[i].join();
+
+	long total = ran[0] + ran[1];
+	System.out.println("ShareScheduler: 1 thread with 3 shares, " +
+			   threads + " threads with 1 share and a 10% quota: " +
+			   (100*ran[0]/total) + "% and " +
+			   (100*ran[1]/total) + "% of " + total + " ticks");
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that is the ready queue, divided by shares, or
+     * any other queue, first-come first-serve.
+     */
+    protected class ShareQueue extends ThreadQueue {
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (isReadyQueue())
+		makeReady(getThreadState(thread));
+	    else
+		waitQueue.add(thread);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (!isReadyQueue())
+		return waitQueue.isEmpty() ? null : waitQueue.removeFirst();
+
+	    rollOver(Machine.timer().getTime());
+
+	    ThreadState state = chooseNext();
+	    return (state == null) ? null : state.thread;
+	}
+
+	/**
+	 * Return whether this queue is the ready queue, or the queue of this
+	 * scheduler that the ready queue wraps.
+	 */
+	private boolean isReadyQueue() {
+	    for (ThreadQueue queue=KThread.readyQueue(); queue!=null;
+		 queue=queue.wrappedQueue()) {
+		if (queue == this)
+		    return true;
+	    }
+
+	    return false;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (Iterator<KThread> i=waitQueue.iterator(); i.hasNext(); )
+		System.out.print(i.next() + " ");
+	}
+
+	private LinkedList<KThread> waitQueue = new LinkedList<KThread>();
+    }
+
+    /**
+     * A group or a thread in the hierarchy.
+     */
+    protected abstract class Member {
+	/**
+	 * Test whether this member has a thread ready to run, whether or not
+	 * it is held back.
+	 */
+	abstract boolean wantsToRun();
+
+	/** The group this member belongs to. */
+	Group parent = root;
+	int shares = 1;
+	/** The most ticks to run each period, or 0 for no limit. */
+	long quota = 0;
+
+	/** The virtual runtime, in units of 1/1024 tick. */
+	long vruntime = 0;
+	/** Orders members with equal virtual runtime by arrival. */
+	long sequence;
+	/** Whether this member is in its group's tree. */
+	boolean listed = false;
+
+	/**
+	 * The ticks run in the accounting period <tt>usagePeriod</tt>,
+	 * including any excess carried over from the one before.
+	 */
+	long usage = 0;
+	long usagePeriod = 0;
+	/** Whether this member has used up its quota for this period. */
+	boolean throttled = false;
+    }
+
+    /**
+     * A group of threads and other groups.
+     */
+    public class Group extends Member {
+	Group(Group parent) {
+	    this.parent = parent;
+	}
+
+	/**
+	 * Set the number of shares this group has in its parent.
+	 *
+	 * @param	shares	the number of shares.
+	 */
+	public void setShares(int shares) {
+	    Lib.assertTrue(shares >= 1);
+
+	    this.shares = shares;
+	}
+
+	/**
+	 * Set the most ticks this group's threads may run in each accounting
+	 * period.
+	 *
+	 * @param	quota	the quota, or 0 for no limit.
+	 */
+	public void setQuota(long quota) {
+	    Lib.assertTrue(quota >= 0);
+
+	    this.quota = quota;
+	}
+
+	boolean wantsToRun() {
+	    return !members.isEmpty();
+	}
+
+	/** The members with threads ready to run, by virtual runtime. */
+	TreeSet<Member> members = new TreeSet<Member>(byVruntime);
+	/** The virtual runtime of the last member chosen. */
+	long minVruntime = 0;
+    }
+
+    /**
+     * The scheduling state of a thread.
+     */
+    protected class ThreadState extends Member {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	    shares = priorityDefault;
+	}
+
+	boolean wantsToRun() {
+	    return ready;
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** Whether the thread is on the ready queue. */
+	boolean ready = false;
+	/** When the thread was last charged for the processor. */
+	long runningSince = 0;
+    }
+
+    private static final Comparator<Member> byVruntime =
+	new Comparator<Member>() {
+	    public int compare(Member a, Member b) {
+		if (a.vruntime != b.vruntime)
+		    return a.vruntime < b.vruntime ? -1 : 1;
+		else if (a.sequence != b.sequence)
+		    return a.sequence < b.sequence ? -1 : 1;
+		else
+		    return 0;
+	    }
+	};
+
+    private Group root = new Group(null);
+    /** The groups held back until the next accounting period. */
+    private ArrayList<Member> throttled = new ArrayList<Member>();
+
+    private int period;
+    /** When the current accounting period began. */
+    private long periodStart = 0;
+    /** The number of accounting periods that have begun. */
+    private long periods = 0;
+    private long sequence = 0;
+}
@@ -0,0 +1,578 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Random;
+
+/**
+ * A scheduler that divides the processor among threads in proportion to their
+ * tickets, deterministically, by stride scheduling.
+ *
+ * <p>
+ * Each thread has a stride, inversely proportional to its tickets, and a pass
+ * value. The thread with the smallest pass is always chosen next, and when it
+ * gives up the processor, its pass advances by its stride for each quantum of
+ * processor time it used. Over any interval, each thread's share of the
+ * processor differs from its share of the tickets by less than one quantum,
+ * where a lottery is only right on average.
+ *
+ * <p>
+ * A thread that begins waiting is never placed behind the pass of the last
+ * thread chosen, so a thread that slept for a long time cannot monopolize the
+ * processor when it wakes.
+ *
+ * <p>
+ * Like a lottery scheduler, a stride scheduler must partially solve the
+ * priority inversion problem, so tickets are transferred through locks and
+ * through joins. When a thread's tickets change, the part of its pass still
+ * ahead of the current pass is rescaled to its new stride, so tickets
+ * donated to a lock holder move it forward at once. Each queue keeps its
+ * waiting threads in a binary heap, so choosing a thread, and each step of a
+ * change passed along a chain of waiting threads, take logarithmic time.
+ */
+public class StrideScheduler extends Scheduler {
+    /**
+     * Allocate a new stride scheduler.
+     */
+    public StrideScheduler() {
+    }
+
+    /**
+     * Allocate a new stride thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					transfer tickets from waiting threads
+     *					to the owning thread.
+     * @return	a new stride thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new StrideQueue(transferPriority);
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).tickets;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return (int) Math.min(getThreadState(thread).effectiveTickets,
+			      Integer.MAX_VALUE);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		       priority <= priorityMaximum);
+
+	ThreadState state = getThreadState(thread);
+	int previous = state.tickets;
+
+	state.tickets = priority;
+	state.adjust(priority - previous);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority != priorityMaximum);
+	if (changed)
+	    setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority != priorityMinimum);
+	if (changed)
+	    setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    /**
+     * Note when the thread started running. The pass of the thread chosen to
+     * run is the current pass of the whole system.
+     */
+    public void runningThread(KThread thread) {
+	ThreadState state = getThreadState(thread);
+
+	state.runningSince = Machine.timer().getTime();
+	globalPass = Math.max(globalPass, state.pass);
+    }
+
+    /**
+     * Advance the thread's pass for the processor time it used.
+     */
+    public void stoppingThread(KThread thread) {
+	ThreadState state = getThreadState(thread);
+
+	charge(state, Machine.timer().getTime() - state.runningSince);
+    }
+
+    /**
+     * Advance a thread's pass by its stride for each quantum of the specified
+     * number of ticks.
+     */
+    private void charge(ThreadState state, long ticks) {
+	state.pass += stride1 / state.effectiveTickets * ticks / quantum;
+
+	if (state.waitingOn != null)
+	    state.waitingOn.reposition(state);
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * The default priority for a new thread. Do not change this value.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum priority that a thread can have. Do not change this value.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum priority that a thread can have. Do not change this value.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
+    /**
+     * The length of a quantum in ticks. A thread's pass advances by its stride
+     * for each quantum it runs.
+     */
+    public static final int quantum = Stats.TimerTicks;
+    /** The stride of a thread with one ticket. */
+    private static final long stride1 = 1L << 32;
+
+    /**
+     * Test if this module is working: threads must be chosen in exact
+     * proportion to their tickets, and tickets must add up through donation.
+     */
+    public static void selfTest() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	StrideScheduler scheduler = new StrideScheduler();
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+
+	int[] tickets = { 1, 2, 7 };
+	KThread[] threads = new KThread[tickets.length];
+	for (int i=0; i<threads.length; i++) {
+	    threads[i] = new KThread().setName("stride test " + i);
+	    scheduler.setPriority(threads[i], tickets[i]);
+	    queue.waitForAccess(threads[i]);
+	}
+
+	int[] wins = tally(threads, scheduler.runQuanta(queue, 1000));
+	for (int i=0; i<threads.length; i++)
+	    Lib.assertTrue(Math.abs(wins[i] - 100*tickets[i]) <= 1);
+
+	for (int i=0; i<threads.length; i++)
+	    queue.nextThread();
+	Lib.assertTrue(queue.nextThread() == null);
+
+	// waiters add their tickets to the owner's, and leave in order
+	KThread[] lockThreads = new KThread[tickets.length];
+	for (int i=0; i<lockThreads.length; i++) {
+	    lockThreads[i] = new KThread().setName("stride lock test " + i);
+	    scheduler.setPriority(lockThreads[i], tickets[i]);
+	}
+
+	ThreadQueue lock = scheduler.newThreadQueue(true);
+	lock.acquire(lockThreads[0]);
+	lock.waitForAccess(lockThreads[1]);
+	lock.waitForAccess(lockThreads[2]);
+	Lib.assertTrue(scheduler.getEffectivePriority(lockThreads[0]) == 10);
+	Lib.assertTrue(lock.nextThread() == lockThreads[1]);
+	Lib.assertTrue(scheduler.getEffectivePriority(lockThreads[0]) == 1);
+	Lib.assertTrue(scheduler.getEffectivePriority(lockThreads[1]) == 9);
+	Lib.assertTrue(lock.nextThread() == lockThreads[2]);
+	Lib.assertTrue(scheduler.getEffectivePriority(lockThreads[1]) == 2);
+	Lib.assertTrue(scheduler.getEffectivePriority(lockThreads[2]) == 7);
+	Lib.assertTrue(lock.nextThread() == null);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Run a simulated workload of the specified number of quanta on a queue:
+     * each quantum goes to the thread the queue chooses, which is charged for
+     * it and put back.
+     *
+     * @return	the thread that received each quantum.
+     */
+    private KThread[] runQuanta(ThreadQueue queue, int quanta) {
+	KThread[] winners = new KThread[quanta];
+
+	for (int i=0; i<quanta; i++) {
+	    KThread winner = queue.nextThread();
+	    globalPass = Math.max(globalPass, getThreadState(winner).pass);
+	    winners[i] = winner;
+	    charge(getThreadState(winner), quantum);
+	    queue.waitForAccess(winner);
+	}
+
+	return winners;
+    }
+
+    /**
+     * Compare stride scheduling with lottery scheduling, and print the
+     * results: how far each thread's share of the processor strays from its
+     * share of the tickets, and how long each decision takes. The threads
+     * hold from 1 to 10 tickets.
+     *
+     * @param	numThreads	the number of threads.
+     * @param	quanta		the number of quanta to hand out.
+     */
+    public static void benchmark(int numThreads, int quanta) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	StrideScheduler stride = new StrideScheduler();
+	LotteryScheduler lottery = new LotteryScheduler();
+	lottery.random = new Random(0);
+
+	ThreadQueue strideQueue = stride.newThreadQueue(false);
+	ThreadQueue lotteryQueue = lottery.newThreadQueue(false);
+
+	// each scheduler needs threads of its own to keep its state in
+	KThread[] threads = new KThread[numThreads];
+	KThread[] lotteryThreads = new KThread[numThreads];
+	long totalTickets = 0;
+	for (int i=0; i<numThreads; i++) {
+	    int tickets = 1 + i%10;
+	    totalTickets += tickets;
+
+	    threads[i] = new KThread().setName("stride benchmark " + i);
+	    stride.setPriority(threads[i], tickets);
+	    strideQueue.waitForAccess(threads[i]);
+
+	    lotteryThreads[i] = new KThread().setName("lottery benchmark " + i);
+	    lottery.setPriority(lotteryThreads[i], tickets);
+	    lotteryQueue.waitForAccess(lotteryThreads[i]);
+	}
+	KThread[] strideWinners = null;
+	KThread[] lotteryWinners = new KThread[quanta];
+
+	// warm up, then time
+	long strideTime = 0, lotteryTime = 0;
+	for (int round=0; round<2; round++) {
+	    long start = System.nanoTime();
+	    strideWinners = stride.runQuanta(strideQueue, quanta);
+	    strideTime = System.nanoTime() - start;
+
+	    start = System.nanoTime();
+	    for (int i=0; i<quanta; i++) {
+		lotteryWinners[i] = lotteryQueue.nextThread();
+		lotteryQueue.waitForAccess(lotteryWinners[i]);
+	    }
+	    lotteryTime = System.nanoTime() - start;
+	}
+
+	int[] strideWins = tally(threads, strideWinners);
+	int[] lotteryWins = tally(lotteryThreads, lotteryWinners);
+
+	double strideError = 0, lotteryError = 0;
+	for (int i=0; i<numThreads; i++) {
+	    double expected = (double) quanta * (1 + i%10) / totalTickets;
+	    strideError = Math.max(strideError,
+				   Math.abs(strideWins[i] - expected));
+	    lotteryError = Math.max(lotteryError,
+				    Math.abs(lotteryWins[i] - expected));
+	}
+
+	System.out.println("StrideScheduler: " + numThreads + " threads, " +
+			   quanta + " quanta: largest share error " +
+			   Math.round(strideError*10)/10.0 + " quanta, " +
+			   (strideTime / quanta) + " ns per decision");
+	System.out.println("LotteryScheduler: " + numThreads + " threads, " +
+			   quanta + " quanta: largest share error " +
+			   Math.round(lotteryError*10)/10.0 + " quanta, " +
+			   (lotteryTime / quanta) + " ns per decision");
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that orders threads by pass, in a binary
+     * min-heap. Threads with equal pass leave in the order they arrived.
+     */
+    protected class StrideQueue extends ThreadQueue {
+	StrideQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    Lib.assertTrue(state.waitingOn == null);
+
+	    state.pass = Math.max(state.pass, globalPass);
+	    state.sequence = nextSequence++;
+	    state.waitingOn = this;
+
+	    if (size == heap.length) {
+		ThreadState[] newHeap = new ThreadState[size*2];
+		System.arraycopy(heap, 0, newHeap, 0, size);
+		heap = newHeap;
+	    }
+
+	    heap[size] = state;
+	    state.heapIndex = size;
+	    size++;
+	    siftUp(size-1);
+
+	    total += state.effectiveTickets;
+	    if (transferPriority && owner != null)
+		owner.changeDonated(state.effectiveTickets);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (size == 0) {
+		setOwner(null);
+		return null;
+	    }
+
+	    ThreadState next = heap[0];
+
+	    size--;
+	    if (size > 0) {
+		heap[0] = heap[size];
+		heap[0].heapIndex = 0;
+		siftDown(0);
+	    }
+	    heap[size] = null;
+	    next.waitingOn = null;
+
+	    total -= next.effectiveTickets;
+	    if (transferPriority && owner != null)
+		owner.changeDonated(-next.effectiveTickets);
+
+	    setOwner(next);
+	    return next.thread;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    Lib.assertTrue(size == 0);
+
+	    setOwner(getThreadState(thread));
+	}
+
+	void clearOwner() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    setOwner(null);
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<size; i++)
+		System.out.print(heap[i].thread + " ");
+	}
+
+	/**
+	 * Move a waiting thread to its place in the heap after its pass
+	 * changed.
+	 */
+	void reposition(ThreadState state) {
+	    siftUp(state.heapIndex);
+	    siftDown(state.heapIndex);
+	}
+
+	private void setOwner(ThreadState owner) {
+	    ThreadState previous = this.owner;
+	    if (previous == owner)
+		return;
+
+	    this.owner = owner;
+
+	    if (transferPriority) {
+		if (previous != null)
+		    previous.changeDonated(-total);
+		if (owner != null)
+		    owner.changeDonated(total);
+	    }
+	}
+
+	private boolean before(ThreadState a, ThreadState b) {
+	    if (a.pass != b.pass)
+		return a.pass < b.pass;
+	    else
+		return a.sequence < b.sequence;
+	}
+
+	private void siftUp(int index) {
+	    ThreadState state = heap[index];
+
+	    while (index > 0) {
+		int parent = (index-1) / 2;
+		if (!before(state, heap[parent]))
+		    break;
+
+		heap[index] = heap[parent];
+		heap[index].heapIndex = index;
+		index = parent;
+	    }
+
+	    heap[index] = state;
+	    state.heapIndex = index;
+	}
+
+	private void siftDown(int index) {
+	    ThreadState state = heap[index];
+
+	    while (true) {
+		int child = index*2 + 1;
+		if (child >= size)
+		    break;
+
+		if (child+1 < size && before(heap[child+1], heap[child]))
+		    child++;
+
+		if (!before(heap[child], state))
+		    break;
+
+		heap[index] = heap[child];
+		heap[index].heapIndex = index;
+		index = child;
+	    }
+
+	    heap[index] = state;
+	    state.heapIndex = index;
+	}
+
+	/**
+	 * <tt>true</tt> if this queue should transfer tickets from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+
+	private ThreadState owner = null;
+	private ThreadState[] heap = new ThreadState[8];
+	private int size = 0;
+	/** The effective tickets of all waiting threads. */
+	private long total = 0;
+    }
+
+    /**
+     * The scheduling state of a thread: its tickets, its pass, and the queue
+     * it's waiting for, if any.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Add to the tickets donated to the associated thread.
+	 */
+	void changeDonated(long delta) {
+	    donatedTickets += delta;
+	    adjust(delta);
+	}
+
+	/**
+	 * Add to the effective tickets of the associated thread, and pass the
+	 * change along the chain of threads waiting for one another. The part
+	 * of each thread's pass ahead of the current pass is rescaled to its
+	 * new stride. A chain that leads back to a thread already visited is a
+	 * deadlock, and is not followed around again.
+	 */
+	void adjust(long delta) {
+	    if (delta == 0)
+		return;
+
+	    long walk = ++walks;
+	    ThreadState state = this;
+
+	    while (true) {
+		long previous = state.effectiveTickets;
+
+		state.lastWalk = walk;
+		state.effectiveTickets += delta;
+		state.pass = globalPass +
+		    Math.round((double) (state.pass - globalPass) * previous /
+			       state.effectiveTickets);
+
+		StrideQueue queue = state.waitingOn;
+		if (queue == null)
+		    return;
+
+		queue.reposition(state);
+		queue.total += delta;
+
+		ThreadState owner = queue.owner;
+		if (!queue.transferPriority || owner == null ||
+		    owner.lastWalk == walk)
+		    return;
+
+		owner.donatedTickets += delta;
+		state = owner;
+	    }
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The tickets of the associated thread. */
+	protected int tickets = priorityDefault;
+	/** The tickets donated by threads waiting for the associated thread. */
+	protected long donatedTickets = 0;
+	protected long effectiveTickets = priorityDefault;
+
+	/** The pass of the associated thread. */
+	long pass = 0;
+	/** The time at which the associated thread last started running. */
+	long runningSince = 0;
+
+	/** The queue the associated thread is waiting on, if any. */
+	StrideQueue waitingOn = null;
+	private int heapIndex;
+	/** The order in which the associated thread began waiting. */
+	private long sequence;
+	/** The last propagation that visited this thread. */
+	private long lastWalk = 0;
+    }
+
+    /** The pass of the thread most recently chosen to run. */
+    private long globalPass = 0;
+    /** The number of threads that have begun waiting on any queue. */
+    private long nextSequence = 0;
+    /** The number of propagations of ticket changes so far. */
+    private long walks = 0;
+}
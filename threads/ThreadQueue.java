@@ -91,6 +91,28 @@ public abstract class ThreadQueue {
      */
     public abstract void acquire(KThread thread);
 
+    /**
+     * Notify this thread queue that access has passed to a thread it does not
+     * know about, so that the thread that last received access no longer has
+     * it. A queue that wraps this one calls this method when it hands access
+     * to a thread of its own. If this queue transfers priority, its waiting
+     * threads stop donating to its last owner.
+     */
+    void clearOwner() {
+    }
+
+    /**
+     * Return the queue this queue hands the threads it does not order itself
+     * to, if it wraps a queue of another scheduler. A scheduler that is
+     * wrapped this way finds its own part of the ready queue through this
+     * method.
+     *
+     * @return	the wrapped queue, or <tt>null</tt> if there is none.
+     */
+    ThreadQueue wrappedQueue() {
+	return null;
+    }
+
     /**
      * Print out all the threads waiting for access, in no particular order.
      */
@@ -49,6 +49,48 @@ public class ThreadedKernel extends Kernel {
 	KThread.selfTest();
 	Semaphore.selfTest();
 	SynchList.selfTest();
+	PriorityScheduler.selfTest();
+	LotteryScheduler.selfTest();
+	StrideScheduler.selfTest();
+	MLFQScheduler.selfTest();
+	FairScheduler.selfTest();
+	EDFScheduler.selfTest();
+	ShareScheduler.selfTest();
+
+	int forks = Config.getInteger("ThreadedKernel.benchmarkThreads", 0);
+	if (forks > 0)
+	    KThread.benchmark(forks);
+
+	int switches = Config.getInteger("ThreadedKernel.benchmarkSwitches", 0);
+	if (switches > 0)
+	    Semaphore.benchmark(switches);
+
+	int waiting = Config.getInteger("ThreadedKernel.benchmarkWaiting", 0);
+	if (waiting > 0) {
+	    PriorityScheduler.benchmark(10, 1000000);
+	    PriorityScheduler.benchmark(waiting, 1000000);
+	    PriorityScheduler.donationTest(waiting/4, waiting, 1000000, true);
+	    LotteryScheduler.benchmark(10, 1000000);
+	    LotteryScheduler.benchmark(waiting, 1000000);
+	    StrideScheduler.benchmark(10, 10000);
+	    StrideScheduler.benchmark(waiting, 1000000);
+	    FairScheduler.benchmark(10, 1000000);
+	    FairScheduler.benchmark(waiting, 1000000);
+	}
+
+	int hogs = Config.getInteger("ThreadedKernel.benchmarkLatency", 0);
+	if (hogs > 0)
+	    Alarm.benchmark(hogs, 200000, 50);
+
+	int deadlineHogs = Config.getInteger("ThreadedKernel.benchmarkDeadlines",
+					     -1);
+	if (deadlineHogs >= 0)
+	    EDFScheduler.benchmark(deadlineHogs, 20);
+
+	int shareHogs = Config.getInteger("ThreadedKernel.benchmarkShares", 0);
+	if (shareHogs > 0)
+	    ShareScheduler.benchmark(shareHogs, 200000);
+
 	if (Machine.bank() != null) {
 	    ElevatorBank.selfTest();
 	}
@@ -83,4 +125,9 @@ public class ThreadedKernel extends Kernel {
     private static Communicator dummy5 = null;
     private static Rider dummy6 = null;
     private static ElevatorController dummy7 = null;
+    private static StrideScheduler dummy8 = null;
+    private static MLFQScheduler dummy9 = null;
+    private static FairScheduler dummy10 = null;
+    private static EDFScheduler dummy11 = null;
+    private static ShareScheduler dummy12 = null;
 }
@@ -47,6 +47,11 @@ public class SynchConsole {
 
 	    value = console.readByte();
 	    Lib.assertTrue(value != -1);
+
+	    long latency = Machine.timer().getTime() - receivedAt;
+	    bytesRead++;
+	    totalLatency += latency;
+	    worstLatency = Math.max(worstLatency, latency);
 	}
 	else {
 	    value = -1;
@@ -68,9 +73,22 @@ public class SynchConsole {
 
     private void receiveInterrupt() {
 	charAvailable = true;
+	receivedAt = Machine.timer().getTime();
 	readWait.V();
     }
 
+    /**
+     * Print how many bytes have been read, and how long each waited between
+     * arriving and being read, on average and at worst. This is how quickly
+     * a process reading the console, such as a shell, responds to typing.
+     */
+    public void printLatency() {
+	System.out.println("Console: " + bytesRead + " bytes read, " +
+			   "average latency " +
+			   (bytesRead == 0 ? 0 : totalLatency / bytesRead) +
+			   " ticks, worst " + worstLatency + " ticks");
+    }
+
     /**
      * Send a byte. Blocks until the send is complete.
      *
@@ -97,6 +115,10 @@ public class SynchConsole {
     }
 
     private boolean charAvailable = false;
+    /** When the byte waiting to be read arrived. */
+    private long receivedAt;
+    private int bytesRead = 0;
+    private long totalLatency = 0, worstLatency = 0;
 
     private SerialConsole console;
     private Lock readLock = new Lock();
@@ -3,7 +3,8 @@ package nachos.userprog;
 import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
-import java.util.LinkedList;
+
+import java.util.HashMap;
 
 /**
  * A kernel that can support multiple user processes.
@@ -18,24 +19,24 @@ public class UserKernel extends ThreadedKernel {
 
     /**
      * Initialize this kernel. Creates a synchronized console and sets the
-     * processor's exception handler.
+     * exception handler of each processor.
      */
     public void initialize(String[] args) {
         super.initialize(args);
 
         console = new SynchConsole(Machine.console());
 
-        Machine.processor().setExceptionHandler(new Runnable() {
+        Runnable handler = new Runnable() {
             public void run() { exceptionHandler(); }
-        });
-
-        // populate the pages
-        pageList = new LinkedList<Integer>();
-        int numPhysPages = Machine.processor().getNumPhysPages();
+        };
+        for (int i=0; i<Machine.numProcessors(); i++)
+            Machine.processor(i).setExceptionHandler(handler);
 
-        for(Integer i=0; i<numPhysPages; i++) {
-            pageList.add(i);
-        }
+        // pages are handed out in order the first time, so nothing is
+        // needed per page until it is freed
+        nextUnusedPage = 0;
+        freedPages = new int[16];
+        numFreedPages = 0;
         pageListLock = new Lock();
     }
 
@@ -71,6 +72,52 @@ public class UserKernel extends ThreadedKernel {
         return ((UThread) KThread.currentThread()).process;
     }
 
+    /**
+     * Put the thread of a new process in a share group of its own, if the
+     * scheduler is a <tt>ShareScheduler</tt>, or an <tt>EDFScheduler</tt>
+     * whose best-effort scheduler is one. The process's group belongs to
+     * the group named by the <tt>UserKernel.shareGroup.</tt><i>program</i>
+     * key of <tt>nachos.conf</tt>, or to the group <tt>user</tt>. The shares
+     * and quota of each named group are read from the
+     * <tt>UserKernel.groupShares.</tt><i>group</i> and
+     * <tt>UserKernel.groupQuota.</tt><i>group</i> keys, and those of every
+     * process from <tt>UserKernel.processShares</tt> and
+     * <tt>UserKernel.processQuota</tt>. A quota of 0 means no limit.
+     *
+     * @param	thread		the thread of the new process.
+     * @param	programName	the name of the program the process runs.
+     */
+    public static void joinShareGroup(KThread thread, String programName) {
+        Scheduler found = ThreadedKernel.scheduler;
+        if (found instanceof EDFScheduler)
+            found = ((EDFScheduler) found).getBestEffort();
+
+        if (!(found instanceof ShareScheduler))
+            return;
+
+        ShareScheduler scheduler = (ShareScheduler) found;
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        String groupName =
+            Config.getString("UserKernel.shareGroup." + programName, "user");
+
+        ShareScheduler.Group group = shareGroups.get(groupName);
+        if (group == null) {
+            group = scheduler.newGroup(scheduler.getRootGroup(),
+                Config.getInteger("UserKernel.groupShares." + groupName, 1),
+                Config.getInteger("UserKernel.groupQuota." + groupName, 0));
+            shareGroups.put(groupName, group);
+        }
+
+        ShareScheduler.Group process = scheduler.newGroup(group,
+            Config.getInteger("UserKernel.processShares", 1),
+            Config.getInteger("UserKernel.processQuota", 0));
+        scheduler.setGroup(thread, process);
+
+        Machine.interrupt().restore(intStatus);
+    }
+
     /**
      * The exception handler. This handler is called by the processor whenever
      * a user instruction causes a processor exception.
@@ -95,7 +142,8 @@ public class UserKernel extends ThreadedKernel {
     /**
      * Start running user programs, by creating a process and running a shell
      * program in it. The name of the shell program it must run is returned by
-     * <tt>Machine.getShellProgramName()</tt>.
+     * <tt>Machine.getShellProgramName()</tt>. If a checkpoint is to be
+     * restored, the process resumes the program saved in it instead.
      *
      * @see	nachos.machine.Machine#getShellProgramName
      */
@@ -104,16 +152,92 @@ public class UserKernel extends ThreadedKernel {
 
         UserProcess process = UserProcess.newUserProcess();
 
-        String shellProgram = Machine.getShellProgramName();
-        Lib.assertTrue(process.execute(shellProgram, new String[] { }));
+        String checkpoint = Machine.getRestoreFileName();
+        if (checkpoint != null) {
+            Lib.assertTrue(process.restore(checkpoint));
+        }
+        else {
+            String shellProgram = Machine.getShellProgramName();
+            Lib.assertTrue(process.execute(shellProgram, new String[] { }));
+        }
 
         KThread.currentThread().finish();
     }
 
     /**
-     * Terminate this kernel. Never returns.
+     * Allocate a free physical page, preferring one that has been used
+     * before. The caller must hold <tt>pageListLock</tt>.
+     *
+     * @return	the physical page number, or -1 if every page is in use.
+     */
+    public static int allocatePage() {
+        Lib.assertTrue(pageListLock.isHeldByCurrentThread());
+
+        if (numFreedPages > 0)
+            return freedPages[--numFreedPages];
+
+        if (nextUnusedPage < Machine.processor().getNumPhysPages())
+            return nextUnusedPage++;
+
+        return -1;
+    }
+
+    /**
+     * Allocate a specific physical page, such as one named in a restored
+     * checkpoint. The caller must hold <tt>pageListLock</tt>.
+     *
+     * @param	ppn	the physical page number.
+     * @return	<tt>true</tt> if the page was free, and is now allocated.
+     */
+    public static boolean allocatePage(int ppn) {
+        Lib.assertTrue(pageListLock.isHeldByCurrentThread());
+        Lib.assertTrue(ppn >= 0 && ppn < Machine.processor().getNumPhysPages());
+
+        if (ppn >= nextUnusedPage) {
+            // the pages skipped over are free
+            while (nextUnusedPage < ppn)
+                freePage(nextUnusedPage++);
+            nextUnusedPage++;
+            return true;
+        }
+
+        for (int i=0; i<numFreedPages; i++) {
+            if (freedPages[i] == ppn) {
+                freedPages[i] = freedPages[--numFreedPages];
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Return a physical page to the free pool. The caller must hold
+     * <tt>pageListLock</tt>.
+     *
+     * @param	ppn	the physical page number.
+     */
+    public static void freePage(int ppn) {
+        Lib.assertTrue(pageListLock.isHeldByCurrentThread());
+
+        if (numFreedPages == freedPages.length) {
+            int[] grown = new int[freedPages.length * 2];
+            System.arraycopy(freedPages, 0, grown, 0, numFreedPages);
+            freedPages = grown;
+        }
+
+        freedPages[numFreedPages++] = ppn;
+    }
+
+    /**
+     * Terminate this kernel. Never returns. If the
+     * <tt>UserKernel.consoleLatency</tt> key of <tt>nachos.conf</tt> is set,
+     * first prints how quickly the console was read.
      */
     public void terminate() {
+        if (Config.getBoolean("UserKernel.consoleLatency", false))
+            console.printLatency();
+
         super.terminate();
     }
 
@@ -121,8 +245,16 @@ public class UserKernel extends ThreadedKernel {
     /** Globally accessible reference to the synchronized console. */
     public static SynchConsole console;
 
-    // page list and lock for list
-    public static LinkedList<Integer> pageList;
+    /** The share groups of user processes, by name. */
+    private static HashMap<String,ShareScheduler.Group> shareGroups =
+        new HashMap<String,ShareScheduler.Group>();
+
+    // free physical pages and lock for them: every page from
+    // nextUnusedPage up has never been allocated, and freedPages holds
+    // the pages below it that have since been freed
+    private static int nextUnusedPage;
+    private static int[] freedPages;
+    private static int numFreedPages;
     public static Lock pageListLock;
 
     // dummy variables to make javac smarter
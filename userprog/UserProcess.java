@@ -77,6 +77,42 @@ public class UserProcess {
 			return false;
 
 		thread = new UThread(this);
+		UserKernel.joinShareGroup(thread, name);
+		thread.setName(name).fork();
+
+		return true;
+	}
+
+	/**
+	 * Resume the program saved in the specified checkpoint file. Restores
+	 * the machine state and the saved page table, and then forks a thread
+	 * to continue the program where it left off. Only the console is open
+	 * in the resumed process.
+	 *
+	 * @param	name	the name of the checkpoint file.
+	 * @return	<tt>true</tt> if the checkpoint was successfully restored.
+	 */
+	public boolean restore(String name) {
+		Lib.debug(dbgProcess, "UserProcess.restore(\"" + name + "\")");
+
+		int[] registers = new int[Processor.numUserRegisters];
+		TranslationEntry[] table = Machine.checkpoint().restore(name, registers);
+		if (table == null)
+			return false;
+
+		UserKernel.pageListLock.acquire();
+
+		for (int i = 0; i < table.length; i++)
+			Lib.assertTrue(UserKernel.allocatePage(table[i].ppn));
+
+		UserKernel.pageListLock.release();
+
+		pageTable = table;
+		numPages = table.length;
+		restoredRegisters = registers;
+
+		thread = new UThread(this);
+		UserKernel.joinShareGroup(thread, name);
 		thread.setName(name).fork();
 
 		return true;
@@ -161,8 +197,6 @@ public class UserProcess {
 			length = Machine.processor().makeAddress(numPages - 1, pageSize - 1) - vaddr;
 		}
 
-		byte[] memory = Machine.processor().getMemory();
-
 		int firstVirtPage = Machine.processor().pageFromAddress(vaddr);
 		int vadx = vaddr + length;
 		int lastVirtPage = Machine.processor().pageFromAddress(vadx);
@@ -192,7 +226,7 @@ public class UserProcess {
 			}
 			int firstPhysAddress = Machine.processor().makeAddress(pageTable[i].ppn, offset1);
 
-			System.arraycopy(memory, firstPhysAddress, data, offset+numBytesTransferred, offset2-offset1);
+			Machine.processor().readPhysicalMemory(firstPhysAddress, data, offset+numBytesTransferred, offset2-offset1);
 			numBytesTransferred += (offset2-offset1);
 			pageTable[i].used = true;
 		}
@@ -229,8 +263,6 @@ public class UserProcess {
 	public int writeVirtualMemory(int vaddr, byte[] data, int offset, int length) {
 		Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
-		byte[] memory = Machine.processor().getMemory();
-
 		if (vaddr < 0) {
 			vaddr = 0;
 		}
@@ -269,7 +301,7 @@ public class UserProcess {
 			}
 
 			int firstPhysAddress = Machine.processor().makeAddress(pageTable[i].ppn, offset1);
-			System.arraycopy(data, offset+numBytesTransferred, memory, firstPhysAddress, offset2-offset1);
+			Machine.processor().writePhysicalMemory(firstPhysAddress, data, offset+numBytesTransferred, offset2-offset1);
 
 			numBytesTransferred += (offset2 - offset1);
 			pageTable[i].used = pageTable[i].dirty = true;
@@ -385,7 +417,15 @@ public class UserProcess {
 		// allocate pages
 		pageTable = new TranslationEntry[numPages];
 		for (int i = 0; i < numPages; i++){
-			int nextFreePage = UserKernel.pageList.poll();
+			int nextFreePage = UserKernel.allocatePage();
+			if (nextFreePage == -1) {
+				for (int j = 0; j < i; j++)
+					UserKernel.freePage(pageTable[j].ppn);
+				UserKernel.pageListLock.release();
+				coff.close();
+				Lib.debug(dbgProcess, "\tinsufficient physical memory");
+				return false;
+			}
 			pageTable[i] = new TranslationEntry(i,nextFreePage,true,false,false,false);
 		}
 
@@ -415,7 +455,7 @@ public class UserProcess {
 		UserKernel.pageListLock.acquire();
 
 		for (int i = 0; i < numPages; i++){
-			UserKernel.pageList.add(pageTable[i].ppn);
+			UserKernel.freePage(pageTable[i].ppn);
 		}
 
 		UserKernel.pageListLock.release();
@@ -425,7 +465,9 @@ public class UserProcess {
 				fileDescriptorTable[i].close();
 			}
 		}
-		coff.close();
+		// a process restored from a checkpoint has no executable
+		if (coff != null)
+			coff.close();
 	}
 
 	/**
@@ -438,6 +480,13 @@ public class UserProcess {
 	public void initRegisters() {
 		Processor processor = Machine.processor();
 
+		// a restored process continues with the registers it was saved with
+		if (restoredRegisters != null) {
+			for (int i=0; i<Processor.numUserRegisters; i++)
+				processor.writeRegister(i, restoredRegisters[i]);
+			return;
+		}
+
 		// by default, everything's 0
 		for (int i=0; i<processor.numUserRegisters; i++)
 			processor.writeRegister(i, 0);
@@ -859,8 +908,20 @@ public class UserProcess {
 						processor.readRegister(Processor.regA2),
 						processor.readRegister(Processor.regA3)
 				);
+				// the call may have blocked and resumed on another processor
+				processor = Machine.processor();
 				processor.writeRegister(Processor.regV0, result);
 				processor.advancePC();
+
+				// the syscall is complete, so this is a clean point to save
+				// the process
+				if (Machine.getCheckpointFileName() != null && !checkpointTaken &&
+						Machine.timer().getTime() >=
+						Config.getInteger("Kernel.checkpointTicks", 0)) {
+					checkpointTaken = true;
+					Machine.checkpoint().save(Machine.getCheckpointFileName(),
+							pageTable);
+				}
 				break;
 			}
 			default: {
@@ -885,6 +946,10 @@ public class UserProcess {
 
 	private int initialPC, initialSP;
 	private int argc, argv;
+	/** The registers to start with, if restored from a checkpoint. */
+	private int[] restoredRegisters;
+	/** Whether the checkpoint requested by <tt>-c</tt> has been written. */
+	private static boolean checkpointTaken = false;
 
 	private static final int pageSize = Processor.pageSize;
 	private static final char dbgProcess = 'a';
@@ -22,6 +22,10 @@ public class VMProcess extends UserProcess {
      */
     public void saveState() {
 	super.saveState();
+
+	Processor processor = Machine.processor();
+	tlbHits += processor.getTLBHits() - tlbHitsAtRestore;
+	tlbMisses += processor.getTLBMisses() - tlbMissesAtRestore;
     }
 
     /**
@@ -30,6 +34,30 @@ public class VMProcess extends UserProcess {
      */
     public void restoreState() {
 	super.restoreState();
+
+	Processor processor = Machine.processor();
+	tlbHitsAtRestore = processor.getTLBHits();
+	tlbMissesAtRestore = processor.getTLBMisses();
+    }
+
+    /**
+     * Return the number of TLB hits taken by this process, counted up to
+     * the last time it was switched out.
+     *
+     * @return	the number of TLB hits charged to this process.
+     */
+    public long getTLBHits() {
+	return tlbHits;
+    }
+
+    /**
+     * Return the number of TLB misses taken by this process, counted up to
+     * the last time it was switched out.
+     *
+     * @return	the number of TLB misses charged to this process.
+     */
+    public long getTLBMisses() {
+	return tlbMisses;
     }
 
     /**
@@ -67,6 +95,11 @@ public class VMProcess extends UserProcess {
 	}
     }
 	
+    /** TLB hits and misses charged to this process. */
+    private long tlbHits = 0, tlbMisses = 0;
+    /** The processor's TLB counters when this process was last restored. */
+    private long tlbHitsAtRestore, tlbMissesAtRestore;
+
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';